@@ -0,0 +1,20 @@
+/**
+ * AdaptivePolicy is the two-bucket scheme with a SINGLE_FACTOR tuned online
+ * by the GhostPolicy ghost lists, multiAccess stays LFU
+ * <p>
+ * a step is the size of the ghost hit; the factor stays within [minFactor, maxFactor]
+ */
+public class AdaptivePolicy extends GhostPolicy {
+
+    public AdaptivePolicy(long cacheSize, float initialFactor, float minFactor, float maxFactor) {
+        super(cacheSize, initialFactor, minFactor, maxFactor);
+    }
+
+    public String multiOrder() {
+        return "LFU";
+    }
+
+    protected long step(long size) {
+        return Math.max(1, size);
+    }
+}
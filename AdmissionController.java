@@ -0,0 +1,95 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionController decides whether bytes a read brings in are worth caching
+ * it runs before a file enters the cache and before any cached file grows, in
+ * either bucket, and judges the size the file grows to, so a file cannot get in
+ * piece by piece
+ * <p>
+ * all: admit everything, the original behaviour
+ * threshold: reject reads larger than maxFraction of the cache
+ * adaptsize: reject like threshold, else admit with probability e^(-size / c),
+ * c = scale * cache size, so big files need several misses to get in (AdaptSize)
+ * <p>
+ * rejected bytes are the ones over the threshold, bypassed bytes lost the coin flip
+ */
+public class AdmissionController {
+
+    public static final int ALL = 0;
+    public static final int THRESHOLD = 1;
+    public static final int ADAPTSIZE = 2;
+
+    private final int mode;
+    // largest read admitted, in bytes
+    private final long maxBytes;
+    // c of e^(-size / c), in bytes
+    private final double scale;
+
+    private final LongAdder admittedBytes = new LongAdder();
+    private final LongAdder bypassedBytes = new LongAdder();
+    private final LongAdder rejectedBytes = new LongAdder();
+
+    public AdmissionController(int mode, long maxBytes, double scale) {
+        this.mode = mode;
+        this.maxBytes = maxBytes;
+        this.scale = Math.max(1, scale);
+    }
+
+    /**
+     * the controller named in conf.admission
+     */
+    public static AdmissionController forConfig(Configuration conf) {
+        long maxBytes = (long) (conf.admissionMaxFraction * conf.CACHE_SIZE);
+        double scale = conf.admissionScale * conf.CACHE_SIZE;
+        String name = conf.admission == null ? "all" : conf.admission.toLowerCase();
+        if (name.equals("all")) {
+            return new AdmissionController(ALL, maxBytes, scale);
+        } else if (name.equals("threshold")) {
+            return new AdmissionController(THRESHOLD, maxBytes, scale);
+        } else if (name.equals("adaptsize")) {
+            return new AdmissionController(ADAPTSIZE, maxBytes, scale);
+        }
+        throw new IllegalArgumentException("admission mode not existed: " + conf.admission);
+    }
+
+    /**
+     * true if bytes new bytes of a file not cached yet may enter the cache,
+     * the bytes are counted either way
+     */
+    public boolean admit(long bytes) {
+        return admit(bytes, bytes);
+    }
+
+    /**
+     * true if a cached file may grow by newBytes to totalBytes, judged by totalBytes;
+     * only the new bytes are counted, either way
+     */
+    public boolean admit(long newBytes, long totalBytes) {
+        if (newBytes <= 0) {
+            return true;
+        }
+        if (mode != ALL && totalBytes > maxBytes) {
+            rejectedBytes.add(newBytes);
+            return false;
+        }
+        if (mode == ADAPTSIZE && ThreadLocalRandom.current().nextDouble() >= Math.exp(-totalBytes / scale)) {
+            bypassedBytes.add(newBytes);
+            return false;
+        }
+        admittedBytes.add(newBytes);
+        return true;
+    }
+
+    public long getAdmittedBytes() {
+        return admittedBytes.sum();
+    }
+
+    public long getBypassedBytes() {
+        return bypassedBytes.sum();
+    }
+
+    public long getRejectedBytes() {
+        return rejectedBytes.sum();
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * ArcPolicy is adaptive replacement on top of the two buckets
+ * onceAccess is T1 (seen once), multiAccess is T2 (seen again), both LRU;
+ * B1 and B2 are the GhostPolicy ghost lists of files evicted from T1 and T2
+ * <p>
+ * a miss that hits B1 means T1 was too small, the T1 target grows; a hit in
+ * B2 shrinks it; either way the file goes straight to T2. Targets are bytes
+ * anywhere in [0, cacheSize], a step is 1% of the cache like one page in ARC
+ */
+public class ArcPolicy extends GhostPolicy {
+
+    public ArcPolicy(long cacheSize, float initialFactor) {
+        super(cacheSize, initialFactor, 0, 1);
+    }
+
+    public String multiOrder() {
+        return "LRU";
+    }
+
+    protected long step(long size) {
+        return Math.max(1, cacheSize / 100);
+    }
+}
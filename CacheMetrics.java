@@ -0,0 +1,198 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * CacheMetrics collects the counters and latencies of one Policy
+ * counters are LongAdders bumped on the open/read path, gauges are read from
+ * the buckets when asked; latencies are only timed with Configuration.latencyMetrics,
+ * two nanoTime calls per operation
+ * <p>
+ * register() publishes it as an MBean, snapshot() returns an immutable copy
+ */
+public class CacheMetrics implements CacheMetricsMBean {
+
+    private final Policy policy;
+    private final float softFillRate;
+    private final float hardFillRate;
+    // whether the open/read path times its operations
+    final boolean timing;
+
+    final LongAdder promotions = new LongAdder();
+    final LongAdder evictedBytes = new LongAdder();
+    final LongAdder bytesRead = new LongAdder();
+    // files prefetched, prefetched files used and prefetched files evicted unused
+    final LongAdder prefetches = new LongAdder();
+    final LongAdder prefetchHits = new LongAdder();
+    final LongAdder prefetchWasted = new LongAdder();
+    // hits that joined a load in flight or fell in a burst window
+    final LongAdder coalesced = new LongAdder();
+    final LatencyHistogram open = new LatencyHistogram();
+    final LatencyHistogram read = new LatencyHistogram();
+    final LatencyHistogram evict = new LatencyHistogram();
+
+    private ObjectName name;
+
+    CacheMetrics(Policy policy, float softFillRate, float hardFillRate, boolean timing) {
+        this.policy = policy;
+        this.softFillRate = softFillRate;
+        this.hardFillRate = hardFillRate;
+        this.timing = timing;
+    }
+
+    /**
+     * register under "CacheRecord:type=Policy,name=" + name with the platform MBean server
+     */
+    public synchronized void register(String cacheName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("CacheRecord:type=Policy,name=" + ObjectName.quote(cacheName));
+        server.registerMBean(this, objectName);
+        this.name = objectName;
+    }
+
+    public synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        name = null;
+    }
+
+    public MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(this);
+    }
+
+    public long getHits() {
+        return policy.getHitCount();
+    }
+
+    public long getMisses() {
+        return policy.getMissCount();
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    public long getPromotions() {
+        return promotions.sum();
+    }
+
+    public long getOnceEvictions() {
+        return policy.onceAccess.getEvictCount();
+    }
+
+    public long getMultiEvictions() {
+        return policy.multiAccess.getEvictCount();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.sum();
+    }
+
+    public long getExpired() {
+        return policy.getExpiredCount();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getPrefetches() {
+        return prefetches.sum();
+    }
+
+    public long getPrefetchHits() {
+        return prefetchHits.sum();
+    }
+
+    public long getPrefetchWasted() {
+        return prefetchWasted.sum();
+    }
+
+    public double getPrefetchAccuracy() {
+        long issued = getPrefetches();
+        return issued == 0 ? 0 : getPrefetchHits() / (double) issued;
+    }
+
+    public double getPrefetchCoverage() {
+        long used = getPrefetchHits();
+        long total = used + getMisses();
+        return total == 0 ? 0 : used / (double) total;
+    }
+
+    public long getCacheSize() {
+        return policy.cacheSize();
+    }
+
+    public long getCachedBytes() {
+        return getOnceBytes() + getMultiBytes();
+    }
+
+    long getOnceBytes() {
+        return policy.onceAccess.getBucketSize();
+    }
+
+    long getMultiBytes() {
+        return policy.multiAccess.getBucketSize();
+    }
+
+    public double getFillRate() {
+        long size = getCacheSize();
+        return size == 0 ? 0 : getCachedBytes() / (double) size;
+    }
+
+    public float getSoftFillRate() {
+        return softFillRate;
+    }
+
+    public float getHardFillRate() {
+        return hardFillRate;
+    }
+
+    public float getSingleFactor() {
+        return policy.getSingleFactor();
+    }
+
+    public long getOpenP50() {
+        return open.percentile(50);
+    }
+
+    public long getOpenP99() {
+        return open.percentile(99);
+    }
+
+    public long getReadP50() {
+        return read.percentile(50);
+    }
+
+    public long getReadP99() {
+        return read.percentile(99);
+    }
+
+    public long getEvictP50() {
+        return evict.percentile(50);
+    }
+
+    public long getEvictP99() {
+        return evict.percentile(99);
+    }
+
+    public void resetLatencies() {
+        open.reset();
+        read.reset();
+        evict.reset();
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * JMX view of CacheMetrics, latencies are in ns
+ */
+public interface CacheMetricsMBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getPromotions();
+
+    long getOnceEvictions();
+
+    long getMultiEvictions();
+
+    long getEvictedBytes();
+
+    long getExpired();
+
+    long getBytesRead();
+
+    /**
+     * hits that joined a load in flight or fell in a burst window
+     */
+    long getCoalesced();
+
+    long getPrefetches();
+
+    long getPrefetchHits();
+
+    long getPrefetchWasted();
+
+    /**
+     * share of prefetched files opened or read before they were evicted
+     */
+    double getPrefetchAccuracy();
+
+    /**
+     * share of would-be misses a prefetch turned into hits
+     */
+    double getPrefetchCoverage();
+
+    long getCacheSize();
+
+    long getCachedBytes();
+
+    double getFillRate();
+
+    float getSoftFillRate();
+
+    float getHardFillRate();
+
+    float getSingleFactor();
+
+    long getOpenP50();
+
+    long getOpenP99();
+
+    long getReadP50();
+
+    long getReadP99();
+
+    long getEvictP50();
+
+    long getEvictP99();
+
+    /**
+     * clear the latency histograms, counters keep counting
+     */
+    void resetLatencies();
+}
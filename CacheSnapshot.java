@@ -0,0 +1,206 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * CacheSnapshot writes the state of both buckets of a Policy to a binary file
+ * and rebuilds a Policy from it, so a restarted service starts warm
+ * <p>
+ * layout: magic int, version int, hitCount long, missCount long, cut count int and
+ * a journal cut long per stripe, then for onceAccess and multiAccess: entry count int
+ * and per entry path length int, path utf-8, size long, accessCount int, lastAccessTime long,
+ * range count int (-1 for a file accounted by size) and start long, end long per range;
+ * entries are in eviction order, next victim first. Version 1 files have no range fields,
+ * versions before 3 no cuts, and still load
+ * <p>
+ * of() copies the values of both buckets under the bucket locks, writeTo()
+ * writes the copy without any lock to a temp file and renames it over the old snapshot
+ */
+public class CacheSnapshot {
+
+    public static final int MAGIC = 0x43534e50;
+    public static final int VERSION = 3;
+
+    private final long hits;
+    private final long misses;
+    private final long[] cuts;
+    private final FileInfo[] once;
+    private final FileInfo[] multi;
+
+    private CacheSnapshot(long hits, long misses, long[] cuts, FileInfo[] once, FileInfo[] multi) {
+        this.hits = hits;
+        this.misses = misses;
+        this.cuts = cuts;
+        this.once = once;
+        this.multi = multi;
+    }
+
+    /**
+     * copy of the counters and both buckets of policy, without cuts: a journal
+     * written meanwhile does not replay exactly on top of it
+     */
+    public static CacheSnapshot of(Policy policy) {
+        return new CacheSnapshot(policy.getHitCount(), policy.getMissCount(), new long[0],
+                policy.onceAccess.snapshotFiles(), policy.multiAccess.snapshotFiles());
+    }
+
+    /**
+     * snapshot of the copies Policy.snapshot took a stripe at a time, with the journal cut
+     * of each stripe
+     */
+    static CacheSnapshot of(long hits, long misses, Files once, Files multi, long[] cuts) {
+        return new CacheSnapshot(hits, misses, cuts, once.inOrder(), multi.inOrder());
+    }
+
+    /**
+     * copies of the files of one bucket gathered a stripe at a time, each with its position
+     * in the eviction order of the bucket when it was copied; put back in that order,
+     * which is exact unless files of the bucket moved between the stripes
+     */
+    static final class Files {
+        private final ArrayList<FileInfo> files = new ArrayList<>();
+        private int[] positions = new int[16];
+
+        void add(FileInfo copy, int position) {
+            if (files.size() == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length << 1);
+            }
+            positions[files.size()] = position;
+            files.add(copy);
+        }
+
+        FileInfo[] inOrder() {
+            final int[] order = positions;
+            Integer[] byOrder = new Integer[files.size()];
+            for (int i = 0; i < byOrder.length; i++) {
+                byOrder[i] = i;
+            }
+            Arrays.sort(byOrder, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Integer.compare(order[a], order[b]);
+                }
+            });
+            FileInfo[] copies = new FileInfo[byOrder.length];
+            for (int i = 0; i < copies.length; i++) {
+                copies[i] = files.get(byOrder[i]);
+            }
+            return copies;
+        }
+    }
+
+    /**
+     * write a snapshot of policy to file, returns the number of entries written
+     */
+    public static long write(Policy policy, File file) throws IOException {
+        return of(policy).writeTo(file);
+    }
+
+    /**
+     * write this copy to file, returns the number of entries written
+     */
+    public long writeTo(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(hits);
+            out.writeLong(misses);
+            out.writeInt(cuts.length);
+            for (long cut : cuts) {
+                out.writeLong(cut);
+            }
+            writeBucket(out, once);
+            writeBucket(out, multi);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+        }
+        return once.length + multi.length;
+    }
+
+    private static void writeBucket(DataOutputStream out, FileInfo[] files) throws IOException {
+        out.writeInt(files.length);
+        for (FileInfo file : files) {
+            byte[] path = file.getFilePath().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(path.length);
+            out.write(path);
+            out.writeLong(file.getFileSize());
+            out.writeInt(file.getAccessCount());
+            out.writeLong(file.getLastAccessMillis());
+            RangeSet ranges = file.getRanges();
+            if (ranges == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(ranges.rangeCount());
+                for (int i = 0; i < ranges.rangeCount(); i++) {
+                    out.writeLong(ranges.startOf(i));
+                    out.writeLong(ranges.endOf(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * load a snapshot into an empty policy, returns the journal cut of each stripe,
+     * empty if the snapshot has none
+     */
+    public static long[] load(Policy policy, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = buf.getInt() == MAGIC ? buf.getInt() : -1;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("not a cache snapshot: " + file);
+            }
+            boolean ranged = version >= 2;
+            policy.restoreCounts(buf.getLong(), buf.getLong());
+            long[] cuts = new long[version >= 3 ? buf.getInt() : 0];
+            for (int i = 0; i < cuts.length; i++) {
+                cuts[i] = buf.getLong();
+            }
+            loadBucket(buf, policy, policy.onceAccess, ranged);
+            loadBucket(buf, policy, policy.multiAccess, ranged);
+            return cuts;
+        }
+    }
+
+    private static void loadBucket(MappedByteBuffer buf, Policy policy, FileBucket bucket, boolean ranged) {
+        int count = buf.getInt();
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int len = buf.getInt();
+            if (len > bytes.length) {
+                bytes = new byte[Math.max(len, bytes.length << 1)];
+            }
+            buf.get(bytes, 0, len);
+            String path = new String(bytes, 0, len, StandardCharsets.UTF_8);
+            long size = buf.getLong();
+            int accessCount = buf.getInt();
+            long lastAccess = buf.getLong();
+            int ranges = ranged ? buf.getInt() : -1;
+            // a ranged file starts empty, its size is the total of its ranges
+            FileInfo file = bucket.newFile(path, ranges < 0 ? size : 0);
+            for (int r = 0; r < ranges; r++) {
+                long start = buf.getLong();
+                file.addRange(start, buf.getLong() - start, 0);
+            }
+            file.restore(accessCount, lastAccess);
+            policy.restoreFile(bucket, file);
+        }
+    }
+}
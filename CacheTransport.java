@@ -0,0 +1,53 @@
+import java.util.List;
+
+/**
+ * CacheTransport carries ShardedCache calls to the Policy of a node
+ * LoopbackTransport calls Policies in this process; an RPC transport would
+ * implement the same calls over the network
+ */
+public interface CacheTransport {
+
+    /**
+     * a cached file moved between nodes on rebalance
+     */
+    final class Entry {
+        public final String path;
+        public final long size;
+        public final int accessCount;
+        public final long lastAccessTime;
+        // true if the file was in multiAccess
+        public final boolean multi;
+
+        public Entry(String path, long size, int accessCount, long lastAccessTime, boolean multi) {
+            this.path = path;
+            this.size = size;
+            this.accessCount = accessCount;
+            this.lastAccessTime = lastAccessTime;
+            this.multi = multi;
+        }
+    }
+
+    void open(String node, String path);
+
+    void read(String node, String path, long size);
+
+    /**
+     * size cached for path on node, -1 if not cached
+     */
+    long cachedSize(String node, String path);
+
+    /**
+     * files cached on node, onceAccess then multiAccess, next victim first
+     */
+    List<Entry> entries(String node);
+
+    /**
+     * drop path from node without counting an eviction
+     */
+    boolean remove(String node, String path);
+
+    /**
+     * take over a file from another node, counted as neither hit nor miss
+     */
+    boolean adopt(String node, Entry entry);
+}
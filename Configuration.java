@@ -3,6 +3,7 @@
  */
 public class Configuration {
     public boolean keepLog;
+    // shared by every Policy built from this Configuration, none of them closes it
     public LOG log;
 
     // max cache size
@@ -20,6 +21,90 @@ public class Configuration {
 
     public final boolean bgThread;
 
+    // block size ranged reads are accounted in, 0 accounts exact byte ranges
+    public long rangeBlockSize = 0;
+
+    // how often the background eviction thread checks the fill rate, in ms
+    public long evictInterval = 1000;
+
+    // index bucket files in a FileTable instead of a ConcurrentHashMap, smaller per entry;
+    // lookups stay lock-free but retry under a read lock when an insert or remove races them,
+    // and inserts and removes serialize on the bucket lock
+    public boolean compactMetadata = false;
+
+    // snapshot file of the cache metadata, restored on start; null turns persistence off
+    public String snapshotPath = null;
+    // time between two snapshots in ms
+    public long snapshotInterval = 10 * 60 * 1000;
+    // journal opens, reads and evictions between snapshots in snapshotPath + ".journal"
+    public boolean journal = false;
+    // time between two flushes of the journal buffer in ms
+    public long journalFlushInterval = 1000;
+
+    // budget of one eviction on the read path: it starts paying off the bytes over
+    // SOFT_FILL_RATE and stops after evictBatch files or evictBudgetMicros, the rest
+    // is left to later calls and the background thread; above HARD_FILL_RATE it
+    // always evicts down to the limit. 0 and 0 evict everything at once
+    public int evictBatch = 0;
+    public long evictBudgetMicros = 0;
+
+    // pick victims by sampling evictionSamples files instead of keeping the buckets in
+    // exact LRU/LFU order, cheaper per access for buckets of millions of files
+    public boolean sampledEviction = false;
+    public int evictionSamples = 5;
+
+    // number of path locks in Policy, rounded down to a power of two
+    public int lockStripes = 64;
+
+    // how files are placed in the buckets: "slru" (the original scheme), "adaptive", "tinylfu" or "arc"
+    public String evictionPolicy = "slru";
+    // adaptive: bounds of the tuned SINGLE_FACTOR
+    public float minSingleFactor = 0.05f;
+    public float maxSingleFactor = 0.95f;
+    // tinylfu: share of the cache the LRU window (onceAccess) gets
+    public float windowFactor = 0.01f;
+    // tinylfu: counters per row of the frequency sketch, rounded up to a power of two
+    public int sketchSize = 1 << 16;
+    // tinylfu: opens between two halvings of the sketch, about ten times the files the cache holds
+    public int sketchSampleSize = 100000;
+
+    // time to live of a cached file from its first access in ms, 0 keeps files until evicted
+    public long defaultTtl = 0;
+    // a cached file not accessed for this many ms expires, 0 turns it off
+    public long defaultIdleTimeout = 0;
+    // granularity of expiry in ms
+    public long expiryTick = 1000;
+
+    // time every open, read and eviction into the CacheMetrics histograms
+    public boolean latencyMetrics = false;
+    // register the CacheMetrics MBean under this name, null does not register
+    public String jmxName = null;
+
+    // directory of the segment files holding the bytes of cached files, null keeps metadata only
+    public String dataDir = null;
+    // size of one mmap segment file, files larger than this are never stored
+    public int dataSegmentSize = 64 << 20;
+    // where cacheFileData fetches the bytes of a miss
+    public DataSource dataSource = null;
+
+    // opens of a file within this many ms of its last counted access are hits that
+    // neither promote it nor count as another access, 0 counts every open
+    public long burstWindow = 0;
+
+    // learn which file is opened after which and load the likely next ones ahead of time
+    public boolean prefetch = false;
+    // opens and reads waiting for the prefetch thread, more are dropped
+    public int prefetchQueue = 1024;
+    // paths the prefetcher remembers successors and sizes for, it starts over when full
+    public int prefetchTableSize = 1 << 20;
+
+    // admission of new bytes on read: "all", "threshold" or "adaptsize"
+    public String admission = "all";
+    // threshold and adaptsize: reads over this share of the cache are never cached
+    public float admissionMaxFraction = 0.1f;
+    // adaptsize: c of the admission probability e^(-size / c) as a share of the cache
+    public float admissionScale = 0.01f;
+
     public Configuration(long size, boolean keepLog, String logPath, float singleFactor, float multiFactor,
                          float minFillRate, float softFillRate, float hardFillRate, boolean bgThread){
         this.CACHE_SIZE = size;
@@ -0,0 +1,118 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ConsistentHashRing maps paths to node names
+ * every node owns virtualNodes points on a 64-bit ring, a path belongs to the
+ * first point at or after its hash; adding or removing a node only moves the
+ * paths next to that node's points, about 1/N of them
+ * <p>
+ * lookups read an immutable sorted array and never lock,
+ * addNode and removeNode build a new one
+ */
+public class ConsistentHashRing {
+
+    private static final class Ring {
+        final long[] points;
+        final String[] owners;
+        final List<String> nodes;
+
+        Ring(long[] points, String[] owners, List<String> nodes) {
+            this.points = points;
+            this.owners = owners;
+            this.nodes = nodes;
+        }
+    }
+
+    private final int virtualNodes;
+    private volatile Ring ring = new Ring(new long[0], new String[0], Collections.<String>emptyList());
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    public synchronized boolean addNode(String node) {
+        List<String> nodes = new ArrayList<>(ring.nodes);
+        if (nodes.contains(node)) {
+            return false;
+        }
+        nodes.add(node);
+        rebuild(nodes);
+        return true;
+    }
+
+    public synchronized boolean removeNode(String node) {
+        List<String> nodes = new ArrayList<>(ring.nodes);
+        if (!nodes.remove(node)) {
+            return false;
+        }
+        rebuild(nodes);
+        return true;
+    }
+
+    /**
+     * node owning path, null while the ring is empty
+     */
+    public String ownerOf(String path) {
+        Ring r = ring;
+        if (r.points.length == 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(r.points, hash(path));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return r.owners[i == r.points.length ? 0 : i];
+    }
+
+    public List<String> nodes() {
+        return ring.nodes;
+    }
+
+    private void rebuild(List<String> nodes) {
+        int n = nodes.size() * virtualNodes;
+        long[] keys = new long[n];
+        String[] byKey = new String[n];
+        Integer[] order = new Integer[n];
+        int k = 0;
+        for (String node : nodes) {
+            for (int v = 0; v < virtualNodes; v++) {
+                keys[k] = hash(node + "#" + v);
+                byKey[k] = node;
+                order[k] = k;
+                k++;
+            }
+        }
+        final long[] sortKeys = keys;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sortKeys[a], sortKeys[b]);
+            }
+        });
+        long[] points = new long[n];
+        String[] owners = new String[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = keys[order[i]];
+            owners[i] = byKey[order[i]];
+        }
+        ring = new Ring(points, owners, Collections.unmodifiableList(nodes));
+    }
+
+    // 64-bit FNV-1a of the chars, finished with the murmur3 mixer
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
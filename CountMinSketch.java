@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CountMinSketch estimates how often a path was seen, in a fixed amount of memory
+ * four rows of small counters, the estimate is the minimum over the rows;
+ * counters stop at 15 and are all halved after sampleSize increments, so old
+ * popularity fades
+ * <p>
+ * counts are approximate under contention: counter updates are plain writes, so an
+ * increment racing another one or a halving may be lost and an estimate read
+ * during a halving may mix old and new rows. The number of increments since the
+ * last halving is exact and only one thread halves at a time, so popularity never
+ * fades faster than once per sampleSize increments
+ */
+public class CountMinSketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private final int[][] rows;
+    private final int mask;
+    private final int sampleSize;
+    // increments since the last halving
+    private final AtomicInteger additions = new AtomicInteger();
+    // set while one thread halves the counters
+    private final AtomicBoolean aging = new AtomicBoolean();
+
+    public CountMinSketch(int width, int sampleSize) {
+        int w = Integer.highestOneBit(Math.max(16, width - 1)) << 1;
+        rows = new int[DEPTH][w];
+        mask = w - 1;
+        this.sampleSize = Math.max(1, sampleSize);
+    }
+
+    public void increment(String key) {
+        int h = key.hashCode();
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int[] row = rows[i];
+            int slot = index(h, i);
+            if (row[slot] < MAX_COUNT) {
+                row[slot]++;
+                added = true;
+            }
+        }
+        if (added && additions.incrementAndGet() >= sampleSize) {
+            age();
+        }
+    }
+
+    public int frequency(String key) {
+        int h = key.hashCode();
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, rows[i][index(h, i)]);
+        }
+        return min;
+    }
+
+    // increments counted toward the next halving
+    int pending() {
+        return additions.get();
+    }
+
+    // halve every counter once per sampleSize increments; a thread finding another one
+    // halving returns, the halving thread rechecks the count before it stops
+    private void age() {
+        while (additions.get() >= sampleSize && aging.compareAndSet(false, true)) {
+            try {
+                if (additions.get() < sampleSize) {
+                    return;
+                }
+                for (int[] row : rows) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>>= 1;
+                    }
+                }
+                additions.addAndGet(-sampleSize);
+            } finally {
+                aging.set(false);
+            }
+        }
+    }
+
+    private int index(int h, int row) {
+        h *= SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
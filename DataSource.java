@@ -0,0 +1,20 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * DataSource is where the bytes of a file not cached yet come from,
+ * HDFS or S3 in production, LocalDirectorySource in tests
+ */
+public interface DataSource {
+
+    /**
+     * size of path in bytes
+     */
+    long length(String path) throws IOException;
+
+    /**
+     * fill dst with the bytes of path from offset on, until dst has no room left
+     * or the file ends; returns the number of bytes read
+     */
+    int read(String path, long offset, ByteBuffer dst) throws IOException;
+}
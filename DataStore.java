@@ -0,0 +1,382 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DataStore holds the bytes of cached files in memory-mapped segment files
+ * <p>
+ * segments are preallocated files of segmentSize bytes mapped read/write,
+ * created on demand; each file is one extent of a segment, found first fit
+ * in the free extents of the segments, which are merged with their neighbours
+ * when an extent is freed. get() returns a read-only slice of the mapping,
+ * nothing is copied
+ * <p>
+ * as an EvictionListener of a Policy it frees the extent of every evicted file,
+ * after the other listeners ran, so they may still pin it. A Slice pins its extent:
+ * a freed extent goes back to its segment once the last Slice of it is closed,
+ * so the bytes of a Slice never change under its reader
+ */
+public class DataStore implements EvictionListener {
+
+    // extents start and end on multiples of this
+    private static final int ALIGN = 8;
+
+    private static final class Segment {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+        // free extents offset -> length, never two adjacent ones
+        final TreeMap<Integer, Integer> free = new TreeMap<>();
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            this.channel = raf.getChannel();
+            this.buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            free.put(0, size);
+        }
+    }
+
+    private static final class Extent {
+        final Segment segment;
+        final int offset;
+        // bytes of the file and bytes taken from the segment
+        final int length;
+        final int capacity;
+        // open Slices of this extent, and whether its file is gone from the store
+        int pins;
+        boolean freed;
+
+        Extent(Segment segment, int offset, int length, int capacity) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.capacity = capacity;
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Extent> extents = new HashMap<>();
+    // bytes taken by extents, with alignment, freed ones included until their last Slice is closed
+    private long usedBytes;
+    // open Slices of a closed store give nothing back
+    private boolean closed;
+
+    // files and bytes pulled from a DataSource
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder fetchedBytes = new LongAdder();
+
+    /**
+     * a store of about capacity bytes in segments of segmentSize under dir,
+     * one spare segment absorbs fragmentation
+     */
+    public DataStore(File dir, int segmentSize, long capacity) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize / ALIGN * ALIGN;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, (capacity + segmentSize - 1) / segmentSize + 1);
+        dir.mkdirs();
+    }
+
+    /**
+     * read-only bytes of a file, pinned in the store until closed; a Slice of bytes
+     * not held by the store, like a file too large to store, pins nothing
+     * <p>
+     * close it once done reading, an open Slice keeps its extent from being reused
+     */
+    public static final class Slice implements AutoCloseable {
+        private final DataStore store;
+        private final Extent extent;
+        private final ByteBuffer bytes;
+        private boolean closed;
+
+        private Slice(DataStore store, Extent extent, ByteBuffer bytes) {
+            this.store = store;
+            this.extent = extent;
+            this.bytes = bytes;
+        }
+
+        /**
+         * a Slice of bytes held outside any store
+         */
+        public static Slice of(ByteBuffer bytes) {
+            return new Slice(null, null, bytes.asReadOnlyBuffer());
+        }
+
+        /**
+         * the bytes, a new read-only buffer on each call; only valid until close
+         */
+        public ByteBuffer bytes() {
+            return bytes.duplicate();
+        }
+
+        public int length() {
+            return bytes.remaining();
+        }
+
+        /**
+         * another Slice of the same bytes for another reader, null if the bytes
+         * were freed and are no longer pinned by anyone
+         */
+        public Slice share() {
+            if (store == null) {
+                return this;
+            }
+            synchronized (store) {
+                if (store.closed || (extent.freed && extent.pins == 0)) {
+                    return null;
+                }
+                return store.pin(extent);
+            }
+        }
+
+        public void close() {
+            if (store == null) {
+                return;
+            }
+            synchronized (store) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (--extent.pins == 0 && extent.freed && !store.closed) {
+                    store.release(extent);
+                }
+            }
+        }
+    }
+
+    /**
+     * the cached bytes of path pinned until the Slice is closed, null if not stored
+     */
+    public synchronized Slice get(String path) {
+        Extent e = extents.get(path);
+        return e == null ? null : pin(e);
+    }
+
+    public synchronized boolean contains(String path) {
+        return extents.containsKey(path);
+    }
+
+    /**
+     * fetch length bytes of path from source into a new extent and return them,
+     * the stored bytes if path is already here; null if no segment has room or the
+     * store is closed, the caller then reads past the store
+     */
+    public Slice load(String path, long length, DataSource source) throws IOException {
+        Extent e;
+        synchronized (this) {
+            Extent old = extents.get(path);
+            if (old != null) {
+                return pin(old);
+            }
+            e = allocate(length);
+            if (e == null) {
+                return null;
+            }
+        }
+        // the extent is not visible yet, fill it without the lock
+        try {
+            ByteBuffer dst = e.segment.buf.duplicate();
+            dst.limit(e.offset + e.length);
+            dst.position(e.offset);
+            int n = source.read(path, 0, dst.slice());
+            if (n != e.length) {
+                throw new IOException(path + ": read " + n + " of " + e.length + " bytes");
+            }
+        } catch (IOException | RuntimeException ex) {
+            synchronized (this) {
+                if (!closed) {
+                    release(e);
+                }
+            }
+            throw ex;
+        }
+        fetches.increment();
+        fetchedBytes.add(e.length);
+        return publish(path, e);
+    }
+
+    /**
+     * store the remaining bytes of src as path without a fetch, the stored bytes if
+     * path is already here; null if no segment has room or the store is closed.
+     * Tiers move files with it
+     */
+    public Slice put(String path, ByteBuffer src) throws IOException {
+        Extent e;
+        synchronized (this) {
+            Extent old = extents.get(path);
+            if (old != null) {
+                return pin(old);
+            }
+            e = allocate(src.remaining());
+            if (e == null) {
+                return null;
+            }
+        }
+        ByteBuffer dst = e.segment.buf.duplicate();
+        dst.limit(e.offset + e.length);
+        dst.position(e.offset);
+        dst.put(src.duplicate());
+        return publish(path, e);
+    }
+
+    // make the filled extent e the bytes of path, unless another load of path won;
+    // pinned for the caller, null if the store was closed meanwhile
+    private synchronized Slice publish(String path, Extent e) {
+        if (closed) {
+            // closed while we filled e, its segment is gone
+            return null;
+        }
+        Extent old = extents.get(path);
+        if (old != null) {
+            release(e);
+            return pin(old);
+        }
+        extents.put(path, e);
+        return pin(e);
+    }
+
+    // caller holds the store lock
+    private Slice pin(Extent e) {
+        e.pins++;
+        return new Slice(this, e, slice(e));
+    }
+
+    /**
+     * drop path from the store, false if it is not stored; its extent goes back
+     * to its segment when no Slice pins it any more
+     */
+    public synchronized boolean free(String path) {
+        Extent e = extents.remove(path);
+        if (e == null) {
+            return false;
+        }
+        e.freed = true;
+        if (e.pins == 0) {
+            release(e);
+        }
+        return true;
+    }
+
+    public void onEvict(FileBucket from, FileInfo victim) {
+        free(victim.getFilePath());
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getFileCount() {
+        return extents.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getFetchCount() {
+        return fetches.sum();
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes.sum();
+    }
+
+    /**
+     * drop every extent, close and delete the segment files; bytes of open Slices
+     * stay readable until the mappings are collected
+     */
+    public synchronized void close() {
+        closed = true;
+        extents.clear();
+        usedBytes = 0;
+        for (Segment s : segments) {
+            try {
+                s.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            s.file.delete();
+        }
+        segments.clear();
+    }
+
+    private ByteBuffer slice(Extent e) {
+        ByteBuffer b = e.segment.buf.duplicate();
+        b.limit(e.offset + e.length);
+        b.position(e.offset);
+        return b.slice().asReadOnlyBuffer();
+    }
+
+    // first fit over the segments, a new segment if none has room
+    private Extent allocate(long length) throws IOException {
+        if (closed || length < 0 || length > segmentSize) {
+            return null;
+        }
+        int capacity = (int) Math.max(ALIGN, (length + ALIGN - 1) / ALIGN * ALIGN);
+        for (Segment s : segments) {
+            Extent e = allocate(s, (int) length, capacity);
+            if (e != null) {
+                return e;
+            }
+        }
+        if (segments.size() >= maxSegments) {
+            return null;
+        }
+        Segment s = new Segment(new File(dir, "segment-" + segments.size()), segmentSize);
+        segments.add(s);
+        return allocate(s, (int) length, capacity);
+    }
+
+    private Extent allocate(Segment s, int length, int capacity) {
+        for (Map.Entry<Integer, Integer> f : s.free.entrySet()) {
+            int offset = f.getKey();
+            int free = f.getValue();
+            if (free >= capacity) {
+                s.free.remove(offset);
+                if (free > capacity) {
+                    s.free.put(offset + capacity, free - capacity);
+                }
+                usedBytes += capacity;
+                return new Extent(s, offset, length, capacity);
+            }
+        }
+        return null;
+    }
+
+    // return e to the free extents of its segment, merged with the free neighbours
+    private void release(Extent e) {
+        TreeMap<Integer, Integer> free = e.segment.free;
+        int offset = e.offset;
+        int length = e.capacity;
+        Map.Entry<Integer, Integer> prev = free.floorEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            offset = prev.getKey();
+            length += prev.getValue();
+            free.remove(offset);
+        }
+        Integer next = free.get(offset + length);
+        if (next != null) {
+            free.remove(offset + length);
+            length += next;
+        }
+        free.put(offset, length);
+        usedBytes -= e.capacity;
+    }
+}
@@ -1,10 +1,19 @@
 /**
  * A common thread
+ * <p>
+ * With a cache it runs as the background eviction daemon: once fill passes
+ * SOFT_FILL_RATE it evicts until the cache is back under MIN_FILL_RATE,
+ * it wakes up every interval or when the read path signals it;
+ * expired files are dropped first on every pass
  */
 public class EvictThread implements Runnable {
     private Thread thread;
     private String threadName;
     private Policy cache;
+    // sleep between two checks when nobody signals, in ms
+    private long interval = 10000;
+    private volatile boolean running = true;
+    private volatile boolean signalled = false;
 
     public EvictThread(String name){
         thread =  new Thread(this, name);
@@ -13,23 +22,67 @@ public class EvictThread implements Runnable {
     }
 
     public EvictThread(Policy cache){
+        this(cache, 10000);
+    }
+
+    public EvictThread(Policy cache, long interval){
         this.cache = cache;
-        thread =  new Thread(this);
+        this.interval = interval;
+        thread =  new Thread(this, "cache-evict");
+        thread.setDaemon(true);
     }
 
     public void run(){
-        synchronized (this){
-            try{
-                this.wait(10000);
-            }catch(InterruptedException e){
-                Thread.currentThread().interrupt();
+        while (running) {
+            synchronized (this){
+                try{
+                    if (!signalled) {
+                        this.wait(interval);
+                    }
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                signalled = false;
             }
-            if(cache != null){
-                cache.evict(cache.overflow());
+            if(cache != null && running){
+                cache.expire();
+                long toFree = cache.backgroundOverflow();
+                if (toFree > 0) {
+                    cache.evict(toFree);
+                }
             }
         }
     }
 
+    /**
+     * ask the daemon to check the cache now, cheap if a signal is already pending
+     */
+    public void wakeUp(){
+        if (signalled) {
+            return;
+        }
+        synchronized (this){
+            signalled = true;
+            this.notify();
+        }
+    }
+
+    /**
+     * stop the loop and wait for the thread to finish the current pass
+     */
+    public void shutdown(){
+        running = false;
+        synchronized (this){
+            this.notify();
+        }
+        try{
+            thread.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void start(){
         thread.start();
     }
@@ -0,0 +1,8 @@
+/**
+ * EvictionListener is told about every file a FileBucket evicts
+ * it is called under the bucket lock, after the file left the bucket
+ */
+public interface EvictionListener {
+
+    void onEvict(FileBucket from, FileInfo victim);
+}
@@ -0,0 +1,67 @@
+/**
+ * EvictionPolicy decides how Policy places files in its two buckets
+ * onceAccess takes new files, multiAccess the files worth keeping;
+ * the policy picks the order of multiAccess, the share of the cache onceAccess
+ * aims for during eviction, and which files may enter multiAccess
+ * <p>
+ * implementations are called concurrently from reader threads,
+ * onEvict runs under the lock of the bucket that evicted;
+ * cacheFull is true once the cache is past MIN_FILL_RATE, so an admission may cost an eviction
+ * <p>
+ * slru: the original scheme, fixed SINGLE_FACTOR, promote on the second access
+ * tinylfu: W-TinyLFU, small LRU window plus a count-min sketch admission filter
+ * adaptive: slru with SINGLE_FACTOR tuned by hits on ghosts of evicted files
+ * arc: adaptive replacement, ghost hits move the onceAccess target
+ */
+public interface EvictionPolicy extends EvictionListener {
+
+    /**
+     * order of the multiAccess bucket, "LFU" or "LRU"
+     */
+    String multiOrder();
+
+    /**
+     * share of the cache onceAccess should keep after an eviction, 0..1
+     */
+    float singleFactor();
+
+    /**
+     * every open of path, before the buckets are looked up
+     */
+    void recordAccess(String path);
+
+    /**
+     * candidate in onceAccess was hit again, true moves it to multiAccess,
+     * false keeps it in onceAccess as most recently used
+     */
+    boolean promoteOnHit(FileInfo candidate, FileBucket multi, boolean cacheFull);
+
+    /**
+     * path is in no bucket, true puts the new file straight into multiAccess
+     */
+    boolean admitOnMiss(String path, FileBucket multi, boolean cacheFull);
+
+    /**
+     * the buckets of the Policy using this one, before any other call;
+     * onEvict tells them apart by identity
+     */
+    default void attach(FileBucket onceAccess, FileBucket multiAccess) {
+    }
+
+    /**
+     * build the policy named in conf.evictionPolicy
+     */
+    static EvictionPolicy forName(String name, Configuration conf) {
+        String key = name == null ? "slru" : name.toLowerCase();
+        if (key.equals("slru")) {
+            return new SegmentedPolicy(conf.SINGLE_FACTOR);
+        } else if (key.equals("tinylfu")) {
+            return new TinyLfuPolicy(conf.windowFactor, conf.sketchSize, conf.sketchSampleSize);
+        } else if (key.equals("adaptive")) {
+            return new AdaptivePolicy(conf.CACHE_SIZE, conf.SINGLE_FACTOR, conf.minSingleFactor, conf.maxSingleFactor);
+        } else if (key.equals("arc")) {
+            return new ArcPolicy(conf.CACHE_SIZE, conf.SINGLE_FACTOR);
+        }
+        throw new IllegalArgumentException("evict policy not existed: " + name);
+    }
+}
@@ -5,162 +5,367 @@ import java.util.concurrent.ConcurrentHashMap;
  * FileBucket is a bucket of files
  * size: size of all files in this bucket
  * priority: onceAccess, multiAccess or inMemory
+ * <p>
+ * all changes to files and size happen under the bucket monitor,
+ * lookups go to the concurrent map or the FileTable without locking
+ * <p>
+ * a PrefixIndex sums bytes and files per directory as files come, change and go;
+ * top() scans the files without holding the bucket lock for the whole scan
  */
 public class FileBucket {
 
     // onceAccess, multiAccess or inMemory
     protected final String priority;
-    // total size of all files in this bucket
-    private long size;
+    // total size of all files in this bucket, written under the bucket lock
+    private volatile long size;
+    // number of files evicted from this bucket
+    private volatile long evictCount;
+    // number of files dropped because their expiry deadline passed
+    private volatile long expiredCount;
     // max size this bucket can be
     private final long MAX_SIZE;
     // all files in this bucket, policy can be "LFU" or "LRU"
-    protected Queue<FileInfo> files;
-    // map <fileName, FileInfo>
+    protected FileQueue files;
+    // map <fileName, FileInfo>, a FileTable when compact
     private Map<String, FileInfo> map;
+    // a FileTable of FileTable.Entry files instead of a concurrent map of FileInfo.of files
+    private final boolean compact;
     // log
     protected LOG log;
+    // journal of evictions since the last snapshot, null when off
+    protected volatile Journal journal;
+    // told about every evicted file, null when nobody listens
+    protected volatile EvictionListener listener;
+    // bytes and files per directory
+    protected final PrefixIndex index = new PrefixIndex();
+    private final String evictPrefix;
+    // files a compact bucket scans per hold of its lock
+    private static final int SCAN_CHUNK = 1024;
+    private final String expirePrefix;
 
     public FileBucket(long maxSize, String priority, String policy) {
+        this(maxSize, priority, policy, false);
+    }
+
+    public FileBucket(long maxSize, String priority, String policy, boolean compact) {
+        this(maxSize, priority, policy, compact, SampledQueue.SAMPLES);
+    }
+
+    /**
+     * policy is "LFU", "LRU", "SAMPLED-LRU" or "SAMPLED-LFU", the sampled ones look at
+     * samples files per victim
+     */
+    public FileBucket(long maxSize, String priority, String policy, boolean compact, int samples) {
         this.priority = new String(priority);
+        this.compact = compact;
+        this.evictPrefix = "From " + priority + " evict ";
+        this.expirePrefix = "From " + priority + " expire ";
         this.MAX_SIZE = maxSize;
         this.size = 0;
-        this.map = new ConcurrentHashMap<>();
+        this.map = compact ? new FileTable() : new ConcurrentHashMap<String, FileInfo>();
         if (policy.toLowerCase().equals("lfu")) {
-            this.files = new PriorityQueue<FileInfo>(1, new FileComparatorLFU());
+            this.files = new LFUQueue();
         } else if (policy.toLowerCase().equals("lru")) {
-            this.files = new LinkedList<FileInfo>();
+            this.files = new LRUQueue();
+        } else if (policy.toLowerCase().equals("sampled-lru")) {
+            this.files = new SampledQueue(false, samples, priority.hashCode());
+        } else if (policy.toLowerCase().equals("sampled-lfu")) {
+            this.files = new SampledQueue(true, samples, priority.hashCode());
         } else {
-            dbgUtility.dbg_print("evict policy not existed");
+            throw new IllegalArgumentException("evict policy not existed: " + policy);
         }
     }
 
     protected synchronized FileInfo evitOneFile() {
         if (this.files == null) return null;
-        if (this.files instanceof LinkedList) {
-            FileInfo victim = (FileInfo) ((LinkedList) (this.files)).poll();
-            return victim;
-        } else if (this.files instanceof PriorityQueue) {
-            return (FileInfo) ((PriorityQueue) (this.files)).poll();
-        } else {
-            return null;
-        }
+        return this.files.poll();
     }
 
+    /**
+     * evict unpinned files until toFree bytes are freed or only pinned files are left
+     */
     public long evict(long toFree) {
+        return evict(toFree, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * like evict(toFree), but stop after maxFiles files or once System.nanoTime()
+     * passes deadline, 0 for no deadline
+     */
+    public synchronized long evict(long toFree, int maxFiles, long deadline) {
+        if (dbgUtility.DEBUG) dbgUtility.dbg_print("evict " + priority + ": " + toFree);
         long freed = 0;
-        while (freed < toFree && this.size > 0) {
-            FileInfo victimFile = evitOneFile();
+        int evicted = 0;
+        while (freed < toFree && this.size > 0 && evicted < maxFiles
+                && (deadline == 0 || evicted == 0 || System.nanoTime() - deadline < 0)) {
+            FileInfo victimFile = files.pollUnpinned();
+            if (victimFile == null) {
+                break;
+            }
             long evictSize = victimFile.getFileSize();
             String fileName = victimFile.getFilePath();
-            System.out.println("From " + priority + " evict" + fileName);
+            if (dbgUtility.DEBUG) dbgUtility.dbg_print("From " + priority + " evict " + fileName);
             if (log.keepLog) {
-                log.logPrint("From " + priority + " evict" + fileName);
+                log.logPrint(evictPrefix, fileName);
             }
-            freed += evictSize;
+            Journal j = journal;
+            if (j != null) {
+                j.evict(fileName);
+            }
+            index.remove(victimFile);
             map.remove(fileName);
+            freed += evictSize;
             this.size -= evictSize;
+            evictCount++;
+            evicted++;
+            EvictionListener l = listener;
+            if (l != null) {
+                l.onEvict(this, victimFile);
+            }
         }
-        dbgUtility.dbg_print("evict from bucket: " + freed);
-        dbgUtility.dbg_requires(toFree <= freed, dbgUtility.curLine());
+        if (dbgUtility.DEBUG) dbgUtility.dbg_print("Freed from " + priority + ": " + freed);
         return freed;
     }
 
-    public long evict(long toFree, String currentFileName) {
-        dbgUtility.dbg_print("evict " + priority + ": " + toFree);
-        if (currentFileName == null) {
-            return evict(toFree);
+    /**
+     * the file evict would take next, null if the bucket is empty
+     */
+    public synchronized FileInfo peekVictim() {
+        return files.peek();
+    }
+
+    /**
+     * drop file if it is still here, unpinned and its deadline is passed at now
+     */
+    public synchronized boolean expire(FileInfo file, long deadline, long now) {
+        if (deadline == 0 || deadline > now || file.pins > 0 || !this.contains(file)) {
+            return false;
         }
-        long freed = 0;
-        FileInfo temp = null;
-        while (freed < toFree && this.size > 0) {
-            FileInfo victimFile = evitOneFile();
-            dbgUtility.dbg_requires(victimFile != null, dbgUtility.curLine());
-            long evictSize = victimFile.getFileSize();
-            String fileName = victimFile.getFilePath();
-            if (fileName.equals(currentFileName)) {
-                temp = victimFile;
-            } else {
-                System.out.println("From " + priority + " evict " + fileName);
-                if (log.keepLog) {
-                    log.logPrint("From " + priority + " evict " + fileName);
-                }
-                map.remove(fileName);
-                freed += evictSize;
-                this.size -= evictSize;
-            }
-            if (currentFileName != null && this.contains(currentFileName)
-                    && this.getFile(currentFileName).getFileSize() == this.size) {
-                break;
-            }
+        String fileName = file.getFilePath();
+        if (log.keepLog) {
+            log.logPrint(expirePrefix, fileName);
         }
-        if (temp != null) {
-            files.add(temp);
+        Journal j = journal;
+        if (j != null) {
+            j.evict(fileName);
         }
-        dbgUtility.dbg_print("Freed from " + priority + ": " + freed);
-        return freed;
+        files.remove(file);
+        index.remove(file);
+        size -= file.getFileSize();
+        map.remove(fileName);
+        expiredCount++;
+        return true;
     }
 
     public boolean contains(String fileName) {
-        return map.containsKey(fileName);
+        return lookup(fileName) != null;
     }
 
     public boolean contains(FileInfo curFile) {
-        return map.containsValue(curFile);
+        return lookup(curFile.getFilePath()) == curFile;
     }
 
     public FileInfo getFile(String name) {
+        return lookup(name);
+    }
+
+    // both maps are read without the bucket lock
+    private FileInfo lookup(String name) {
         return map.get(name);
     }
 
-    public void addFile(FileInfo file) {
+    /**
+     * a new file of the kind this bucket keeps, not added yet
+     */
+    public FileInfo newFile(String path, long size) {
+        return compact ? new FileTable.Entry(path, size) : FileInfo.of(path, size);
+    }
+
+    /**
+     * look up a file and pin it so eviction skips it, null if not in this bucket
+     */
+    public synchronized FileInfo pin(String name) {
+        FileInfo file = map.get(name);
+        if (file != null) {
+            file.pins++;
+        }
+        return file;
+    }
+
+    public synchronized void unpin(FileInfo file) {
+        dbgUtility.dbg_requires(file.pins > 0);
+        file.pins--;
+    }
+
+    public synchronized void addFile(FileInfo file) {
         String key = file.getFilePath();
         map.put(key, file);
         files.add(file);
+        index.add(file);
+        size += file.getFileSize();
+    }
+
+    /**
+     * add file as the next victim, other orders than LRU place it as usual
+     */
+    public synchronized void addFileFirst(FileInfo file) {
+        String key = file.getFilePath();
+        map.put(key, file);
+        if (files instanceof LRUQueue) {
+            ((LRUQueue) files).offerFirst(file);
+        } else {
+            files.add(file);
+        }
+        index.add(file);
         size += file.getFileSize();
     }
 
-    public void renewFile(FileInfo curFile, FileInfo.Range range) {
-        dbgUtility.dbg_requires(this.contains(curFile), dbgUtility.curLine());
+    /**
+     * add a byte range to curFile, the bucket size grows by the newly covered bytes only
+     */
+    public synchronized boolean renewRange(FileInfo curFile, long offset, long length, long blockSize) {
+        if (!this.contains(curFile)) return false;
         long preSize = curFile.getFileSize();
-        curFile.range.mergeRange(range);
-        curFile.access(curFile.range.length, range);
         files.remove(curFile);
         size -= preSize;
+        curFile.addRange(offset, length, blockSize);
         files.add(curFile);
+        index.resize(curFile, curFile.getFileSize() - preSize);
         size += curFile.getFileSize();
+        return true;
     }
 
-    public void renewFile(FileInfo curFile, long newSize) {
-        dbgUtility.dbg_requires(this.contains(curFile), dbgUtility.curLine());
+    public synchronized boolean renewFile(FileInfo curFile, long newSize) {
+        if (!this.contains(curFile)) return false;
         long preSize = curFile.getFileSize();
         files.remove(curFile);
         size -= preSize;
         curFile.changeSize(newSize);
         files.add(curFile);
+        index.resize(curFile, curFile.getFileSize() - preSize);
         size += curFile.getFileSize();
+        return true;
     }
 
-    public void accessFile(FileInfo curFile) {
-        dbgUtility.dbg_requires(this.contains(curFile), dbgUtility.curLine());
+    /**
+     * count an access of curFile, false if it was evicted in the meantime
+     */
+    public synchronized boolean accessFile(FileInfo curFile) {
+        if (!this.contains(curFile)) return false;
         files.remove(curFile);
         curFile.access();
         files.add(curFile);
+        return true;
     }
 
-    public FileInfo remove(FileInfo file) {
+    public synchronized FileInfo remove(FileInfo file) {
         String path = file.getFilePath();
-        if (!this.contains(path)) {
+        if (!this.contains(file)) {
             return null;
         } else {
-            map.remove(path);
             files.remove(file);
+            index.remove(file);
             size -= file.getFileSize();
+            map.remove(path);
             return file;
         }
     }
 
-    public void printBucket() {
+    /**
+     * copies of the files in eviction order, next victim first, with their ranges
+     * the values are those at one point in time, taken under the bucket lock
+     */
+    public synchronized FileInfo[] snapshotFiles() {
+        FileInfo[] copies = new FileInfo[files.size()];
+        int i = 0;
+        for (FileInfo file : files) {
+            copies[i++] = snapshotOf(file);
+        }
+        return copies;
+    }
+
+    /**
+     * add to into the copies of the files in the given one of stripes, as Policy stripes
+     * paths, with their positions in eviction order; the caller holds that stripe,
+     * so only eviction changes them meanwhile
+     */
+    public synchronized void snapshotFiles(int stripes, int stripe, CacheSnapshot.Files into) {
+        int position = 0;
+        for (FileInfo file : files) {
+            if (Policy.stripeOf(file.getFilePath(), stripes) == stripe) {
+                into.add(snapshotOf(file), position);
+            }
+            position++;
+        }
+    }
+
+    // caller holds this
+    private FileInfo snapshotOf(FileInfo file) {
+        FileInfo copy = copyOf(file);
+        if (file.ranges != null) {
+            copy.ranges = file.ranges.copy();
+        }
+        return copy;
+    }
+
+    /**
+     * bytes and files of this bucket under the directory prefix
+     */
+    public PrefixIndex.Usage usage(String prefix) {
+        return index.usage(prefix);
+    }
+
+    /**
+     * copies of the k files largest by order, largest first
+     * weakly consistent: the bucket lock is held for a chunk of files at a time at most,
+     * files changing during the scan may or may not be seen
+     */
+    public List<FileInfo> top(int k, Comparator<FileInfo> order) {
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<FileInfo> heap = new PriorityQueue<>(Math.min(k, 1024), order);
+        if (!compact) {
+            for (FileInfo file : map.values()) {
+                offerCopy(heap, file, k, order);
+            }
+        } else {
+            FileTable table = (FileTable) map;
+            int from = 0;
+            boolean more = true;
+            while (more) {
+                synchronized (this) {
+                    int to = Math.min(from + SCAN_CHUNK, table.idBound());
+                    for (int id = from; id < to; id++) {
+                        FileInfo file = table.fileOf(id);
+                        if (file != null) {
+                            offerCopy(heap, file, k, order);
+                        }
+                    }
+                    from = to;
+                    more = to < table.idBound();
+                }
+            }
+        }
+        return PrefixIndex.drain(heap);
+    }
+
+    // copy file into the heap if it makes the top k, compared live first so the files
+    // that do not are never copied; offer compares the copy again
+    private static void offerCopy(PriorityQueue<FileInfo> heap, FileInfo file, int k, Comparator<FileInfo> order) {
+        if (heap.size() < k || order.compare(file, heap.peek()) > 0) {
+            PrefixIndex.offer(heap, copyOf(file), k, order);
+        }
+    }
+
+    // a detached copy, so the heap does not see counters change under it
+    private static FileInfo copyOf(FileInfo file) {
+        FileInfo copy = FileInfo.of(file.getFilePath(), file.getFileSize());
+        copy.setAccess(file.getAccessCount(), file.getLastAccessNanos());
+        return copy;
+    }
+
+    public synchronized void printBucket() {
         System.out.println("Bucket: " + priority + "total size: " + size);
         for (FileInfo file : files) {
             System.out.println(file.getFilePath() + " " + file.getFileSize());
@@ -171,19 +376,15 @@ public class FileBucket {
         return this.size;
     }
 
-    protected long overflow() {
-        return size > MAX_SIZE ? size - MAX_SIZE : 0;
+    public long getEvictCount() {
+        return this.evictCount;
     }
 
-    class FileComparatorLFU implements Comparator<FileInfo> {
-        public int compare(FileInfo o1, FileInfo o2) {
-            int cnt1 = o1.getAccessCount();
-            int cnt2 = o2.getAccessCount();
-            if (cnt1 != cnt2) {
-                return cnt1 > cnt2 ? 1 : -1;
-            } else {
-                return o1.getFileSize() > o2.getFileSize() ? -1 : 1;
-            }
-        }
+    public long getExpiredCount() {
+        return this.expiredCount;
+    }
+
+    protected long overflow() {
+        return size > MAX_SIZE ? size - MAX_SIZE : 0;
     }
 }
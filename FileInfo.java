@@ -4,69 +4,118 @@ import java.util.Date;
  * Information of file:
  * path: path of file
  * size: size of file kept in file system
- * range: range of file, not used
- * last access time: time of last time acces
+ * ranges: byte ranges of the file held in the cache, null while the whole file
+ *         is accounted by size
+ * last access time: System.nanoTime() of the last access
  * total access count: count of total access number
+ * <p>
+ * FileInfo.of keeps size, access count and last access in fields of the object,
+ * a FileTable.Entry in the primitive arrays of the table holding it. State of
+ * optional features (expiry, sampled eviction, prefetch) lives in side tables
+ * of the feature, not here
  */
-public class FileInfo {
+public abstract class FileInfo {
 
     // max size of one file
-    protected final long MAX_SIZE = Integer.MAX_VALUE;
-    // size of current file
-    protected long size;
-    // last access time
-    protected Date lastAccessTime;
-    // total access number
-    protected int accessCount;
+    protected static final long MAX_SIZE = Integer.MAX_VALUE;
+    // wall clock and nanoTime at class load, to turn access times into ms and back
+    private static final long EPOCH_MILLIS = System.currentTimeMillis();
+    private static final long EPOCH_NANOS = System.nanoTime();
     // path
     protected final String filePath;
-    // range, not usd
-    protected Range range;
-
-    public FileInfo(String path) {
+    // cached byte ranges, size is their total length when set
+    protected RangeSet ranges;
+    // number of readers using this file, eviction skips it while > 0
+    // guarded by the lock of the bucket holding the file
+    int pins;
+    // links of this file inside LRUQueue, owner is the queue holding it
+    LRUQueue owner;
+    FileInfo prev;
+    FileInfo next;
+    // frequency node and heap slot of this file inside LFUQueue, array slot inside SampledQueue
+    LFUQueue.FreqNode freqNode;
+    int heapIndex = -1;
+
+    FileInfo(String path) {
         this.filePath = path;
-        this.size = 0;
-        this.lastAccessTime = new Date();
-        this.accessCount = 1;
     }
 
-    public FileInfo(String path, long size) {
-        this.filePath = path;
-        this.size = size;
-        this.lastAccessTime = new Date();
-        this.accessCount = 1;
+    /**
+     * a file keeping its counters in its own fields, accessed once now
+     */
+    public static FileInfo of(String path) {
+        return new Fields(path, 0);
     }
 
-    public FileInfo(String path, long size, Range range) {
-        this.filePath = path;
-        this.size = size;
-        this.range = range;
-        this.lastAccessTime = new Date();
-        this.accessCount = 1;
+    public static FileInfo of(String path, long size) {
+        return new Fields(path, size);
     }
 
+    public abstract long getFileSize();
+
+    public abstract int getAccessCount();
+
+    /**
+     * System.nanoTime() of the last access
+     */
+    public abstract long getLastAccessNanos();
+
+    abstract void setSize(long size);
+
+    abstract void setAccess(int accessCount, long lastAccessNanos);
+
+    // node of the directory of this file in the PrefixIndex of its bucket, guarded by the bucket lock
+    abstract PrefixIndex.Node dir();
+
+    abstract void setDir(PrefixIndex.Node dir);
+
     public void access() {
-        this.accessCount++;
-        this.lastAccessTime = new Date();
+        setAccess(getAccessCount() + 1, System.nanoTime());
+    }
+
+    // set the counters saved in a snapshot, lastAccessTime in ms
+    void restore(int accessCount, long lastAccessTime) {
+        setAccess(accessCount, toNanos(lastAccessTime));
     }
 
     public void changeSize(long newSize) {
-        this.size = newSize;
+        setSize(newSize);
+        this.ranges = null;
     }
 
-    public void access(long newSize, Range newRange) {
-        this.accessCount++;
-        this.size = newSize;
-        this.range = newRange;
-        this.lastAccessTime = new Date();
+    /**
+     * add [offset, offset + length) to the cached ranges, rounded out to blockSize if > 0
+     * a file so far accounted by size starts with [0, size)
+     * returns the number of bytes newly cached
+     */
+    public long addRange(long offset, long length, long blockSize) {
+        long start = offset;
+        long end = offset + length;
+        if (blockSize > 0) {
+            start = start / blockSize * blockSize;
+            end = (end + blockSize - 1) / blockSize * blockSize;
+        }
+        if (ranges == null) {
+            ranges = new RangeSet();
+            ranges.add(0, getFileSize());
+        }
+        long added = ranges.add(start, end);
+        setSize(ranges.totalLength());
+        return added;
     }
 
-    public long getFileSize() {
-        return this.size;
+    /**
+     * bytes of [offset, offset + length) already cached
+     */
+    public long cachedBytes(long offset, long length) {
+        if (ranges == null) {
+            return Math.max(0, Math.min(getFileSize(), offset + length) - Math.max(0, offset));
+        }
+        return ranges.covered(offset, offset + length);
     }
 
-    public int getAccessCount() {
-        return this.accessCount;
+    public RangeSet getRanges() {
+        return this.ranges;
     }
 
     public String getFilePath() {
@@ -74,28 +123,67 @@ public class FileInfo {
     }
 
     public Date getLastAccessTime() {
-        return this.lastAccessTime;
+        return new Date(getLastAccessMillis());
     }
 
-    public Range getFileRange() {
-        return this.range;
+    public long getLastAccessMillis() {
+        return toMillis(getLastAccessNanos());
     }
 
-    class Range {
-        protected int offset;
-        protected int length;
+    static long toMillis(long nanos) {
+        return EPOCH_MILLIS + Math.floorDiv(nanos - EPOCH_NANOS, 1000000L);
+    }
+
+    static long toNanos(long millis) {
+        return EPOCH_NANOS + (millis - EPOCH_MILLIS) * 1000000L;
+    }
+
+    /**
+     * counters in fields of the object
+     */
+    static final class Fields extends FileInfo {
+        // size of current file
+        private long size;
+        // nanoTime of the last access
+        private long lastAccess;
+        // total access number
+        private int accessCount;
+        private PrefixIndex.Node dir;
+
+        Fields(String path, long size) {
+            super(path);
+            this.size = size;
+            this.lastAccess = System.nanoTime();
+            this.accessCount = 1;
+        }
+
+        public long getFileSize() {
+            return size;
+        }
+
+        public int getAccessCount() {
+            return accessCount;
+        }
+
+        public long getLastAccessNanos() {
+            return lastAccess;
+        }
+
+        void setSize(long size) {
+            this.size = size;
+        }
+
+        void setAccess(int accessCount, long lastAccessNanos) {
+            this.accessCount = accessCount;
+            this.lastAccess = lastAccessNanos;
+        }
 
-        Range(int offset, int length) {
-            this.offset = offset;
-            this.length = length;
+        PrefixIndex.Node dir() {
+            return dir;
         }
 
-        public void mergeRange(Range that) {
-            int thisEnd = this.offset + this.length;
-            int thatEnd = that.offset + that.length;
-            this.offset = Math.min(this.offset, that.offset);
-            int end = Math.max(thisEnd, thatEnd);
-            this.length = end - this.offset;
+        void setDir(PrefixIndex.Node dir) {
+            this.dir = dir;
         }
     }
 }
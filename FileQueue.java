@@ -0,0 +1,29 @@
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+
+/**
+ * FileQueue is the eviction order of files inside one FileBucket
+ * the head of the queue is the next victim
+ * subclasses keep a back reference in FileInfo so remove(Object) does not scan
+ */
+public abstract class FileQueue extends AbstractQueue<FileInfo> {
+
+    // pinned files polled while looking for a victim, put back afterwards
+    private final ArrayList<FileInfo> skipped = new ArrayList<>();
+
+    /**
+     * remove and return the next victim that is not pinned by a reader
+     * returns null if every file left is pinned
+     */
+    public FileInfo pollUnpinned() {
+        FileInfo victim;
+        while ((victim = poll()) != null && victim.pins > 0) {
+            skipped.add(victim);
+        }
+        for (int i = 0; i < skipped.size(); i++) {
+            offer(skipped.get(i));
+        }
+        skipped.clear();
+        return victim;
+    }
+}
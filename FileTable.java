@@ -0,0 +1,464 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * FileTable is a compact path -> FileInfo map for FileBucket
+ * every path gets an int id, the hash index is an open-addressing int array
+ * of ids and entries live in parallel arrays indexed by id, so an entry costs
+ * a few array slots instead of a map node
+ * <p>
+ * an Entry keeps size, access count, last access and its PrefixIndex node in
+ * arrays of the table at its id instead of in fields; when it leaves the table
+ * they move into a Values object of its own, and into the arrays of the next table
+ * <p>
+ * writers are serialized by the caller, FileBucket holds its lock. They move ids
+ * and entries under the write lock of a StampedLock, so lookups and counter reads
+ * are optimistic and lock-free, falling back to the read lock only when a writer
+ * moved something meanwhile. Counter writes of an entry already in the table take
+ * no lock, like writes of a plain field a reader sees the old or the new value
+ */
+public class FileTable extends AbstractMap<String, FileInfo> {
+
+    private final StampedLock lock = new StampedLock();
+    // hash index, id + 1 of the entry in each slot, 0 for empty; at most half full
+    private int[] slots;
+    // entries and their path hashes by id
+    private FileInfo[] files;
+    private int[] hashes;
+    // counters and directory node of the Entries by id
+    private long[] sizes;
+    private long[] accessed;
+    private int[] counts;
+    private PrefixIndex.Node[] dirs;
+    // ids freed by remove, reused before new ones
+    private int[] freeIds;
+    private int freeCount;
+    private int nextId;
+    private int count;
+
+    public FileTable() {
+        this(16);
+    }
+
+    public FileTable(int expected) {
+        int cap = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        slots = new int[cap];
+        files = new FileInfo[cap >>> 1];
+        hashes = new int[cap >>> 1];
+        sizes = new long[cap >>> 1];
+        accessed = new long[cap >>> 1];
+        counts = new int[cap >>> 1];
+        dirs = new PrefixIndex.Node[cap >>> 1];
+        freeIds = new int[16];
+    }
+
+    /**
+     * a file whose counters live in the arrays of the FileTable holding it
+     */
+    static final class Entry extends FileInfo {
+        // the FileTable holding this entry at id, or its Values while it is in no table
+        private volatile Object home;
+        private int id;
+
+        Entry(String path, long size) {
+            super(path);
+            this.home = new Values(size, 1, System.nanoTime());
+        }
+
+        public long getFileSize() {
+            Object h = home;
+            if (h instanceof FileTable) {
+                return ((FileTable) h).sizeOf(this);
+            }
+            return ((Values) h).size;
+        }
+
+        public int getAccessCount() {
+            Object h = home;
+            if (h instanceof FileTable) {
+                return ((FileTable) h).countOf(this);
+            }
+            return ((Values) h).count;
+        }
+
+        public long getLastAccessNanos() {
+            Object h = home;
+            if (h instanceof FileTable) {
+                return ((FileTable) h).accessedOf(this);
+            }
+            return ((Values) h).accessed;
+        }
+
+        // writers hold the lock of the bucket of the table, or own the entry while it is in none
+        void setSize(long size) {
+            Object h = home;
+            if (h instanceof FileTable) {
+                ((FileTable) h).sizes[id] = size;
+            } else {
+                ((Values) h).size = size;
+            }
+        }
+
+        void setAccess(int accessCount, long lastAccessNanos) {
+            Object h = home;
+            if (h instanceof FileTable) {
+                FileTable table = (FileTable) h;
+                table.counts[id] = accessCount;
+                table.accessed[id] = lastAccessNanos;
+            } else {
+                Values v = (Values) h;
+                v.count = accessCount;
+                v.accessed = lastAccessNanos;
+            }
+        }
+
+        // only an entry in a table is in a PrefixIndex
+        PrefixIndex.Node dir() {
+            Object h = home;
+            return h instanceof FileTable ? ((FileTable) h).dirs[id] : null;
+        }
+
+        void setDir(PrefixIndex.Node dir) {
+            Object h = home;
+            if (h instanceof FileTable) {
+                ((FileTable) h).dirs[id] = dir;
+            }
+        }
+    }
+
+    // counters of an Entry in no table
+    private static final class Values {
+        long size;
+        int count;
+        long accessed;
+
+        Values(long size, int count, long accessed) {
+            this.size = size;
+            this.count = count;
+            this.accessed = accessed;
+        }
+    }
+
+    // the counter reads check the entry is still here after validating, else read it where it went
+    private long sizeOf(Entry e) {
+        long stamp = lock.tryOptimisticRead();
+        long[] a = sizes;
+        int id = e.id;
+        long v = id < a.length ? a[id] : 0;
+        if (lock.validate(stamp) && e.home == this) {
+            return v;
+        }
+        stamp = lock.readLock();
+        try {
+            if (e.home == this) {
+                return sizes[e.id];
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return e.getFileSize();
+    }
+
+    private int countOf(Entry e) {
+        long stamp = lock.tryOptimisticRead();
+        int[] a = counts;
+        int id = e.id;
+        int v = id < a.length ? a[id] : 0;
+        if (lock.validate(stamp) && e.home == this) {
+            return v;
+        }
+        stamp = lock.readLock();
+        try {
+            if (e.home == this) {
+                return counts[e.id];
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return e.getAccessCount();
+    }
+
+    private long accessedOf(Entry e) {
+        long stamp = lock.tryOptimisticRead();
+        long[] a = accessed;
+        int id = e.id;
+        long v = id < a.length ? a[id] : 0;
+        if (lock.validate(stamp) && e.home == this) {
+            return v;
+        }
+        stamp = lock.readLock();
+        try {
+            if (e.home == this) {
+                return accessed[e.id];
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return e.getLastAccessNanos();
+    }
+
+    /**
+     * lock-free unless a writer moves entries during the lookup
+     */
+    @Override
+    public FileInfo get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String path = (String) key;
+        long stamp = lock.tryOptimisticRead();
+        FileInfo file = probe(path);
+        if (lock.validate(stamp)) {
+            return file;
+        }
+        stamp = lock.readLock();
+        try {
+            return probe(path);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    // racing a writer this may see the arrays half updated and answer wrong, never throw or spin;
+    // the caller validates
+    private FileInfo probe(String key) {
+        int[] s = slots;
+        FileInfo[] f = files;
+        int[] h = hashes;
+        int hash = spread(key.hashCode());
+        int mask = s.length - 1;
+        int i = hash & mask;
+        for (int n = 0; n < s.length; n++, i = (i + 1) & mask) {
+            int id = s[i] - 1;
+            if (id < 0 || id >= f.length || id >= h.length) {
+                return null;
+            }
+            FileInfo file = f[id];
+            if (file != null && h[id] == hash && file.getFilePath().equals(key)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * every id in use is below this; caller holds the bucket lock
+     */
+    public int idBound() {
+        return nextId;
+    }
+
+    /**
+     * caller holds the bucket lock
+     */
+    public FileInfo fileOf(int id) {
+        return id >= 0 && id < nextId ? files[id] : null;
+    }
+
+    @Override
+    public FileInfo put(String key, FileInfo file) {
+        if (!key.equals(file.getFilePath())) {
+            throw new IllegalArgumentException("key " + key + " is not the path of " + file.getFilePath());
+        }
+        if (file instanceof Entry && ((Entry) file).home instanceof FileTable && ((Entry) file).home != this) {
+            throw new IllegalStateException(key + " is still in another table");
+        }
+        long stamp = lock.writeLock();
+        try {
+            if (freeCount == 0 && nextId == files.length && probe(key) == null) {
+                grow();
+            }
+            int hash = spread(key.hashCode());
+            int mask = slots.length - 1;
+            int i = hash & mask;
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                int id = slots[i] - 1;
+                if (hashes[id] == hash && files[id].getFilePath().equals(key)) {
+                    FileInfo old = files[id];
+                    if (old != file) {
+                        detach(old, id);
+                        files[id] = file;
+                        attach(file, id);
+                    }
+                    return old;
+                }
+            }
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            files[id] = file;
+            hashes[id] = hash;
+            attach(file, id);
+            slots[i] = id + 1;
+            count++;
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public FileInfo remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        long stamp = lock.writeLock();
+        try {
+            int hash = spread(key.hashCode());
+            int mask = slots.length - 1;
+            int i = hash & mask;
+            int id;
+            while (true) {
+                id = slots[i] - 1;
+                if (id < 0) {
+                    return null;
+                }
+                if (hashes[id] == hash && files[id].getFilePath().equals(key)) {
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+            FileInfo old = files[id];
+            detach(old, id);
+            files[id] = null;
+            if (freeCount == freeIds.length) {
+                int[] grown = new int[freeCount << 1];
+                System.arraycopy(freeIds, 0, grown, 0, freeCount);
+                freeIds = grown;
+            }
+            freeIds[freeCount++] = id;
+            count--;
+            // backward shift, so probes never stop early at the emptied slot
+            int hole = i;
+            for (int j = (hole + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+                int home = hashes[slots[j] - 1] & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    slots[hole] = slots[j];
+                    hole = j;
+                }
+            }
+            slots[hole] = 0;
+            return old;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // caller holds the write lock; the counters of an Entry move into the arrays at id
+    private void attach(FileInfo file, int id) {
+        if (!(file instanceof Entry)) {
+            return;
+        }
+        Entry e = (Entry) file;
+        Values v = (Values) e.home;
+        sizes[id] = v.size;
+        counts[id] = v.count;
+        accessed[id] = v.accessed;
+        dirs[id] = null;
+        e.id = id;
+        e.home = this;
+    }
+
+    // caller holds the write lock; the counters of an Entry move out into its own Values
+    private void detach(FileInfo file, int id) {
+        if (!(file instanceof Entry)) {
+            return;
+        }
+        Entry e = (Entry) file;
+        e.home = new Values(sizes[id], counts[id], accessed[id]);
+        dirs[id] = null;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            for (int id = 0; id < nextId; id++) {
+                if (files[id] != null) {
+                    detach(files[id], id);
+                }
+            }
+            Arrays.fill(slots, 0);
+            Arrays.fill(files, null);
+            Arrays.fill(dirs, null);
+            freeCount = 0;
+            nextId = 0;
+            count = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * caller holds the bucket lock
+     */
+    @Override
+    public Set<Map.Entry<String, FileInfo>> entrySet() {
+        return new AbstractSet<Map.Entry<String, FileInfo>>() {
+            public int size() {
+                return count;
+            }
+
+            public Iterator<Map.Entry<String, FileInfo>> iterator() {
+                return new Iterator<Map.Entry<String, FileInfo>>() {
+                    private int id = advance(0);
+
+                    private int advance(int from) {
+                        while (from < nextId && files[from] == null) from++;
+                        return from;
+                    }
+
+                    public boolean hasNext() {
+                        return id < nextId;
+                    }
+
+                    public Map.Entry<String, FileInfo> next() {
+                        if (id >= nextId) {
+                            throw new NoSuchElementException();
+                        }
+                        FileInfo file = files[id];
+                        id = advance(id + 1);
+                        return new AbstractMap.SimpleImmutableEntry<>(file.getFilePath(), file);
+                    }
+                };
+            }
+        };
+    }
+
+    // double the index and the id arrays, ids stay the same; caller holds the write lock
+    private void grow() {
+        int cap = slots.length << 1;
+        files = Arrays.copyOf(files, cap >>> 1);
+        hashes = Arrays.copyOf(hashes, cap >>> 1);
+        sizes = Arrays.copyOf(sizes, cap >>> 1);
+        accessed = Arrays.copyOf(accessed, cap >>> 1);
+        counts = Arrays.copyOf(counts, cap >>> 1);
+        dirs = Arrays.copyOf(dirs, cap >>> 1);
+        slots = new int[cap];
+        int mask = cap - 1;
+        for (int id = 0; id < nextId; id++) {
+            if (files[id] == null) continue;
+            int i = hashes[id] & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * GhostList remembers recently evicted files by path and size only
+ * oldest ghosts are dropped once their total size passes maxBytes
+ */
+public class GhostList {
+
+    private final LinkedHashMap<String, Long> ghosts = new LinkedHashMap<>();
+    private long maxBytes;
+    private long bytes;
+
+    public GhostList(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void add(String path, long size) {
+        Long old = ghosts.remove(path);
+        if (old != null) {
+            bytes -= old;
+        }
+        ghosts.put(path, size);
+        bytes += size;
+        trim();
+    }
+
+    /**
+     * remove path, true if it was a ghost
+     */
+    public synchronized boolean remove(String path) {
+        Long old = ghosts.remove(path);
+        if (old == null) {
+            return false;
+        }
+        bytes -= old;
+        return true;
+    }
+
+    /**
+     * remove path, the size it was evicted with or -1 if it was not a ghost
+     */
+    public synchronized long take(String path) {
+        Long old = ghosts.remove(path);
+        if (old == null) {
+            return -1;
+        }
+        bytes -= old;
+        return old;
+    }
+
+    public synchronized boolean contains(String path) {
+        return ghosts.containsKey(path);
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return ghosts.size();
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> it = ghosts.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue();
+            it.remove();
+        }
+    }
+}
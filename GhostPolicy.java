@@ -0,0 +1,93 @@
+/**
+ * GhostPolicy is the ARC ghost and target logic shared by ArcPolicy and AdaptivePolicy
+ * ghost lists remember files evicted from onceAccess and from multiAccess; a miss
+ * on a onceAccess ghost means onceAccess was too small and its target grows, a miss
+ * on a multiAccess ghost shrinks it, and either way the file goes to multiAccess
+ * <p>
+ * a step is step(ghost size) scaled by how much smaller its ghost list is than the
+ * other one; the target stays within [minTarget, maxTarget]. Like ARC, a bucket and
+ * its ghosts together cover at most the cache: onceAccess ghosts hold up to
+ * cacheSize - target bytes, multiAccess ghosts up to target bytes
+ */
+public abstract class GhostPolicy implements EvictionPolicy {
+
+    protected final long cacheSize;
+    private final long minTarget;
+    private final long maxTarget;
+    private final GhostList onceGhosts;
+    private final GhostList multiGhosts;
+    // target size of onceAccess in bytes
+    private volatile long target;
+    // the bucket whose evictions are onceAccess ghosts, set by attach
+    private volatile FileBucket once;
+
+    protected GhostPolicy(long cacheSize, float initialFactor, float minFactor, float maxFactor) {
+        this.cacheSize = Math.max(1, cacheSize);
+        this.minTarget = (long) (this.cacheSize * minFactor);
+        this.maxTarget = (long) (this.cacheSize * maxFactor);
+        this.onceGhosts = new GhostList(this.cacheSize);
+        this.multiGhosts = new GhostList(this.cacheSize);
+        setTarget((long) (this.cacheSize * initialFactor));
+    }
+
+    /**
+     * target change for a ghost hit on a file evicted with size bytes, before scaling
+     */
+    protected abstract long step(long size);
+
+    private void setTarget(long bytes) {
+        target = bytes;
+        onceGhosts.setMaxBytes(cacheSize - bytes);
+        multiGhosts.setMaxBytes(bytes);
+    }
+
+    public void attach(FileBucket onceAccess, FileBucket multiAccess) {
+        this.once = onceAccess;
+    }
+
+    public float singleFactor() {
+        return target / (float) cacheSize;
+    }
+
+    public void recordAccess(String path) {
+    }
+
+    public boolean promoteOnHit(FileInfo candidate, FileBucket multi, boolean cacheFull) {
+        return true;
+    }
+
+    public synchronized boolean admitOnMiss(String path, FileBucket multi, boolean cacheFull) {
+        long onceBytes = Math.max(1, onceGhosts.bytes());
+        long multiBytes = Math.max(1, multiGhosts.bytes());
+        long size = onceGhosts.take(path);
+        if (size >= 0) {
+            long delta = Math.max(1, multiBytes / onceBytes) * step(size);
+            setTarget(Math.min(maxTarget, target + delta));
+            return true;
+        }
+        size = multiGhosts.take(path);
+        if (size >= 0) {
+            long delta = Math.max(1, onceBytes / multiBytes) * step(size);
+            setTarget(Math.max(minTarget, target - delta));
+            return true;
+        }
+        return false;
+    }
+
+    public void onEvict(FileBucket from, FileInfo victim) {
+        if (from == once) {
+            onceGhosts.add(victim.getFilePath(), victim.getFileSize());
+        } else {
+            multiGhosts.add(victim.getFilePath(), victim.getFileSize());
+        }
+    }
+
+    // ghost lists, for tests
+    GhostList onceGhosts() {
+        return onceGhosts;
+    }
+
+    GhostList multiGhosts() {
+        return multiGhosts;
+    }
+}
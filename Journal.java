@@ -0,0 +1,314 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal is the append-only record of cache changes since the last snapshot
+ * file: MAGIC int, then records
+ * record: op byte, sequence long, path length int, path utf-8, value long [, length long]
+ * ops are OPEN, READ (value = size), RANGE (value = offset, then length) and EVICT
+ * <p>
+ * appends go to one of several buffers picked by the hash of the path, so appends
+ * for different paths do not contend; Policy appends under the stripe of the path,
+ * after the change is applied. A buffer past SPILL bytes, flush() and rotate() move
+ * buffers to the file, so records reach it out of order and replay() sorts them by
+ * their sequence number. Changes of different paths made at the same time may
+ * replay in either order. Opens a burst window swallows and reads admission turns
+ * away change nothing and are not recorded, replay applies every record as it comes
+ * <p>
+ * the snapshot thread flushes, and rotate() starts a new file when a snapshot is taken;
+ * a snapshot holds the cut of each stripe, replay skips the records of a path numbered
+ * before the cut of its stripe
+ */
+public class Journal {
+
+    public static final byte OPEN = 'O';
+    public static final byte READ = 'R';
+    public static final byte RANGE = 'A';
+    public static final byte EVICT = 'E';
+    public static final int MAGIC = 0x434a4e32;
+
+    // bytes a buffer may hold before the appender moves it to the file itself
+    private static final int SPILL = 64 << 10;
+
+    private final File file;
+    // guarded by this, which is always taken before the lock of a buffer
+    private FileOutputStream out;
+    private final Buffer[] buffers;
+    // sequence number of the next record
+    private final AtomicLong seq;
+
+    /**
+     * buffers is rounded down to a power of two, Policy passes its stripe count;
+     * records are numbered from nextSeq, what replay() of the existing files returned
+     */
+    public Journal(File file, int buffers, long nextSeq) throws IOException {
+        this.file = file;
+        this.out = newStream(file);
+        this.seq = new AtomicLong(nextSeq);
+        this.buffers = new Buffer[Integer.highestOneBit(Math.max(1, buffers))];
+        for (int i = 0; i < this.buffers.length; i++) {
+            this.buffers[i] = new Buffer();
+        }
+    }
+
+    public void open(String path) {
+        append(OPEN, path, 0, 0, false);
+    }
+
+    public void read(String path, long size) {
+        append(READ, path, size, 0, false);
+    }
+
+    public void range(String path, long offset, long length) {
+        append(RANGE, path, offset, length, true);
+    }
+
+    public void evict(String path) {
+        append(EVICT, path, 0, 0, false);
+    }
+
+    /**
+     * push buffered records to the file
+     */
+    public synchronized void flush() throws IOException {
+        for (Buffer buffer : buffers) {
+            drain(buffer);
+        }
+    }
+
+    /**
+     * sequence number the next record gets
+     */
+    public long nextSeq() {
+        return seq.get();
+    }
+
+    /**
+     * close the current file as prev and start an empty journal,
+     * prev can be deleted once the snapshot taken after this call is on disk
+     * <p>
+     * records appended while it runs may land in either file; every record in prev
+     * is numbered before any cut read after this call returns, so the snapshot holds it
+     */
+    public synchronized void rotate(File prev) throws IOException {
+        flush();
+        out.close();
+        prev.delete();
+        if (!file.renameTo(prev)) {
+            out = newStream(file);
+            throw new IOException("cannot rename " + file + " to " + prev);
+        }
+        out = newStream(file);
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    private void append(byte op, String path, long value, long length, boolean ranged) {
+        int h = path.hashCode();
+        Buffer buffer = buffers[(h ^ (h >>> 16)) & (buffers.length - 1)];
+        boolean full;
+        synchronized (buffer) {
+            // numbered under the buffer lock, so each buffer is in sequence order
+            buffer.put(op, seq.getAndIncrement(), path, value, length, ranged);
+            full = buffer.pos >= SPILL;
+        }
+        if (full) {
+            try {
+                spill(buffer);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void spill(Buffer buffer) throws IOException {
+        drain(buffer);
+    }
+
+    // caller holds this; the buffer is swapped under its own lock and written without it
+    private void drain(Buffer buffer) throws IOException {
+        byte[] bytes;
+        int len;
+        synchronized (buffer) {
+            bytes = buffer.bytes;
+            len = buffer.pos;
+            if (len == 0) {
+                return;
+            }
+            buffer.bytes = buffer.spare != null ? buffer.spare : new byte[bytes.length];
+            buffer.spare = null;
+            buffer.pos = 0;
+        }
+        try {
+            out.write(bytes, 0, len);
+        } finally {
+            synchronized (buffer) {
+                buffer.spare = bytes;
+            }
+        }
+    }
+
+    /**
+     * encoded records of the paths hashed to it, guarded by its own lock
+     */
+    private static final class Buffer {
+        byte[] bytes = new byte[1024];
+        int pos;
+        // the array swapped out by the last drain, reused by the next one
+        byte[] spare;
+
+        void put(byte op, long seq, String path, long value, long length, boolean ranged) {
+            int n = path.length();
+            ensure(1 + 8 + 4 + n + 16);
+            bytes[pos] = op;
+            putLong(pos + 1, seq);
+            int lenAt = pos + 9;
+            int p = lenAt + 4;
+            // ascii paths are encoded in place, anything else through the charset
+            for (int i = 0; i < n; i++) {
+                char c = path.charAt(i);
+                if (c >= 0x80) {
+                    byte[] utf8 = path.getBytes(StandardCharsets.UTF_8);
+                    ensure(1 + 8 + 4 + utf8.length + 16);
+                    bytes[pos] = op;
+                    putLong(pos + 1, seq);
+                    System.arraycopy(utf8, 0, bytes, lenAt + 4, utf8.length);
+                    p = lenAt + 4 + utf8.length;
+                    break;
+                }
+                bytes[p++] = (byte) c;
+            }
+            putInt(lenAt, p - lenAt - 4);
+            putLong(p, value);
+            p += 8;
+            if (ranged) {
+                putLong(p, length);
+                p += 8;
+            }
+            pos = p;
+        }
+
+        private void ensure(int n) {
+            if (pos + n > bytes.length) {
+                byte[] grown = new byte[Math.max(pos + n, bytes.length << 1)];
+                System.arraycopy(bytes, 0, grown, 0, pos);
+                bytes = grown;
+            }
+        }
+
+        private void putInt(int at, int v) {
+            bytes[at] = (byte) (v >>> 24);
+            bytes[at + 1] = (byte) (v >>> 16);
+            bytes[at + 2] = (byte) (v >>> 8);
+            bytes[at + 3] = (byte) v;
+        }
+
+        private void putLong(int at, long v) {
+            putInt(at, (int) (v >>> 32));
+            putInt(at + 4, (int) v);
+        }
+    }
+
+    private static FileOutputStream newStream(File file) throws IOException {
+        boolean fresh = !file.exists() || file.length() == 0;
+        FileOutputStream out = new FileOutputStream(file, true);
+        if (fresh) {
+            out.write(new byte[]{(byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC});
+        }
+        return out;
+    }
+
+    /**
+     * apply every complete record of a journal file to policy in sequence order,
+     * a torn last record is ignored and a file of another format is skipped;
+     * with cuts from a snapshot, a record numbered before the cut of its stripe is skipped
+     * returns the sequence number to go on from: one past the last record, at least from
+     */
+    public static long replay(File file, Policy policy, long from, long[] cuts) throws IOException {
+        if (!file.exists()) {
+            return from;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.remaining() < 4 || buf.getInt() != MAGIC) {
+                if (buf.limit() > 0) {
+                    System.err.println("skipping journal of another format: " + file);
+                }
+                return from;
+            }
+            // offsets and sequence numbers of the complete records
+            int count = 0;
+            int[] offsets = new int[1024];
+            long[] seqs = new long[1024];
+            while (buf.remaining() >= 13) {
+                int at = buf.position();
+                byte op = buf.get();
+                long seq = buf.getLong();
+                int len = buf.getInt();
+                int need = len + 8 + (op == RANGE ? 8 : 0);
+                if (len < 0 || buf.remaining() < need || (op != OPEN && op != READ && op != RANGE && op != EVICT)) {
+                    break;
+                }
+                buf.position(buf.position() + need);
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count << 1);
+                    seqs = Arrays.copyOf(seqs, count << 1);
+                }
+                offsets[count] = at;
+                seqs[count] = seq;
+                count++;
+            }
+            final long[] order = seqs;
+            Integer[] byOrder = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                byOrder[i] = i;
+            }
+            Arrays.sort(byOrder, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(order[a], order[b]);
+                }
+            });
+            byte[] bytes = new byte[256];
+            long next = from;
+            for (Integer i : byOrder) {
+                buf.position(offsets[i]);
+                byte op = buf.get();
+                long seq = buf.getLong();
+                next = Math.max(next, seq + 1);
+                int len = buf.getInt();
+                if (len > bytes.length) {
+                    bytes = new byte[Math.max(len, bytes.length << 1)];
+                }
+                buf.get(bytes, 0, len);
+                String path = new String(bytes, 0, len, StandardCharsets.UTF_8);
+                long value = buf.getLong();
+                if (cuts.length > 0 && seq < cuts[Policy.stripeOf(path, cuts.length)]) {
+                    // already in the snapshot
+                    continue;
+                }
+                if (op == OPEN) {
+                    policy.cacheFileOpen(path);
+                } else if (op == READ) {
+                    policy.cacheFileRead(path, value);
+                } else if (op == RANGE) {
+                    policy.cacheFileRead(path, value, buf.getLong());
+                } else {
+                    policy.removeFile(path);
+                }
+            }
+            return next;
+        }
+    }
+}
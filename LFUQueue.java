@@ -0,0 +1,239 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * LFUQueue keeps files ordered by access count for the multiAccess bucket
+ * files with the same count share one FreqNode, nodes are linked in ascending count
+ * inside a node files are kept in a max-heap on size, so larger files are evicted first
+ * <p>
+ * each file remembers its node and heap slot, so remove and re-add after an access
+ * move it to the neighbouring node without scanning the queue
+ */
+public class LFUQueue extends FileQueue {
+
+    // node with the lowest access count, victims come from here
+    private FreqNode head;
+    // node touched by the last remove, the re-add after an access starts from it
+    private FreqNode hint;
+    // an emptied node kept for reuse
+    private FreqNode spare;
+    // number of files in this queue
+    private int count;
+
+    @Override
+    public boolean offer(FileInfo file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (file.freqNode != null) {
+            return false;
+        }
+        findOrCreate(file.getAccessCount()).push(file);
+        count++;
+        return true;
+    }
+
+    @Override
+    public FileInfo poll() {
+        if (head == null) {
+            return null;
+        }
+        FreqNode node = head;
+        FileInfo victim = node.removeAt(0);
+        if (node.size == 0) {
+            unlink(node);
+        }
+        count--;
+        return victim;
+    }
+
+    @Override
+    public FileInfo peek() {
+        return head == null ? null : head.heap[0];
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        FileInfo file = (FileInfo) o;
+        FreqNode node = file.freqNode;
+        node.removeAt(file.heapIndex);
+        if (node.size == 0) {
+            hint = node.prev;
+            unlink(node);
+        } else {
+            hint = node;
+        }
+        count--;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof FileInfo)) {
+            return false;
+        }
+        FreqNode node = ((FileInfo) o).freqNode;
+        return node != null && node.owner == this;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        while (head != null) {
+            poll();
+        }
+    }
+
+    @Override
+    public Iterator<FileInfo> iterator() {
+        return new Iterator<FileInfo>() {
+            private FreqNode node = head;
+            private int index = 0;
+
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            public FileInfo next() {
+                if (node == null) {
+                    throw new NoSuchElementException();
+                }
+                FileInfo file = node.heap[index++];
+                if (index == node.size) {
+                    node = node.next;
+                    index = 0;
+                }
+                return file;
+            }
+        };
+    }
+
+    // find the node for accessCount, creating it in order when missing
+    private FreqNode findOrCreate(int accessCount) {
+        FreqNode prev = null;
+        FreqNode cur = head;
+        if (hint != null && hint.owner == this && hint.count <= accessCount) {
+            prev = hint.prev;
+            cur = hint;
+        }
+        while (cur != null && cur.count < accessCount) {
+            prev = cur;
+            cur = cur.next;
+        }
+        if (cur != null && cur.count == accessCount) {
+            return cur;
+        }
+        FreqNode node = spare != null ? spare : new FreqNode();
+        spare = null;
+        node.owner = this;
+        node.count = accessCount;
+        node.prev = prev;
+        node.next = cur;
+        if (prev == null) {
+            head = node;
+        } else {
+            prev.next = node;
+        }
+        if (cur != null) {
+            cur.prev = node;
+        }
+        return node;
+    }
+
+    private void unlink(FreqNode node) {
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        if (hint == node) {
+            hint = node.prev;
+        }
+        node.owner = null;
+        node.prev = null;
+        node.next = null;
+        spare = node;
+    }
+
+    /**
+     * all files with the same access count, kept as a max-heap on file size
+     */
+    static class FreqNode {
+        LFUQueue owner;
+        int count;
+        FreqNode prev;
+        FreqNode next;
+        FileInfo[] heap = new FileInfo[4];
+        int size;
+
+        void push(FileInfo file) {
+            if (size == heap.length) {
+                FileInfo[] grown = new FileInfo[size << 1];
+                System.arraycopy(heap, 0, grown, 0, size);
+                heap = grown;
+            }
+            file.freqNode = this;
+            siftUp(size++, file);
+        }
+
+        FileInfo removeAt(int i) {
+            FileInfo file = heap[i];
+            FileInfo last = heap[--size];
+            heap[size] = null;
+            if (i != size) {
+                siftDown(i, last);
+                if (heap[i] == last) {
+                    siftUp(i, last);
+                }
+            }
+            file.freqNode = null;
+            file.heapIndex = -1;
+            return file;
+        }
+
+        private void siftUp(int i, FileInfo file) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                FileInfo p = heap[parent];
+                if (p.getFileSize() >= file.getFileSize()) {
+                    break;
+                }
+                place(i, p);
+                i = parent;
+            }
+            place(i, file);
+        }
+
+        private void siftDown(int i, FileInfo file) {
+            int half = size >>> 1;
+            while (i < half) {
+                int child = (i << 1) + 1;
+                int right = child + 1;
+                if (right < size && heap[right].getFileSize() > heap[child].getFileSize()) {
+                    child = right;
+                }
+                if (file.getFileSize() >= heap[child].getFileSize()) {
+                    break;
+                }
+                place(i, heap[child]);
+                i = child;
+            }
+            place(i, file);
+        }
+
+        private void place(int i, FileInfo file) {
+            heap[i] = file;
+            file.heapIndex = i;
+        }
+    }
+}
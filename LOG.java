@@ -1,23 +1,75 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * LOG class, print log output to specific file
+ * <p>
+ * records go to a bounded ring buffer and a single writer thread appends them
+ * in batches to a long-lived stream, so callers never wait on the disk;
+ * the file is flushed every flushInterval ms and rotated to logFile.1 .. logFile.N
+ * once it grows past maxFileSize. When the ring is full a record is dropped,
+ * or the caller waits for room if blockWhenFull is set
+ * <p>
+ * records arriving while close() runs are dropped, so none is left in the ring
+ * without a writer; the first record after close() starts a new writer
  */
 public class LOG {
     public boolean keepLog;
     public final String logFile;
 
+    // default ring capacity, flush interval in ms and rotation size in bytes
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_FLUSH_INTERVAL = 200;
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+    // rotated files kept next to logFile
+    public static final int MAX_BACKUPS = 5;
+
+    private final int capacity;
+    private final long flushInterval;
+    private final long maxFileSize;
+    private final boolean blockWhenFull;
+
+    // ring of pending records, a record is head + tail, guarded by this
+    private String[] heads;
+    private String[] tails;
+    private int readPos;
+    private int count;
+    private Thread writer;
+    private boolean stopping;
+    // records lost because the ring was full
+    private final LongAdder dropped = new LongAdder();
+
+    // only touched by the writer thread
+    private OutputStream out;
+    private long written;
+
     public LOG(boolean log, String path) {
+        this(log, path, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_FILE_SIZE, false);
+    }
+
+    public LOG(boolean log, String path, int capacity, long flushInterval, long maxFileSize,
+               boolean blockWhenFull) {
         this.keepLog = log;
         this.logFile = path;
+        this.capacity = Math.max(1, capacity);
+        this.flushInterval = Math.max(1, flushInterval);
+        this.maxFileSize = maxFileSize;
+        this.blockWhenFull = blockWhenFull;
     }
 
     public LOG(LOG log1) {
         if (log1 == null) {
             this.keepLog = false;
             this.logFile = null;
+            this.capacity = DEFAULT_CAPACITY;
+            this.flushInterval = DEFAULT_FLUSH_INTERVAL;
+            this.maxFileSize = DEFAULT_MAX_FILE_SIZE;
+            this.blockWhenFull = false;
         } else {
             this.keepLog = log1.keepLog;
             if (log1.logFile != null && log1.keepLog) {
@@ -25,21 +77,204 @@ public class LOG {
             } else {
                 this.logFile = null;
             }
+            this.capacity = log1.capacity;
+            this.flushInterval = log1.flushInterval;
+            this.maxFileSize = log1.maxFileSize;
+            this.blockWhenFull = log1.blockWhenFull;
         }
     }
 
     public void logPrint(String str) {
-        if (this.keepLog) {
-            if (this.logFile != null) {
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(this.logFile))) {
-                    bw.write(str);
-                    bw.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        logPrint(str, null);
+    }
+
+    /**
+     * log head + tail as one line, the concatenation happens on the writer thread
+     */
+    public void logPrint(String head, String tail) {
+        if (!this.keepLog) {
+            return;
+        }
+        if (this.logFile == null) {
+            System.out.println(tail == null ? head : head + tail);
+            return;
+        }
+        synchronized (this) {
+            while (true) {
+                if (writer == null) {
+                    startWriter();
+                } else if (stopping) {
+                    // close() is draining the ring for the last time
+                    dropped.increment();
+                    return;
                 }
-            } else {
-                System.out.println(str);
+                if (count < capacity) {
+                    break;
+                }
+                if (!blockWhenFull) {
+                    dropped.increment();
+                    return;
+                }
+                try {
+                    // the writer notifies when it takes a batch and when it exits
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                    return;
+                }
+            }
+            int pos = (readPos + count) % capacity;
+            heads[pos] = head;
+            tails[pos] = tail;
+            if (count++ == 0) {
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * number of records dropped because the ring buffer was full
+     */
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * write out everything queued so far and stop the writer thread,
+     * a record logged while this runs is dropped, a later one starts a new writer
+     */
+    public void close() {
+        Thread w;
+        synchronized (this) {
+            w = writer;
+            if (w == null) {
+                return;
+            }
+            stopping = true;
+            this.notifyAll();
+        }
+        try {
+            w.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // caller holds the lock
+    private void startWriter() {
+        if (heads == null) {
+            heads = new String[capacity];
+            tails = new String[capacity];
+        }
+        stopping = false;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writeLoop() {
+        String[] batchHeads = new String[capacity];
+        String[] batchTails = new String[capacity];
+        long lastFlush = System.currentTimeMillis();
+        boolean dirty = false;
+        try {
+            open();
+            while (true) {
+                int n;
+                boolean stop;
+                synchronized (this) {
+                    if (count == 0 && !stopping) {
+                        this.wait(flushInterval);
+                    }
+                    n = count;
+                    for (int i = 0; i < n; i++) {
+                        int pos = (readPos + i) % capacity;
+                        batchHeads[i] = heads[pos];
+                        batchTails[i] = tails[pos];
+                        heads[pos] = null;
+                        tails[pos] = null;
+                    }
+                    readPos = (readPos + n) % capacity;
+                    count = 0;
+                    stop = stopping;
+                    if (n > 0) {
+                        this.notifyAll();
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    write(batchHeads[i]);
+                    if (batchTails[i] != null) {
+                        write(batchTails[i]);
+                    }
+                    write("\n");
+                    batchHeads[i] = null;
+                    batchTails[i] = null;
+                    dirty = true;
+                    if (maxFileSize > 0 && written >= maxFileSize) {
+                        rotate();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (dirty && (stop || now - lastFlush >= flushInterval)) {
+                    out.flush();
+                    lastFlush = now;
+                    dirty = false;
+                }
+                if (stop) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+            synchronized (this) {
+                writer = null;
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        File file = new File(logFile);
+        written = file.length();
+        out = new BufferedOutputStream(new FileOutputStream(file, true), 64 << 10);
+    }
+
+    private void write(String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        written += bytes.length;
+    }
+
+    // logFile.(N-1) -> logFile.N ... logFile -> logFile.1, then start an empty logFile
+    private void rotate() throws IOException {
+        out.close();
+        for (int i = MAX_BACKUPS - 1; i >= 1; i--) {
+            File from = new File(logFile + "." + i);
+            if (from.exists()) {
+                File to = new File(logFile + "." + (i + 1));
+                to.delete();
+                from.renameTo(to);
             }
         }
+        File first = new File(logFile + ".1");
+        first.delete();
+        new File(logFile).renameTo(first);
+        open();
     }
 }
@@ -0,0 +1,152 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * LRUQueue keeps files in access order for the onceAccess bucket
+ * the least recently used file is the head, new and accessed files go to the tail
+ * <p>
+ * the list is intrusive, prev/next links live in FileInfo, so unlink and
+ * move-to-tail are constant time
+ */
+public class LRUQueue extends FileQueue {
+
+    // least recently used file
+    private FileInfo head;
+    // most recently used file
+    private FileInfo tail;
+    // number of files in this queue
+    private int count;
+
+    @Override
+    public boolean offer(FileInfo file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (file.owner != null) {
+            return false;
+        }
+        file.owner = this;
+        file.prev = tail;
+        file.next = null;
+        if (tail == null) {
+            head = file;
+        } else {
+            tail.next = file;
+        }
+        tail = file;
+        count++;
+        return true;
+    }
+
+    /**
+     * add file as the least recently used one, the next victim
+     */
+    public boolean offerFirst(FileInfo file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (file.owner != null) {
+            return false;
+        }
+        file.owner = this;
+        file.prev = null;
+        file.next = head;
+        if (head == null) {
+            tail = file;
+        } else {
+            head.prev = file;
+        }
+        head = file;
+        count++;
+        return true;
+    }
+
+    @Override
+    public FileInfo poll() {
+        FileInfo victim = head;
+        if (victim != null) {
+            unlink(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public FileInfo pollUnpinned() {
+        FileInfo victim = head;
+        while (victim != null && victim.pins > 0) {
+            victim = victim.next;
+        }
+        if (victim != null) {
+            unlink(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public FileInfo peek() {
+        return head;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        unlink((FileInfo) o);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof FileInfo && ((FileInfo) o).owner == this;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        while (head != null) {
+            unlink(head);
+        }
+    }
+
+    @Override
+    public Iterator<FileInfo> iterator() {
+        return new Iterator<FileInfo>() {
+            private FileInfo cur = head;
+
+            public boolean hasNext() {
+                return cur != null;
+            }
+
+            public FileInfo next() {
+                if (cur == null) {
+                    throw new NoSuchElementException();
+                }
+                FileInfo file = cur;
+                cur = cur.next;
+                return file;
+            }
+        };
+    }
+
+    private void unlink(FileInfo file) {
+        if (file.prev == null) {
+            head = file.next;
+        } else {
+            file.prev.next = file.next;
+        }
+        if (file.next == null) {
+            tail = file.prev;
+        } else {
+            file.next.prev = file.prev;
+        }
+        file.owner = null;
+        file.prev = null;
+        file.next = null;
+        count--;
+    }
+}
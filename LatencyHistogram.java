@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts values (ns) in log-linear buckets, like HdrHistogram
+ * every power of two is split in 2^SUB_BITS linear buckets, so a percentile
+ * is within about 3% of the recorded value; recording is lock free and
+ * never allocates
+ */
+public class LatencyHistogram {
+
+    // linear buckets per power of two
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int SLOTS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    /**
+     * value at the given percentile, 0 <= p <= 100
+     */
+    public long percentile(double p) {
+        long n = 0;
+        long[] snapshot = new long[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(SLOTS - 1);
+    }
+
+    public long max() {
+        for (int i = SLOTS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueOf(i);
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < SLOTS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) - SUB_COUNT);
+    }
+
+    // largest value that falls into bucket index
+    static long highestValueOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long lower = ((long) (SUB_COUNT + (index & (SUB_COUNT - 1)))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LocalDirectorySource serves the files under a local directory,
+ * cache path /a/b is root/a/b
+ */
+public class LocalDirectorySource implements DataSource {
+
+    private final File root;
+
+    public LocalDirectorySource(File root) {
+        this.root = root;
+    }
+
+    public long length(String path) throws IOException {
+        File file = resolve(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return file.length();
+    }
+
+    public int read(String path, long offset, ByteBuffer dst) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(resolve(path), "r");
+             FileChannel channel = raf.getChannel()) {
+            int total = 0;
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, offset + total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    private File resolve(String path) throws IOException {
+        File file = new File(root, path.startsWith("/") ? path.substring(1) : path);
+        // keep ../ in a path from reaching outside root
+        if (!file.getCanonicalPath().startsWith(root.getCanonicalPath() + File.separator)) {
+            throw new FileNotFoundException(path);
+        }
+        return file;
+    }
+}
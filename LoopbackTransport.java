@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoopbackTransport serves every node from a Policy in this process,
+ * so a sharded deployment can be tested on one machine
+ * it counts the calls it carries, like messages on the wire
+ */
+public class LoopbackTransport implements CacheTransport {
+
+    private final ConcurrentHashMap<String, Policy> nodes = new ConcurrentHashMap<>();
+    private final LongAdder messages = new LongAdder();
+
+    public void register(String node, Policy policy) {
+        nodes.put(node, policy);
+    }
+
+    public Policy unregister(String node) {
+        return nodes.remove(node);
+    }
+
+    public Policy policyOf(String node) {
+        return nodes.get(node);
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public void open(String node, String path) {
+        messages.increment();
+        policy(node).cacheFileOpen(path);
+    }
+
+    public void read(String node, String path, long size) {
+        messages.increment();
+        policy(node).cacheFileRead(path, size);
+    }
+
+    public long cachedSize(String node, String path) {
+        messages.increment();
+        return policy(node).cachedSize(path);
+    }
+
+    public List<Entry> entries(String node) {
+        messages.increment();
+        Policy policy = policy(node);
+        List<Entry> entries = new ArrayList<>();
+        for (FileInfo file : policy.onceAccess.snapshotFiles()) {
+            entries.add(new Entry(file.getFilePath(), file.getFileSize(), file.getAccessCount(),
+                    file.getLastAccessMillis(), false));
+        }
+        for (FileInfo file : policy.multiAccess.snapshotFiles()) {
+            entries.add(new Entry(file.getFilePath(), file.getFileSize(), file.getAccessCount(),
+                    file.getLastAccessMillis(), true));
+        }
+        return entries;
+    }
+
+    public boolean remove(String node, String path) {
+        messages.increment();
+        return policy(node).removeFile(path);
+    }
+
+    public boolean adopt(String node, Entry entry) {
+        messages.increment();
+        return policy(node).adopt(entry.path, entry.size, entry.accessCount, entry.lastAccessTime, entry.multi);
+    }
+
+    private Policy policy(String node) {
+        Policy policy = nodes.get(node);
+        if (policy == null) {
+            throw new IllegalArgumentException("unknown node " + node);
+        }
+        return policy;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * MetricsSnapshot is an immutable copy of CacheMetrics at one point in time
+ * latencies are in ns, -1 if nothing was recorded or timing is off
+ */
+public final class MetricsSnapshot {
+
+    public final long timestamp;
+    public final long hits;
+    public final long misses;
+    public final long promotions;
+    public final long onceEvictions;
+    public final long multiEvictions;
+    public final long evictedBytes;
+    public final long expired;
+    public final long bytesRead;
+    public final long coalesced;
+    public final long prefetches;
+    public final long prefetchHits;
+    public final long prefetchWasted;
+    public final long cacheSize;
+    public final long onceBytes;
+    public final long multiBytes;
+    public final float softFillRate;
+    public final float hardFillRate;
+    public final float singleFactor;
+    public final long openP50;
+    public final long openP99;
+    public final long openP999;
+    public final long openMax;
+    public final long readP50;
+    public final long readP99;
+    public final long readP999;
+    public final long readMax;
+    public final long evictP50;
+    public final long evictP99;
+    public final long evictP999;
+    public final long evictMax;
+
+    MetricsSnapshot(CacheMetrics m) {
+        this.timestamp = System.currentTimeMillis();
+        this.hits = m.getHits();
+        this.misses = m.getMisses();
+        this.promotions = m.getPromotions();
+        this.onceEvictions = m.getOnceEvictions();
+        this.multiEvictions = m.getMultiEvictions();
+        this.evictedBytes = m.getEvictedBytes();
+        this.expired = m.getExpired();
+        this.bytesRead = m.getBytesRead();
+        this.coalesced = m.getCoalesced();
+        this.prefetches = m.getPrefetches();
+        this.prefetchHits = m.getPrefetchHits();
+        this.prefetchWasted = m.getPrefetchWasted();
+        this.cacheSize = m.getCacheSize();
+        this.onceBytes = m.getOnceBytes();
+        this.multiBytes = m.getMultiBytes();
+        this.softFillRate = m.getSoftFillRate();
+        this.hardFillRate = m.getHardFillRate();
+        this.singleFactor = m.getSingleFactor();
+        this.openP50 = percentile(m.open, 50);
+        this.openP99 = percentile(m.open, 99);
+        this.openP999 = percentile(m.open, 99.9);
+        this.openMax = m.open.count() == 0 ? -1 : m.open.max();
+        this.readP50 = percentile(m.read, 50);
+        this.readP99 = percentile(m.read, 99);
+        this.readP999 = percentile(m.read, 99.9);
+        this.readMax = m.read.count() == 0 ? -1 : m.read.max();
+        this.evictP50 = percentile(m.evict, 50);
+        this.evictP99 = percentile(m.evict, 99);
+        this.evictP999 = percentile(m.evict, 99.9);
+        this.evictMax = m.evict.count() == 0 ? -1 : m.evict.max();
+    }
+
+    private static long percentile(LatencyHistogram h, double p) {
+        return h.count() == 0 ? -1 : h.percentile(p);
+    }
+
+    public double hitRate() {
+        return hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+    }
+
+    /**
+     * share of prefetched files opened or read before they were evicted
+     */
+    public double prefetchAccuracy() {
+        return prefetches == 0 ? 0 : prefetchHits / (double) prefetches;
+    }
+
+    /**
+     * share of would-be misses a prefetch turned into hits
+     */
+    public double prefetchCoverage() {
+        return prefetchHits + misses == 0 ? 0 : prefetchHits / (double) (prefetchHits + misses);
+    }
+
+    public double fillRate() {
+        return cacheSize == 0 ? 0 : (onceBytes + multiBytes) / (double) cacheSize;
+    }
+
+    /**
+     * bytes until the background thread starts evicting, negative once past SOFT_FILL_RATE
+     */
+    public long softHeadroom() {
+        return (long) (softFillRate * cacheSize) - onceBytes - multiBytes;
+    }
+
+    /**
+     * bytes until readers evict themselves, negative once past HARD_FILL_RATE
+     */
+    public long hardHeadroom() {
+        return (long) (hardFillRate * cacheSize) - onceBytes - multiBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits + " misses=" + misses + " hitRate=" + hitRate() + " promotions=" + promotions
+                + " evictions=" + onceEvictions + "/" + multiEvictions + " evictedBytes=" + evictedBytes
+                + " expired=" + expired + " bytesRead=" + bytesRead + " prefetchHits=" + prefetchHits + "/" + prefetches
+                + " fill=" + fillRate()
+                + " single=" + singleFactor + " open p99=" + openP99 + " read p99=" + readP99
+                + " evict p99=" + evictP99;
+    }
+}
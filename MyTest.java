@@ -3,6 +3,15 @@ import org.junit.*;
 import static org.junit.Assert.*;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Test
@@ -90,4 +99,1886 @@ public class MyTest {
         System.out.println("Test4 end\n\n");
     }
 
+    @Test
+    public void testLFUOrder() {
+        // lowest access count first, larger file first on equal count
+        FileBucket bucket = new FileBucket(1000, "multiAccess", "LFU");
+        FileInfo small = FileInfo.of("small", 10);
+        FileInfo large = FileInfo.of("large", 20);
+        FileInfo hot = FileInfo.of("hot", 30);
+        bucket.addFile(small);
+        bucket.addFile(large);
+        bucket.addFile(hot);
+        bucket.accessFile(hot);
+        bucket.accessFile(hot);
+        assertTrue(bucket.evitOneFile() == large);
+        bucket.accessFile(small);
+        bucket.renewFile(small, 40);
+        assertTrue(bucket.evitOneFile() == small);
+        assertTrue(bucket.evitOneFile() == hot);
+        assertTrue(bucket.evitOneFile() == null);
+    }
+
+    @Test
+    public void testLRUSkipPinned() {
+        // pinned file at the head is skipped and keeps its place
+        FileBucket bucket = new FileBucket(1000, "onceAccess", "LRU");
+        bucket.log = new LOG(false, null);
+        bucket.addFile(FileInfo.of("a", 10));
+        bucket.addFile(FileInfo.of("b", 10));
+        bucket.addFile(FileInfo.of("c", 10));
+        bucket.accessFile(bucket.getFile("b"));
+        FileInfo a = bucket.pin("a");
+        assertTrue(bucket.evict(20) == 20);
+        assertTrue(bucket.contains("a"));
+        assertTrue(bucket.evict(20) == 0);
+        assertTrue(bucket.files.peek() == bucket.getFile("a"));
+        assertTrue(bucket.getBucketSize() == 10);
+        bucket.unpin(a);
+        assertTrue(bucket.evict(20) == 10);
+    }
+
+    @Test
+    public void testConcurrentAccounting() throws InterruptedException {
+        // reader threads on shared files: every open is one hit or one miss, nothing is lost
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int ops = 5000;
+        Configuration c = new Configuration(1L << 40, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.90f, false);
+        final Policy policy = new Policy(c);
+        runReaders(policy, threads, ops, "/shared/part-");
+        assertTrue(policy.getHitCount() + policy.getMissCount() == threads * ops);
+        assertTrue(policy.getMissCount() == 500);
+        assertTrue(policy.checkCache());
+        for (FileInfo file : policy.onceAccess.files) assertTrue(file.pins == 0);
+        for (FileInfo file : policy.multiAccess.files) assertTrue(file.pins == 0);
+        policy.close();
+    }
+
+    @Test
+    public void testConcurrentEviction() throws InterruptedException {
+        // the same readers on a cache a tenth of their files: eviction keeps up and stays consistent
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        final int ops = 5000;
+        Configuration c = new Configuration(5000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.90f, false);
+        final Policy policy = new Policy(c);
+        runReaders(policy, threads, ops, "/shared/part-");
+        // a read can miss again when its file was evicted right after the open
+        long counted = policy.getHitCount() + policy.getMissCount();
+        assertTrue(counted >= threads * ops && counted <= 2L * threads * ops);
+        assertTrue(policy.getEvictCount() > 0);
+        assertTrue(policy.overflow() == 0);
+        assertTrue(policy.checkCache());
+        for (FileInfo file : policy.onceAccess.files) assertTrue(file.pins == 0);
+        for (FileInfo file : policy.multiAccess.files) assertTrue(file.pins == 0);
+        policy.close();
+    }
+
+    // threads each open and read ops paths out of 500 under prefix
+    private static void runReaders(final Policy policy, int threads, final int ops, final String prefix)
+            throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * 7;
+            workers[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < ops; i++) {
+                        String path = prefix + ((i + offset) % 500);
+                        policy.cacheFileOpen(path);
+                        policy.cacheFileRead(path, 100 + i % 7);
+                    }
+                }
+            });
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+    }
+
+    @Test
+    public void testBackgroundEvict() throws InterruptedException {
+        // fill between soft and hard is left to the daemon, which drains to min
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.5f, 0.9f, true);
+        c.evictInterval = 50;
+        try (Policy policy = new Policy(c)) {
+            // up to the soft mark there is nothing to do
+            for (int i = 0; i < 5; i++) {
+                policy.cacheFileRead("/bg/" + i, 100);
+            }
+            assertTrue(policy.backgroundOverflow() == 0);
+            // the read crossing it is the last one, so nothing lands after the drain
+            policy.cacheFileRead("/bg/5", 100);
+            for (int i = 0; i < 40 && policy.onceAccess.getBucketSize() + policy.multiAccess.getBucketSize() > 100; i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(policy.backgroundOverflow() == 0);
+            assertTrue(policy.onceAccess.getBucketSize() + policy.multiAccess.getBucketSize() <= 100);
+            assertTrue(policy.getEvictCount() == 5);
+            assertTrue(policy.checkCache());
+        }
+    }
+
+    @Test
+    public void testHotPathAllocation() {
+        // hits on open/read allocate nothing per call
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy policy = new Policy(c);
+        String[] paths = new String[10];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/alloc/part-" + i;
+        }
+        int ops = 200000;
+        for (int round = 0; round < 2; round++) {
+            long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < ops; i++) {
+                String path = paths[i % paths.length];
+                policy.cacheFileOpen(path);
+                policy.cacheFileRead(path, 40 + (i & 15));
+            }
+            long perOp = (mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / ops;
+            System.out.println("allocated bytes per op: " + perOp);
+            if (round == 1) {
+                assertTrue(perOp == 0);
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncLog() throws IOException {
+        // records are appended in order and rotated by size
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-log-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        String path = new File(dir, "evict.log").getPath();
+        LOG log = new LOG(true, path, 16, 10, 100, true);
+        for (int i = 0; i < 40; i++) {
+            log.logPrint("evict ", "/f" + i);
+        }
+        log.close();
+        assertTrue(log.droppedCount() == 0);
+        int lines = 0;
+        for (int i = LOG.MAX_BACKUPS; i >= 0; i--) {
+            File file = new File(i == 0 ? path : path + "." + i);
+            if (!file.exists()) continue;
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                assertEquals("evict /f" + lines, line);
+                lines++;
+            }
+            reader.close();
+            assertTrue(file.length() < 120);
+            file.delete();
+        }
+        dir.delete();
+        assertTrue(lines == 40);
+    }
+
+    @Test
+    public void testLogCloseRace() throws InterruptedException, IOException {
+        // writers blocked on a full ring while close() runs neither hang nor lose records silently
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-log-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        File file = new File(dir, "race.log");
+        final LOG log = new LOG(true, file.getPath(), 2, 1, 0, true);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final String head = "t" + t + " ";
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        log.logPrint(head, String.valueOf(i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        boolean alive = true;
+        while (alive) {
+            log.close();
+            alive = false;
+            for (Thread t : threads) alive |= t.isAlive();
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+            assertTrue(!t.isAlive());
+        }
+        log.close();
+        int lines = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        while (reader.readLine() != null) lines++;
+        reader.close();
+        assertTrue(lines + log.droppedCount() == 2000);
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testTraceReplay() throws IOException {
+        // replay a small trace with two cache sizes and write the csv
+        File trace = File.createTempFile("trace", ".txt");
+        File csv = File.createTempFile("replay", ".csv");
+        PrintWriter writer = new PrintWriter(new FileWriter(trace));
+        for (int i = 0; i < 50; i++) {
+            String path = "/warehouse/t/part-" + (i % 5);
+            writer.println(path + ",O");
+            writer.print(path + ",R,10\r\n");
+        }
+        writer.close();
+        TraceReplay replay = new TraceReplay(trace);
+        java.util.List<TraceReplay.Result> results = replay.sweep(new long[]{30, 1000}, new float[]{0.25f},
+                0.1f, 0.8f, 0.9f);
+        TraceReplay.writeCsv(results, csv);
+        assertTrue(results.size() == 2);
+        TraceReplay.Result small = results.get(0);
+        TraceReplay.Result large = results.get(1);
+        assertTrue(large.opens == 50 && large.reads == 50);
+        assertTrue(large.bytesRead == 500 && large.bytesHit == 450);
+        assertTrue(large.evictions == 0 && small.evictions > 0);
+        assertTrue(large.hitRate > small.hitRate);
+        assertTrue(large.latency.count() == 100);
+        BufferedReader reader = new BufferedReader(new FileReader(csv));
+        assertEquals(TraceReplay.CSV_HEADER, reader.readLine());
+        assertTrue(reader.readLine().startsWith("30,"));
+        reader.close();
+        trace.delete();
+        csv.delete();
+    }
+
+    @Test
+    public void testTraceGenerator() {
+        // zipfian favours low ids, scans walk the cold ids in order
+        TraceGenerator zipf = TraceGenerator.zipfian(1000, 0.99, 1);
+        int top10 = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (zipf.next() < 10) top10++;
+        }
+        assertTrue(top10 > 3000);
+        TraceGenerator scan = TraceGenerator.scanHeavy(100, 1000, 1.0, 1);
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(scan.next() == 100 + i % 1000);
+        }
+    }
+
+    @Test
+    public void testRangeRead() {
+        // scattered ranges are merged and only covered bytes are accounted
+        Configuration c = new Configuration(1L << 40, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy policy = new Policy(c);
+        String orc = "/warehouse/t/part-0.orc";
+        long far = 5L << 30;
+        assertTrue(policy.cacheFileRead(orc, far, 100) == 0);
+        assertTrue(policy.cacheFileRead(orc, 0, 50) == 0);
+        assertTrue(policy.cacheFileRead(orc, 40, 20) == 10);
+        assertTrue(policy.cachedSize(orc) == 160);
+        assertTrue(policy.cacheFileRead(orc, far - 10, 200) == 100);
+        assertTrue(policy.cachedSize(orc) == 260);
+        assertTrue(policy.onceAccess.getFile(orc).getRanges().rangeCount() == 2);
+        assertTrue(policy.onceAccess.getBucketSize() == 260);
+
+        c.rangeBlockSize = 64;
+        policy = new Policy(c);
+        policy.cacheFileRead(orc, 10, 10);
+        policy.cacheFileRead(orc, 130, 10);
+        assertTrue(policy.cachedSize(orc) == 128);
+        assertTrue(policy.cacheFileRead(orc, 0, 64) == 64);
+    }
+
+    @Test
+    public void testRangeReadRejectsNegative() {
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy policy = new Policy(c);
+        try {
+            policy.cacheFileRead("/neg", -1, 10);
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            policy.cacheFileRead("/neg", 0, -10);
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(policy.cachedSize("/neg") < 0);
+        assertTrue(policy.getMissCount() == 0);
+    }
+
+    @Test
+    public void testCompactMetadata() {
+        // the FileTable index gives the same cache behaviour as the concurrent map
+        Configuration plain = new Configuration(5000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Configuration compact = new Configuration(5000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        compact.compactMetadata = true;
+        Policy p1 = new Policy(plain);
+        Policy p2 = new Policy(compact);
+        TraceGenerator gen = TraceGenerator.zipfian(20000, 0.9, 3);
+        for (int i = 0; i < 50000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            p1.cacheFileOpen(path);
+            p1.cacheFileRead(path, 1 + i % 5);
+            p2.cacheFileOpen(path);
+            p2.cacheFileRead(path, 1 + i % 5);
+        }
+        assertEquals(p1.getHitRate(), p2.getHitRate(), 0);
+        assertTrue(p1.getEvictCount() == p2.getEvictCount());
+        assertTrue(p1.onceAccess.getBucketSize() == p2.onceAccess.getBucketSize());
+        assertTrue(p1.multiAccess.getBucketSize() == p2.multiAccess.getBucketSize());
+        for (FileInfo file : p1.multiAccess.files) {
+            assertTrue(p2.multiAccess.getFile(file.getFilePath()).getAccessCount() == file.getAccessCount());
+        }
+        assertTrue(p2.checkCache());
+    }
+
+    @Test
+    public void testCompactEntryCounters() {
+        // counters live in the table while the entry is in it and travel with it between tables
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.compactMetadata = true;
+        Policy policy = new Policy(c);
+        policy.cacheFileOpen("/c/a");
+        policy.cacheFileRead("/c/a", 30);
+        FileInfo a = policy.onceAccess.getFile("/c/a");
+        assertTrue(a instanceof FileTable.Entry);
+        assertTrue(a.getFileSize() == 30 && a.getAccessCount() == 1);
+        long before = a.getLastAccessNanos();
+        policy.cacheFileOpen("/c/a");
+        assertTrue(policy.multiAccess.getFile("/c/a") == a);
+        assertTrue(a.getFileSize() == 30 && a.getAccessCount() == 2);
+        assertTrue(a.getLastAccessNanos() - before >= 0);
+        assertTrue(Math.abs(a.getLastAccessMillis() - System.currentTimeMillis()) < 1000);
+        assertTrue(policy.multiAccess.usage("/c").bytes == 30);
+        FileInfo taken = policy.take("/c/a");
+        assertTrue(taken == a && taken.getFileSize() == 30 && taken.getAccessCount() == 2);
+        assertTrue(policy.multiAccess.usage("/c").files == 0);
+        assertTrue(policy.checkCache());
+    }
+
+    @Test
+    public void testCompactLookupConcurrent() throws InterruptedException {
+        // lock-free lookups never miss a present path while a writer adds, removes and grows the table
+        final FileBucket bucket = new FileBucket(1L << 40, "onceAccess", "LRU", true);
+        bucket.log = new LOG(false, null);
+        for (int i = 0; i < 1000; i++) {
+            bucket.addFile(bucket.newFile("/stable/" + i, i));
+        }
+        final AtomicInteger wrong = new AtomicInteger();
+        final boolean[] stop = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                for (int round = 0; round < 200 && !stop[0]; round++) {
+                    for (int i = 0; i < 1000; i++) {
+                        FileInfo file = bucket.getFile("/stable/" + i);
+                        if (file == null || file.getFileSize() != i) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 50000 && reader.isAlive(); i++) {
+            FileInfo churn = bucket.newFile("/churn/" + i, 1);
+            bucket.addFile(churn);
+            if (i >= 64) {
+                bucket.remove(bucket.getFile("/churn/" + (i - 64)));
+            }
+        }
+        stop[0] = true;
+        reader.join();
+        assertTrue(wrong.get() == 0);
+    }
+
+    @Test
+    public void testBatchReadPinned() {
+        // the single eviction after a batch read takes other files first and never one of the batch
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.latencyMetrics = true;
+        Policy p = new Policy(c);
+        for (int i = 0; i < 5; i++) {
+            p.cacheFileRead("/old/" + i, 100);
+        }
+        long reads = p.getMetrics().read.count();
+        List<String> paths = new ArrayList<String>();
+        long[] sizes = new long[4];
+        for (int i = 0; i < 4; i++) {
+            paths.add("/batch/" + i);
+            sizes[i] = 220;
+        }
+        p.cacheFilesRead(paths, sizes);
+        for (String path : paths) {
+            assertTrue(path, p.cachedSize(path) == 220);
+        }
+        assertTrue(p.onceAccess.usage("/old").files == 0);
+        assertTrue(p.onceAccess.getBucketSize() + p.multiAccess.getBucketSize() == 880);
+        // the batch is one sample of the read latency
+        assertTrue(p.getMetrics().read.count() == reads + 1);
+        assertTrue(p.checkCache());
+        p.close();
+    }
+
+    @Test
+    public void testSnapshotRestore() throws IOException {
+        // snapshot plus journal rebuild the same buckets and counters
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-snap-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        Configuration c = new Configuration(2000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.snapshotPath = new File(dir, "cache.snap").getPath();
+        c.journal = true;
+        Policy p1 = new Policy(c);
+        TraceGenerator gen = TraceGenerator.zipfian(1000, 0.9, 5);
+        for (int i = 0; i < 20000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            p1.cacheFileOpen(path);
+            p1.cacheFileRead(path, 1 + i % 3);
+            if (i == 10000) {
+                p1.snapshot();
+            }
+        }
+        p1.cacheFileRead("/warehouse/orc", 100, 50);
+        p1.flushJournal();
+
+        // p1 is still running, like a crash before its next snapshot
+        Policy p2 = new Policy(c);
+        assertTrue(p2.getHitCount() == p1.getHitCount());
+        assertTrue(p2.getMissCount() == p1.getMissCount());
+        assertTrue(p2.onceAccess.getBucketSize() == p1.onceAccess.getBucketSize());
+        assertTrue(p2.multiAccess.getBucketSize() == p1.multiAccess.getBucketSize());
+        assertTrue(p2.cachedSize("/warehouse/orc") == 50);
+        FileInfo[] once1 = p1.onceAccess.snapshotFiles();
+        FileInfo[] once2 = p2.onceAccess.snapshotFiles();
+        assertTrue(once1.length == once2.length);
+        for (int i = 0; i < once1.length; i++) {
+            assertEquals(once1[i].getFilePath(), once2[i].getFilePath());
+        }
+        for (FileInfo file : p1.multiAccess.files) {
+            assertTrue(p2.multiAccess.getFile(file.getFilePath()).getAccessCount() == file.getAccessCount());
+        }
+        p2.close();
+        p1.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testSnapshotRanges() throws IOException {
+        // the cached ranges of a file come back from the snapshot, not just their total
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-snap-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        Configuration c = new Configuration(2000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.snapshotPath = new File(dir, "cache.snap").getPath();
+        Policy p1 = new Policy(c);
+        p1.cacheFileRead("/warehouse/orc", 100, 50);
+        p1.cacheFileRead("/warehouse/orc", 400, 20);
+        p1.cacheFileRead("/warehouse/txt", 70);
+        p1.snapshot();
+        p1.close();
+        Policy p2 = new Policy(c);
+        FileInfo orc = p2.onceAccess.getFile("/warehouse/orc");
+        assertTrue(orc.getFileSize() == 70 && orc.getRanges().rangeCount() == 2);
+        assertTrue(orc.cachedBytes(100, 50) == 50 && orc.cachedBytes(150, 250) == 0);
+        assertTrue(p2.cacheFileRead("/warehouse/orc", 400, 20) == 20);
+        assertTrue(p2.onceAccess.getFile("/warehouse/txt").getRanges() == null);
+        assertTrue(p2.cachedSize("/warehouse/txt") == 70);
+        p2.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testJournalRotateConcurrent() throws Exception {
+        // snapshots taken while readers run never replay a change twice or drop one
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-snap-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        Configuration c = new Configuration(1L << 40, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.snapshotPath = new File(dir, "cache.snap").getPath();
+        c.snapshotInterval = 1L << 40;
+        c.journal = true;
+        c.lockStripes = 16;
+        final Policy p1 = new Policy(c);
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int seed = t;
+            readers[t] = new Thread(new Runnable() {
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        String path = "/warehouse/\u00e9t\u00e9/" + random.nextInt(500);
+                        p1.cacheFileOpen(path);
+                        p1.cacheFileRead(path, 1 + random.nextInt(3));
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (int i = 0; i < 20; i++) {
+            p1.snapshot();
+            Thread.sleep(5);
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        p1.flushJournal();
+        Policy p2 = new Policy(c);
+        assertTrue(p2.getHitCount() == p1.getHitCount());
+        assertTrue(p2.getMissCount() == p1.getMissCount());
+        assertTrue(p2.multiAccess.getBucketSize() == p1.multiAccess.getBucketSize());
+        for (FileInfo file : p1.multiAccess.snapshotFiles()) {
+            assertTrue(p2.multiAccess.getFile(file.getFilePath()).getAccessCount() == file.getAccessCount());
+        }
+        p2.close();
+        p1.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testSketchAgingConcurrent() throws InterruptedException {
+        // every increment is counted toward aging and no halving runs twice for one sample
+        final CountMinSketch sketch = new CountMinSketch(1 << 16, 1000);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 100000;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 25000; i++) {
+                        sketch.increment("/cold/" + (base + i));
+                        sketch.increment("/hot");
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // a halving every 1000 counted increments leaves the rest pending
+        assertTrue(sketch.pending() >= 0 && sketch.pending() < 1000);
+        int hot = sketch.frequency("/hot");
+        assertTrue(hot >= 1 && hot <= 15);
+    }
+
+    @Test
+    public void testEvictionPolicies() {
+        // a scan of files opened twice fills slru's multiAccess, tinylfu keeps it to the hot set
+        int[] scanned = new int[2];
+        String[] names = {"slru", "tinylfu"};
+        for (int n = 0; n < 2; n++) {
+            Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+            c.evictionPolicy = names[n];
+            Policy p = new Policy(c);
+            TraceGenerator gen = TraceGenerator.zipfian(500, 0.9, 11);
+            for (int i = 0; i < 20000; i++) {
+                String path = TraceGenerator.path(gen.next());
+                p.cacheFileOpen(path);
+                p.cacheFileRead(path, 1);
+            }
+            for (int i = 0; i < 10000; i++) {
+                String path = TraceGenerator.path(100000 + i);
+                p.cacheFileOpen(path);
+                p.cacheFileOpen(path);
+                p.cacheFileRead(path, 1);
+                if (i % 100 == 0) {
+                    path = TraceGenerator.path(gen.next());
+                    p.cacheFileOpen(path);
+                    p.cacheFileRead(path, 1);
+                }
+            }
+            for (FileInfo file : p.multiAccess.snapshotFiles()) {
+                if (!file.getFilePath().startsWith("/warehouse/tbl_0/")) scanned[n]++;
+            }
+            for (int i = 0; i < 50; i++) {
+                assertTrue(p.cachedSize(TraceGenerator.path(i)) >= 0);
+            }
+            p.close();
+        }
+        assertTrue(scanned[0] > 100);
+        assertTrue(scanned[1] < 10);
+    }
+
+    @Test
+    public void testArcGhostHit() {
+        // arc: a miss on a file just evicted from onceAccess grows its target and goes to multiAccess
+        Configuration c = new Configuration(100, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.evictionPolicy = "arc";
+        Policy p = new Policy(c);
+        float before = p.getEvictionPolicy().singleFactor();
+        for (int i = 0; i < 200; i++) {
+            p.cacheFileRead("/arc/" + i, 1);
+        }
+        int last = 199;
+        while (p.cachedSize("/arc/" + last) >= 0) last--;
+        p.cacheFileRead("/arc/" + last, 1);
+        assertTrue(p.getEvictionPolicy().singleFactor() > before);
+        assertTrue(p.multiAccess.contains("/arc/" + last));
+        p.close();
+    }
+
+    @Test
+    public void testEvictionListeners() {
+        // listeners see every eviction
+        Configuration c = new Configuration(100, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy p = new Policy(c);
+        final int[] evicted = new int[1];
+        p.addEvictionListener(new EvictionListener() {
+            public void onEvict(FileBucket from, FileInfo victim) {
+                evicted[0]++;
+            }
+        });
+        for (int i = 0; i < 200; i++) {
+            p.cacheFileRead("/slru/" + i, 1);
+        }
+        assertTrue(evicted[0] == p.getEvictCount());
+        p.close();
+    }
+
+    @Test
+    public void testUnknownQueueOrder() {
+        try {
+            new FileBucket(10, "onceAccess", "MRU");
+            assertTrue(false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGhostBound() {
+        // arc ghosts are bounded like ARC: onceAccess ghosts by cache - target, multiAccess ghosts by target
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.evictionPolicy = "arc";
+        Policy p = new Policy(c);
+        GhostPolicy arc = (GhostPolicy) p.getEvictionPolicy();
+        TraceGenerator gen = TraceGenerator.zipfian(2000, 0.8, 3);
+        for (int i = 0; i < 20000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            p.cacheFileOpen(path);
+            p.cacheFileRead(path, 1 + i % 7);
+            long target = (long) (arc.singleFactor() * 1000);
+            assertTrue(arc.onceGhosts().bytes() <= 1000 - target + 1);
+            assertTrue(arc.multiGhosts().bytes() <= target + 1);
+        }
+        assertTrue(arc.onceGhosts().size() > 0 && arc.multiGhosts().size() > 0);
+        p.close();
+    }
+
+    @Test
+    public void testAdmission() {
+        // threshold: a file over a tenth of the cache is served but never cached
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.admission = "threshold";
+        Policy p = new Policy(c);
+        for (int i = 0; i < 10; i++) {
+            p.cacheFileOpen("/hot/" + i);
+            p.cacheFileRead("/hot/" + i, 50);
+        }
+        long misses = p.getMissCount();
+        p.cacheFileRead("/huge", 5000);
+        assertTrue(p.cachedSize("/huge") == -1);
+        assertTrue(p.getMissCount() == misses + 1);
+        p.cacheFileOpen("/scan");
+        p.cacheFileRead("/scan", 200);
+        assertTrue(p.cachedSize("/scan") == -1);
+        assertTrue(p.getEvictCount() == 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(p.cachedSize("/hot/" + i) == 50);
+        }
+        assertTrue(p.getAdmission().getRejectedBytes() == 5200);
+        assertTrue(p.getAdmission().getAdmittedBytes() == 500);
+        assertTrue(p.getAdmission().getBypassedBytes() == 0);
+        p.close();
+    }
+
+    @Test
+    public void testAdmissionAdaptSize() {
+        // adaptsize: small files almost always get in, big ones rarely
+        Configuration c = new Configuration(100000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.admission = "adaptsize";
+        Policy p = new Policy(c);
+        int small = 0;
+        int big = 0;
+        for (int i = 0; i < 1000; i++) {
+            p.cacheFileRead("/small/" + i, 10);
+            p.cacheFileRead("/big/" + i, 5000);
+            if (p.cachedSize("/small/" + i) >= 0) small++;
+            if (p.cachedSize("/big/" + i) >= 0) big++;
+        }
+        assertTrue(small > 950);
+        assertTrue(big < 50);
+        assertTrue(p.getAdmission().getBypassedBytes() > 0);
+        p.close();
+    }
+
+    @Test
+    public void testAdmissionBypass() {
+        // an open followed by a rejected read, a second open or growing in pieces gets nothing past admission
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.admission = "threshold";
+        Policy p = new Policy(c);
+        p.cacheFileOpen("/big");
+        assertTrue(p.cachedSize("/big") == 0);
+        p.cacheFileRead("/big", 5000);
+        assertTrue(p.cachedSize("/big") == -1);
+        assertTrue(p.onceAccess.usage("/").files == 0);
+
+        // a re-opened empty entry is promoted like any hit, its read is still judged on the whole file
+        p.cacheFileOpen("/big");
+        p.cacheFileOpen("/big");
+        assertTrue(p.multiAccess.contains("/big") && p.cachedSize("/big") == 0);
+        p.cacheFileRead("/big", 5000);
+        assertTrue(p.cachedSize("/big") == -1);
+        assertTrue(p.multiAccess.usage("/").files == 0);
+
+        // multiAccess files are admitted on their total size too
+        p.cacheFileOpen("/grow");
+        p.cacheFileRead("/grow", 50);
+        p.cacheFileOpen("/grow");
+        assertTrue(p.multiAccess.contains("/grow"));
+        p.cacheFileRead("/grow", 5000);
+        assertTrue(p.cachedSize("/grow") == 50);
+
+        // ranged reads cannot add up past the threshold
+        p.cacheFileRead("/orc", 0, 60);
+        p.cacheFileRead("/orc", 60, 60);
+        assertTrue(p.cachedSize("/orc") == 60);
+        assertTrue(p.checkCache());
+        p.close();
+    }
+
+    @Test
+    public void testAdaptiveFactor() {
+        // interactive zipfian phases want a small onceAccess, ETL phases one that holds
+        // a file until it is read back; the tuned factor beats every static one
+        float[] factors = {0.1f, 0.25f, 0.5f, 0.75f, 0.9f};
+        double bestStatic = 0;
+        for (float f : factors) {
+            bestStatic = Math.max(bestStatic, phasedHitRate("slru", f));
+        }
+        assertTrue(phasedHitRate("adaptive", 0.25f) > bestStatic);
+
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.evictionPolicy = "adaptive";
+        Policy p = new Policy(c);
+        assertTrue(p.getSingleFactor() == 0.25f);
+        TraceGenerator etl = TraceGenerator.twice(500, 1000000);
+        for (int i = 0; i < 30000; i++) {
+            String path = TraceGenerator.path(etl.next());
+            p.cacheFileOpen(path);
+            p.cacheFileRead(path, 1);
+        }
+        assertTrue(p.getSingleFactor() > 0.5f);
+        assertTrue(p.getSingleFactor() <= c.maxSingleFactor);
+        p.close();
+    }
+
+    private static double phasedHitRate(String policy, float singleFactor) {
+        Configuration c = new Configuration(1000, false, null, singleFactor, 1 - singleFactor, 0.1f, 0.8f, 0.9f, false);
+        c.evictionPolicy = policy;
+        Policy p = new Policy(c);
+        TraceGenerator gen = TraceGenerator.phased(30000,
+                TraceGenerator.zipfian(5000, 0.9, 4), TraceGenerator.twice(500, 1000000));
+        for (int i = 0; i < 180000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            p.cacheFileOpen(path);
+            p.cacheFileRead(path, 1);
+        }
+        p.close();
+        return p.getHitRate();
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        // ttl: stale files drop out without size pressure and a later lookup misses
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.defaultTtl = 100;
+        c.expiryTick = 10;
+        Policy p = new Policy(c);
+        for (int i = 0; i < 10; i++) {
+            p.cacheFileRead("/dropped/" + i, 10);
+        }
+        p.cacheFileRead("/kept", 10);
+        assertTrue(p.setExpiry("/kept", 0, 0));
+        Thread.sleep(150);
+        long misses = p.getMissCount();
+        p.cacheFileOpen("/dropped/0");
+        assertTrue(p.getMissCount() == misses + 1);
+        assertTrue(p.getExpiredCount() == 1);
+        p.expire();
+        assertTrue(p.getExpiredCount() == 10);
+        assertTrue(p.cachedSize("/dropped/5") == -1);
+        assertTrue(p.cachedSize("/kept") == 10);
+        assertTrue(p.getEvictCount() == 0);
+        p.close();
+    }
+
+    @Test
+    public void testIdleTimeout() throws InterruptedException {
+        // idle timeout: accesses keep a file alive, the background thread reclaims
+        // expired files before it touches the LRU/LFU victims
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, true);
+        c.defaultIdleTimeout = 200;
+        c.expiryTick = 10;
+        c.evictInterval = 20;
+        Policy p = new Policy(c);
+        for (int i = 0; i < 10; i++) {
+            p.cacheFileOpen("/hot/" + i);
+            p.cacheFileRead("/hot/" + i, 40);
+            p.cacheFileOpen("/hot/" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            p.cacheFileRead("/idle/" + i, 40);
+        }
+        for (int round = 0; round < 6; round++) {
+            Thread.sleep(60);
+            for (int i = 0; i < 10; i++) {
+                p.cacheFileOpen("/hot/" + i);
+            }
+        }
+        assertTrue(p.getExpiredCount() == 10);
+        assertTrue(p.getEvictCount() == 0);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(p.cachedSize("/hot/" + i) == 40);
+            assertTrue(p.cachedSize("/idle/" + i) == -1);
+        }
+        p.close();
+    }
+
+    @Test
+    public void testSnapshotExpiry() throws IOException, InterruptedException {
+        // files restored from a snapshot expire like the ones they were saved from
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-snap-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.snapshotPath = new File(dir, "cache.snap").getPath();
+        c.defaultTtl = 200;
+        c.expiryTick = 10;
+        Policy p1 = new Policy(c);
+        for (int i = 0; i < 10; i++) {
+            p1.cacheFileRead("/ttl/" + i, 10);
+        }
+        p1.snapshot();
+        p1.close();
+        Policy p2 = new Policy(c);
+        assertTrue(p2.cachedSize("/ttl/0") == 10);
+        Thread.sleep(300);
+        p2.expire();
+        assertTrue(p2.getExpiredCount() == 10);
+        assertTrue(p2.cachedSize("/ttl/0") == -1);
+        p2.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testJournalReplayBurst() throws IOException, InterruptedException {
+        // replay applies the journaled opens as they happened, not as the burst window sees them now
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-snap-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.snapshotPath = new File(dir, "cache.snap").getPath();
+        c.journal = true;
+        c.burstWindow = 50;
+        Policy p1 = new Policy(c);
+        p1.cacheFileOpen("/burst");
+        p1.cacheFileRead("/burst", 10);
+        p1.cacheFileOpen("/burst");
+        Thread.sleep(100);
+        p1.cacheFileOpen("/burst");
+        assertTrue(p1.multiAccess.contains("/burst"));
+        p1.flushJournal();
+        Policy p2 = new Policy(c);
+        assertTrue(p2.multiAccess.getFile("/burst").getAccessCount()
+                == p1.multiAccess.getFile("/burst").getAccessCount());
+        p2.close();
+        p1.close();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.latencyMetrics = true;
+        c.jmxName = "testMetrics";
+        Policy p = new Policy(c);
+        for (int i = 0; i < 100; i++) {
+            p.cacheFileOpen("/m/" + i);
+            p.cacheFileRead("/m/" + i, 20);
+        }
+        for (int i = 0; i < 10; i++) {
+            p.cacheFileOpen("/m/" + (99 - i));
+        }
+        MetricsSnapshot snap = p.metricsSnapshot();
+        assertTrue(snap.hits == 10);
+        assertTrue(snap.misses == 100);
+        assertTrue(snap.promotions == 10);
+        assertTrue(snap.bytesRead == 2000);
+        assertTrue(snap.onceEvictions + snap.multiEvictions == p.getEvictCount());
+        assertTrue(snap.evictedBytes == 20 * p.getEvictCount());
+        assertTrue(snap.onceBytes + snap.multiBytes == 2000 - snap.evictedBytes);
+        assertTrue(snap.hardHeadroom() >= 0);
+        assertTrue(snap.openP50 > 0 && snap.openP50 <= snap.openP99 && snap.openP99 <= snap.openMax);
+        assertTrue(snap.readP99 > 0);
+        assertTrue(snap.evictP99 > 0);
+
+        // the snapshot does not move, the MBean shows the live values
+        p.cacheFileOpen("/m/new");
+        assertTrue(snap.misses == 100);
+        javax.management.ObjectName name =
+                new javax.management.ObjectName("CacheRecord:type=Policy,name=\"testMetrics\"");
+        javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue((Long) server.getAttribute(name, "Misses") == 101);
+        assertTrue((Long) server.getAttribute(name, "Promotions") == 10);
+        assertTrue((Float) server.getAttribute(name, "HardFillRate") == 0.9f);
+        p.close();
+        assertTrue(!server.isRegistered(name));
+    }
+
+    @Test
+    public void testShardedCache() {
+        // four workers: one cache each seeing a quarter of the traffic vs one ring of four shards
+        LoopbackTransport transport = new LoopbackTransport();
+        ShardedCache sharded = new ShardedCache(transport, 128);
+        Policy[] alone = new Policy[4];
+        for (int n = 0; n < 4; n++) {
+            Configuration c = new Configuration(500, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+            transport.register("node" + n, new Policy(c));
+            sharded.addNode("node" + n);
+            alone[n] = new Policy(c);
+        }
+        TraceGenerator gen = TraceGenerator.zipfian(4000, 0.9, 17);
+        for (int i = 0; i < 80000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            sharded.cacheFileOpen(path);
+            sharded.cacheFileRead(path, 1);
+            alone[i % 4].cacheFileOpen(path);
+            alone[i % 4].cacheFileRead(path, 1);
+        }
+        long shardedHits = 0, shardedAll = 0, aloneHits = 0, aloneAll = 0;
+        for (int n = 0; n < 4; n++) {
+            Policy p = transport.policyOf("node" + n);
+            shardedHits += p.getHitCount();
+            shardedAll += p.getHitCount() + p.getMissCount();
+            aloneHits += alone[n].getHitCount();
+            aloneAll += alone[n].getHitCount() + alone[n].getMissCount();
+            // virtual nodes keep the shards within a third of an even split
+            assertTrue(p.getHitCount() + p.getMissCount() > 80000 / 4 * 2 / 3);
+        }
+        assertTrue(shardedHits / (double) shardedAll > aloneHits / (double) aloneAll + 0.1);
+        for (int n = 0; n < 4; n++) {
+            transport.policyOf("node" + n).close();
+            alone[n].close();
+        }
+    }
+
+    @Test
+    public void testShardedCacheMembership() {
+        LoopbackTransport transport = new LoopbackTransport();
+        ShardedCache sharded = new ShardedCache(transport, 128);
+        for (int n = 0; n < 4; n++) {
+            transport.register("node" + n, new Policy(
+                    new Configuration(500, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false)));
+            sharded.addNode("node" + n);
+        }
+        TraceGenerator gen = TraceGenerator.zipfian(4000, 0.9, 17);
+        for (int i = 0; i < 20000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            sharded.cacheFileOpen(path);
+            sharded.cacheFileRead(path, 1);
+        }
+
+        // a new node takes about a fifth of the files, the rest stay where they are
+        List<String> cached = new ArrayList<String>();
+        for (int id = 0; id < 4000; id++) {
+            if (sharded.cachedSize(TraceGenerator.path(id)) >= 0) cached.add(TraceGenerator.path(id));
+        }
+        transport.register("node4", new Policy(
+                new Configuration(500, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false)));
+        int moved = sharded.addNode("node4");
+        assertTrue(moved > cached.size() / 10 && moved < cached.size() / 3);
+        for (String path : cached) {
+            assertTrue(sharded.cachedSize(path) >= 0);
+        }
+        Map<String, List<String>> groups = sharded.groupByOwner(cached);
+        assertTrue(groups.get("node4").size() == moved);
+
+        // a leaving node hands its files to the others
+        int owned = groups.get("node2").size();
+        assertTrue(sharded.removeNode("node2") == owned);
+        assertTrue(!sharded.nodes().contains("node2"));
+        for (String path : cached) {
+            assertTrue(!sharded.ownerOf(path).equals("node2"));
+        }
+        for (int n = 0; n < 5; n++) {
+            transport.policyOf("node" + n).close();
+        }
+    }
+
+    @Test
+    public void testBatchAccess() {
+        // without eviction mid-batch a batch ends like the same calls one by one
+        Configuration c = new Configuration(1L << 40, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy single = new Policy(c);
+        Policy batched = new Policy(c);
+        TraceGenerator gen = TraceGenerator.zipfian(500, 0.9, 5);
+        for (int b = 0; b < 200; b++) {
+            List<String> paths = new ArrayList<String>();
+            long[] sizes = new long[32];
+            for (int i = 0; i < 32; i++) {
+                int id = gen.next();
+                paths.add(TraceGenerator.path(id));
+                sizes[i] = 1 + id % 7;
+            }
+            for (int i = 0; i < 32; i++) {
+                single.cacheFileOpen(paths.get(i));
+            }
+            for (int i = 0; i < 32; i++) {
+                single.cacheFileRead(paths.get(i), sizes[i]);
+            }
+            batched.cacheFilesOpen(paths);
+            batched.cacheFilesRead(paths, sizes);
+        }
+        assertTrue(single.getHitCount() == batched.getHitCount());
+        assertTrue(single.getMissCount() == batched.getMissCount());
+        FileBucket[][] buckets = {{single.onceAccess, batched.onceAccess}, {single.multiAccess, batched.multiAccess}};
+        for (FileBucket[] pair : buckets) {
+            FileInfo[] a = pair[0].snapshotFiles();
+            FileInfo[] b = pair[1].snapshotFiles();
+            assertTrue(a.length == b.length);
+            for (int i = 0; i < a.length; i++) {
+                assertEquals(a[i].getFilePath(), b[i].getFilePath());
+                assertTrue(a[i].getFileSize() == b[i].getFileSize());
+            }
+        }
+        single.close();
+        batched.close();
+    }
+
+    @Test
+    public void testBatchAccessOverflow() {
+        // an overflowing batch is brought back under the soft mark by one eviction
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy policy = new Policy(c);
+        List<String> paths = new ArrayList<String>();
+        long[] sizes = new long[100];
+        for (int i = 0; i < 100; i++) {
+            paths.add("/batch/" + i);
+            sizes[i] = 20;
+        }
+        policy.cacheFilesOpen(paths);
+        policy.cacheFilesRead(paths, sizes);
+        assertTrue(policy.onceAccess.getBucketSize() + policy.multiAccess.getBucketSize() <= 800);
+        assertTrue(policy.checkCache());
+        policy.close();
+    }
+
+    @Test
+    public void testBatchAccessConcurrent() throws InterruptedException {
+        // overlapping batches from two threads lock their stripes in the same order
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        final Policy shared = new Policy(c);
+        final List<String> forward = new ArrayList<String>();
+        final List<String> backward = new ArrayList<String>();
+        final long[] ones = new long[64];
+        for (int i = 0; i < 64; i++) {
+            forward.add("/shared/" + i);
+            backward.add("/shared/" + (63 - i));
+            ones[i] = 1;
+        }
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < 2; t++) {
+            final List<String> mine = t == 0 ? forward : backward;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int r = 0; r < 2000; r++) {
+                        shared.cacheFilesOpen(mine);
+                        shared.cacheFilesRead(mine, ones);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+            assertTrue(!t.isAlive());
+        }
+        assertTrue(shared.getHitCount() + shared.getMissCount() == 2 * 2000 * 64);
+        shared.close();
+    }
+
+    @Test
+    public void testBudgetedEviction() {
+        // one file per read: unbudgeted, the read crossing HARD_FILL_RATE evicts a hundred files
+        int[] worst = new int[2];
+        for (int k = 0; k < 2; k++) {
+            Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+            c.evictBatch = k == 0 ? 0 : 4;
+            Policy policy = new Policy(c);
+            final int[] evicted = new int[1];
+            policy.addEvictionListener(new EvictionListener() {
+                public void onEvict(FileBucket from, FileInfo victim) {
+                    evicted[0]++;
+                }
+            });
+            for (int i = 0; i < 5000; i++) {
+                evicted[0] = 0;
+                policy.cacheFileRead("/budget/" + i, 1);
+                worst[k] = Math.max(worst[k], evicted[0]);
+                assertTrue(policy.onceAccess.getBucketSize() + policy.multiAccess.getBucketSize() <= 900);
+            }
+            if (k == 1) {
+                // the debt is paid off a few files per read and never reaches the hard limit
+                assertTrue(policy.evictDebt() == 0);
+                assertTrue(policy.onceAccess.getBucketSize() + policy.multiAccess.getBucketSize() <= 800);
+            }
+            policy.close();
+        }
+        assertTrue(worst[0] >= 100);
+        assertTrue(worst[1] <= 4);
+    }
+
+    @Test
+    public void testBudgetedEvictionShrink() {
+        // a shrunk cache is brought under the hard limit at once, the rest waits
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.evictBatch = 4;
+        Policy policy = new Policy(c);
+        for (int i = 0; i < 5000; i++) {
+            policy.cacheFileRead("/budget/" + i, 1);
+        }
+        assertTrue(policy.evictDebt() == 0);
+        policy.setCacheSize(500);
+        policy.cacheFileRead("/budget/big", 1);
+        assertTrue(policy.onceAccess.getBucketSize() + policy.multiAccess.getBucketSize() <= 450);
+        assertTrue(policy.evictDebt() > 0);
+        for (int i = 0; i < 20; i++) {
+            policy.cacheFileRead("/budget/more" + i, 1);
+        }
+        assertTrue(policy.evictDebt() == 0);
+        assertTrue(policy.checkCache());
+        policy.close();
+    }
+
+    @Test
+    public void testDataStore() throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-data-" + System.nanoTime());
+        File remote = new File(dir, "remote/warehouse");
+        remote.mkdirs();
+        for (int i = 0; i < 40; i++) {
+            try (FileOutputStream out = new FileOutputStream(new File(remote, "part-" + i))) {
+                byte[] bytes = new byte[100 + i * 10];
+                for (int b = 0; b < bytes.length; b++) bytes[b] = (byte) (i + b);
+                out.write(bytes);
+            }
+        }
+        Configuration c = new Configuration(4000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.dataDir = new File(dir, "segments").getPath();
+        c.dataSegmentSize = 1024;
+        c.dataSource = new LocalDirectorySource(new File(dir, "remote"));
+        Policy policy = new Policy(c);
+        DataStore data = policy.getDataStore();
+
+        // a miss is fetched once, the hit after it is the stored bytes
+        DataStore.Slice first = policy.cacheFileData("/warehouse/part-3");
+        assertTrue(first.bytes().isReadOnly() && first.length() == 130);
+        for (int b = 0; b < 130; b++) assertTrue(first.bytes().get(b) == (byte) (3 + b));
+        DataStore.Slice second = policy.cacheFileData("/warehouse/part-3");
+        assertEquals(first.bytes(), second.bytes());
+        first.close();
+        second.close();
+        assertTrue(data.getFetchCount() == 1);
+        assertTrue(policy.getHitCount() == 1 && policy.getMissCount() == 1);
+        assertTrue(policy.cachedSize("/warehouse/part-3") == 130);
+
+        // evicted files give their extents back, the stored files are the cached ones
+        for (int r = 0; r < 3; r++) {
+            for (int i = 0; i < 40; i++) {
+                try (DataStore.Slice slice = policy.cacheFileData("/warehouse/part-" + i)) {
+                    ByteBuffer buf = slice.bytes();
+                    assertTrue(buf.remaining() == 100 + i * 10 && buf.get(buf.remaining() - 1) == (byte) (i + buf.remaining() - 1));
+                }
+            }
+        }
+        assertTrue(policy.getEvictCount() > 0);
+        int stored = 0;
+        for (int i = 0; i < 40; i++) {
+            String path = "/warehouse/part-" + i;
+            assertTrue(data.contains(path) == (policy.cachedSize(path) >= 0));
+            if (data.contains(path)) stored++;
+        }
+        assertTrue(stored == data.getFileCount());
+        assertTrue(data.getUsedBytes() <= 4000 * 0.9 + 8 * stored);
+        assertTrue(data.getSegmentCount() <= 5);
+        assertTrue(policy.removeFile("/warehouse/part-39") || !data.contains("/warehouse/part-39"));
+        assertTrue(!data.contains("/warehouse/part-39"));
+        policy.close();
+        assertTrue(new File(dir, "segments").list().length == 0);
+        for (File f : new File(dir, "remote/warehouse").listFiles()) f.delete();
+        new File(dir, "remote/warehouse").delete();
+        new File(dir, "remote").delete();
+        new File(dir, "segments").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testDataStorePinned() throws IOException {
+        // an evicted file's bytes stay put while a Slice of them is open
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-data-" + System.nanoTime());
+        DataStore data = new DataStore(dir, 1024, 1024);
+        DataSource source = new DataSource() {
+            public long length(String path) {
+                return 1000;
+            }
+
+            public int read(String path, long offset, ByteBuffer dst) {
+                int n = dst.remaining();
+                while (dst.hasRemaining()) dst.put((byte) path.charAt(1));
+                return n;
+            }
+        };
+        DataStore.Slice a = data.load("/a", 1000, source);
+        assertTrue(data.free("/a") && !data.contains("/a"));
+        // /b cannot take over the extent of /a while it is pinned
+        DataStore.Slice b = data.load("/b", 1000, source);
+        assertTrue(b != null && data.getUsedBytes() == 2000);
+        for (int i = 0; i < 1000; i++) assertTrue(a.bytes().get(i) == 'a');
+        DataStore.Slice shared = a.share();
+        a.close();
+        a.close();
+        assertTrue(data.getUsedBytes() == 2000);
+        shared.close();
+        assertTrue(data.getUsedBytes() == 1000 && a.share() == null);
+        b.close();
+        // the extent given back is reused, no third segment
+        DataStore.Slice c = data.load("/c", 1000, source);
+        assertTrue(c != null && c.bytes().get(999) == 'c' && data.getSegmentCount() == 2);
+        c.close();
+        data.close();
+        dir.delete();
+    }
+
+    @Test
+    public void testDataStoreOversized() throws IOException {
+        // a file larger than a segment is served without being stored
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-data-" + System.nanoTime());
+        File remote = new File(dir, "remote/warehouse");
+        remote.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(remote, "huge"))) {
+            out.write(new byte[5000]);
+        }
+        Configuration c = new Configuration(4000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.dataDir = new File(dir, "segments").getPath();
+        c.dataSegmentSize = 1024;
+        c.dataSource = new LocalDirectorySource(new File(dir, "remote"));
+        Policy policy = new Policy(c);
+        DataStore.Slice huge = policy.cacheFileData("/warehouse/huge");
+        assertTrue(huge.length() == 5000 && !policy.getDataStore().contains("/warehouse/huge"));
+        assertTrue(policy.cachedSize("/warehouse/huge") < 0);
+        policy.close();
+        new File(remote, "huge").delete();
+        remote.delete();
+        new File(dir, "remote").delete();
+        new File(dir, "segments").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testDataStorePartialFile() throws IOException {
+        // a file the buckets hold only part of is served from the source, the store never holds it
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-data-" + System.nanoTime());
+        File remote = new File(dir, "remote/warehouse");
+        remote.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(remote, "part-0"))) {
+            out.write(new byte[450]);
+        }
+        Configuration c = new Configuration(4000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.dataDir = new File(dir, "segments").getPath();
+        c.dataSegmentSize = 1024;
+        c.dataSource = new LocalDirectorySource(new File(dir, "remote"));
+        c.admission = "threshold";
+        Policy policy = new Policy(c);
+        DataStore data = policy.getDataStore();
+        policy.cacheFileRead("/warehouse/part-0", 0, 100);
+        // growing to 450 bytes is over a tenth of the cache and rejected
+        DataStore.Slice buf = policy.cacheFileData("/warehouse/part-0");
+        assertTrue(buf.length() == 450);
+        assertTrue(policy.cachedSize("/warehouse/part-0") == 100);
+        assertTrue(!data.contains("/warehouse/part-0") && data.getFetchCount() == 0);
+        policy.close();
+        new File(remote, "part-0").delete();
+        remote.delete();
+        new File(dir, "remote").delete();
+        new File(dir, "segments").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testPrefetch() {
+        // a scan of the splits of each partition in order: prefetched splits are hits
+        long[] hits = new long[2];
+        for (int k = 0; k < 2; k++) {
+            Configuration c = new Configuration(1L << 40, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+            c.prefetch = k == 1;
+            Policy policy = new Policy(c);
+            for (int d = 0; d < 10; d++) {
+                for (int i = 0; i < 50; i++) {
+                    String path = String.format("/warehouse/tbl/dt=%02d/part-%05d", d, i);
+                    policy.cacheFileOpen(path);
+                    policy.cacheFileRead(path, 10);
+                    if (k == 1) assertTrue(policy.getPrefetcher().awaitQuiet(10000));
+                }
+            }
+            hits[k] = policy.getHitCount();
+            if (k == 1) {
+                MetricsSnapshot m = policy.metricsSnapshot();
+                // two misses per partition, the guess past the last split is never used
+                assertTrue(m.prefetchHits == 10 * 48 && m.prefetches == 10 * 49);
+                assertTrue(m.prefetchAccuracy() > 0.95 && m.prefetchCoverage() > 0.9);
+            }
+            policy.close();
+        }
+        assertTrue(hits[0] == 0 && hits[1] == 10 * 48);
+    }
+
+    @Test
+    public void testPrefetchMarkov() {
+        // a fixed order of unrelated files larger than the cache: plain LRU never hits,
+        // the markov table has the next file loaded once it has seen the order twice
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.prefetch = true;
+        Policy policy = new Policy(c);
+        String[] order = new String[200];
+        for (int i = 0; i < order.length; i++) order[i] = "/tmp/job-" + (i * 7919 % 100003) + ".dat";
+        for (int r = 0; r < 6; r++) {
+            for (String path : order) {
+                policy.cacheFileOpen(path);
+                policy.cacheFileRead(path, 10);
+                assertTrue(policy.getPrefetcher().awaitQuiet(10000));
+            }
+        }
+        MetricsSnapshot m = policy.metricsSnapshot();
+        assertTrue(m.prefetchHits > 3 * order.length && m.prefetchCoverage() > 0.5);
+        assertTrue(m.prefetchAccuracy() > 0.9);
+        assertTrue(policy.checkCache());
+        policy.close();
+    }
+
+    @Test
+    public void testPrefetchUnused() {
+        // an unused prefetch is the next victim
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.prefetch = true;
+        Policy policy = new Policy(c);
+        for (int i = 0; i < 70; i++) {
+            String path = "/tmp/job-" + (i * 7919 % 100003) + ".dat";
+            policy.cacheFileOpen(path);
+            policy.cacheFileRead(path, 10);
+            assertTrue(policy.getPrefetcher().awaitQuiet(10000));
+        }
+        assertTrue(policy.prefetch("/tmp/unused", 10));
+        assertTrue(!policy.prefetch("/tmp/unused", 10));
+        assertEquals("/tmp/unused", policy.onceAccess.peekVictim().getFilePath());
+        long wasted = policy.getMetrics().getPrefetchWasted();
+        policy.cacheFileRead("/tmp/filler", 200);
+        assertTrue(policy.cachedSize("/tmp/unused") < 0);
+        assertTrue(policy.getMetrics().getPrefetchWasted() == wasted + 1);
+        policy.close();
+    }
+
+    @Test
+    public void testPrefetchFetchUnlocked() throws Exception {
+        // a prefetch waiting on its DataSource holds no stripe, readers of the same stripe go on
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-data-" + System.nanoTime());
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Configuration c = new Configuration(4000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.dataDir = new File(dir, "segments").getPath();
+        c.dataSegmentSize = 1024;
+        c.lockStripes = 1;
+        c.dataSource = new DataSource() {
+            public long length(String path) throws IOException {
+                if (path.equals("/slow")) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return 100;
+            }
+
+            public int read(String path, long offset, ByteBuffer dst) {
+                int n = Math.min(dst.remaining(), (int) (100 - offset));
+                dst.position(dst.position() + n);
+                return n;
+            }
+        };
+        final Policy policy = new Policy(c);
+        final boolean[] prefetched = new boolean[1];
+        Thread prefetcher = new Thread(new Runnable() {
+            public void run() {
+                prefetched[0] = policy.prefetch("/slow", -1);
+            }
+        });
+        prefetcher.start();
+        entered.await();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                policy.cacheFileOpen("/other");
+                policy.cacheFileRead("/other", 10);
+            }
+        });
+        reader.start();
+        reader.join(5000);
+        boolean passed = !reader.isAlive();
+        release.countDown();
+        assertTrue(passed && policy.cachedSize("/other") == 10);
+        prefetcher.join();
+        assertTrue(prefetched[0] && policy.cachedSize("/slow") == 100);
+        assertTrue(policy.getDataStore().contains("/slow"));
+        policy.close();
+        new File(dir, "segments").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testPrefetchStopsOnClose() throws Exception {
+        // close waits for a prefetch in flight before it closes the DataStore the prefetch stores into
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-data-" + System.nanoTime());
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Configuration c = new Configuration(4000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.dataDir = new File(dir, "segments").getPath();
+        c.dataSegmentSize = 1024;
+        c.prefetch = true;
+        c.dataSource = new DataSource() {
+            public long length(String path) {
+                return 100;
+            }
+
+            public int read(String path, long offset, ByteBuffer dst) throws IOException {
+                if (path.endsWith("part-00002")) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                int n = Math.min(dst.remaining(), (int) (100 - offset));
+                dst.position(dst.position() + n);
+                return n;
+            }
+        };
+        final Policy policy = new Policy(c);
+        for (int i = 0; i < 2; i++) {
+            policy.cacheFileData(String.format("/warehouse/tbl/part-%05d", i)).close();
+        }
+        entered.await();
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                policy.close();
+            }
+        });
+        closer.start();
+        closer.join(200);
+        boolean waited = closer.isAlive();
+        release.countDown();
+        closer.join(10000);
+        assertTrue(waited && !closer.isAlive());
+        assertTrue(policy.getDataStore().getFileCount() == 0 && policy.getDataStore().getUsedBytes() == 0);
+        new File(dir, "segments").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testTieredCache() {
+        // a small memory tier over a larger ssd tier vs the memory tier alone
+        Configuration mem = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Configuration ssd = new Configuration(5000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        TieredCache tiered = new TieredCache(new Policy(mem), new Policy(ssd));
+        Policy alone = new Policy(mem);
+        TraceGenerator gen = TraceGenerator.zipfian(2000, 0.9, 29);
+        for (int i = 0; i < 40000; i++) {
+            String path = TraceGenerator.path(gen.next());
+            tiered.cacheFileOpen(path);
+            tiered.cacheFileRead(path, 10);
+            alone.cacheFileOpen(path);
+            alone.cacheFileRead(path, 10);
+            if (i % 100 == 0) assertTrue(tiered.awaitDemotions(10000));
+        }
+        assertTrue(tiered.awaitDemotions(10000));
+        assertTrue(tiered.getHits(1) > 0 && tiered.getPromotions() == tiered.getHits(1));
+        assertTrue(tiered.getDemotions() > 0);
+        assertTrue(Math.abs(tiered.getHitRate(0) + tiered.getHitRate(1) - tiered.getHitRate()) < 1e-9);
+        assertTrue(tiered.getHitRate() > alone.getHitRate() + 0.1);
+        for (int t = 0; t < 2; t++) assertTrue(tiered.getTier(t).checkCache());
+        tiered.close();
+        alone.close();
+    }
+
+    @Test
+    public void testTieredCacheMoves() {
+        // a victim of the memory tier moves down, a hit there brings it back up
+        Configuration mem = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Configuration ssd = new Configuration(5000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        TieredCache tiered = new TieredCache(new Policy(mem), new Policy(ssd));
+        for (int i = 0; i < 80; i++) {
+            tiered.cacheFileOpen("/moves/" + i);
+            tiered.cacheFileRead("/moves/" + i, 10);
+        }
+        assertTrue(tiered.awaitDemotions(10000));
+        Policy top = tiered.getTier(0);
+        String victim = top.onceAccess.peekVictim().getFilePath();
+        top.evict(top.onceAccess.peekVictim().getFileSize());
+        assertTrue(tiered.awaitDemotions(10000));
+        assertTrue(tiered.tierOf(victim) == 1);
+        tiered.cacheFileOpen(victim);
+        assertTrue(tiered.tierOf(victim) == 0 && tiered.getTier(1).cachedSize(victim) < 0);
+        assertTrue(top.multiAccess.contains(victim));
+        tiered.close();
+    }
+
+    @Test
+    public void testTieredCacheData() throws Exception {
+        // bytes move down with a demotion and back up with a promotion, nothing is fetched twice
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-tiers-" + System.nanoTime());
+        final AtomicInteger fetches = new AtomicInteger();
+        DataSource source = new DataSource() {
+            public long length(String path) {
+                return 100;
+            }
+
+            public int read(String path, long offset, ByteBuffer dst) {
+                fetches.incrementAndGet();
+                int n = Math.min(dst.remaining(), (int) (100 - offset));
+                for (int i = 0; i < n; i++) {
+                    dst.put((byte) (path.hashCode() + offset + i));
+                }
+                return n;
+            }
+        };
+        Policy[] tiers = new Policy[2];
+        for (int t = 0; t < 2; t++) {
+            Configuration c = new Configuration(t == 0 ? 1000 : 5000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+            c.dataDir = new File(dir, "tier" + t).getPath();
+            c.dataSegmentSize = 1024;
+            c.dataSource = source;
+            tiers[t] = new Policy(c);
+        }
+        TieredCache tiered = new TieredCache(tiers);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 20; i++) {
+                String path = "/data/f" + i;
+                try (DataStore.Slice slice = tiered.cacheFileData(path)) {
+                    ByteBuffer buf = slice.bytes();
+                    assertTrue(buf.remaining() == 100);
+                    for (int k = 0; k < 100; k++) {
+                        assertTrue(buf.get(k) == (byte) (path.hashCode() + k));
+                    }
+                }
+                assertTrue(tiered.awaitDemotions(10000));
+            }
+            // every file was fetched once in the first round, none in the second
+            assertTrue(fetches.get() == 20);
+        }
+        assertTrue(tiered.getDemotions() > 0 && tiered.getPromotions() > 0);
+        int below = 0;
+        for (int i = 0; i < 20; i++) {
+            String path = "/data/f" + i;
+            int tier = tiered.tierOf(path);
+            assertTrue(tier >= 0 && tiers[tier].getDataStore().contains(path));
+            assertTrue(!tiers[1 - tier].getDataStore().contains(path));
+            if (tier == 1) below++;
+        }
+        assertTrue(below > 0);
+        // demotions and promotions let go of every extent they pinned
+        for (int t = 0; t < 2; t++) {
+            DataStore data = tiers[t].getDataStore();
+            assertTrue(data.getUsedBytes() == 104L * data.getFileCount());
+        }
+        tiered.close();
+        for (int t = 0; t < 2; t++) new File(dir, "tier" + t).delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testBurstOpens() {
+        // a burst of opens is one access: a hit, but no promotion and no count
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.burstWindow = 60000;
+        Policy policy = new Policy(c);
+        for (int i = 0; i < 5; i++) policy.cacheFileOpen("/burst/a");
+        assertTrue(policy.getMissCount() == 1 && policy.getHitCount() == 4);
+        assertTrue(policy.onceAccess.contains("/burst/a"));
+        assertTrue(policy.onceAccess.getFile("/burst/a").getAccessCount() == 1);
+        assertTrue(policy.getMetrics().getCoalesced() == 4);
+        policy.close();
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        // concurrent misses of one file share one fetch
+        File dir = new File(System.getProperty("java.io.tmpdir"), "cache-flight-" + System.nanoTime());
+        dir.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(new File(dir, "split"))) {
+            out.write(new byte[300]);
+        }
+        final LocalDirectorySource local = new LocalDirectorySource(dir);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final AtomicInteger fetches = new AtomicInteger();
+        Configuration c = new Configuration(1000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.dataDir = new File(dir, "segments").getPath();
+        c.dataSegmentSize = 4096;
+        c.dataSource = new DataSource() {
+            public long length(String path) throws IOException {
+                return local.length(path);
+            }
+
+            public int read(String path, long offset, ByteBuffer dst) throws IOException {
+                fetches.incrementAndGet();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return local.read(path, offset, dst);
+            }
+        };
+        final Policy shared = new Policy(c);
+        final DataStore.Slice[] got = new DataStore.Slice[8];
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < 8; t++) {
+            final int n = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        got[n] = shared.cacheFileData("/split");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        // the loader waits at the gate in its fetch, so the other seven join its flight and wait there
+        while (shared.getJoined() < 7 || fetches.get() == 0) Thread.sleep(1);
+        assertTrue(fetches.get() == 1 && shared.getMetrics().getCoalesced() == 0);
+        for (DataStore.Slice b : got) assertTrue(b == null);
+        gate.countDown();
+        for (Thread t : threads) t.join();
+        assertTrue(fetches.get() == 1 && shared.getJoined() == 7);
+        assertTrue(shared.getMetrics().getCoalesced() == 7);
+        assertTrue(shared.getMissCount() == 1 && shared.getHitCount() == 7);
+        assertTrue(shared.onceAccess.getFile("/split").getAccessCount() == 1);
+        for (DataStore.Slice b : got) assertTrue(b != null && b.length() == 300);
+        for (DataStore.Slice b : got) b.close();
+        shared.close();
+        new File(dir, "split").delete();
+        new File(dir, "segments").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testSingleFlightError() throws Exception {
+        // joiners get the loader's exception
+        final SingleFlight<String> flight = new SingleFlight<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch fail = new CountDownLatch(1);
+        Thread loader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    flight.run("k", new SingleFlight.Load<String>() {
+                        public String load() throws IOException {
+                            started.countDown();
+                            try {
+                                fail.await();
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                            throw new IOException("source down");
+                        }
+                    });
+                } catch (IOException expected) {
+                }
+            }
+        });
+        loader.start();
+        started.await();
+        final String[] error = new String[1];
+        Thread joiner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    flight.run("k", new SingleFlight.Load<String>() {
+                        public String load() {
+                            return "second load";
+                        }
+                    });
+                    error[0] = "no exception";
+                } catch (IOException e) {
+                    error[0] = e.getMessage();
+                }
+            }
+        });
+        joiner.start();
+        while (flight.getJoined() == 0) Thread.sleep(1);
+        fail.countDown();
+        joiner.join(10000);
+        loader.join(10000);
+        assertEquals("source down", error[0]);
+        assertTrue(!flight.inFlight("k"));
+    }
+
+    // a cache over seven tables of five partitions each, with evictions and a removal behind it
+    private static Policy warehouse(boolean compact) {
+        Configuration c = new Configuration(20000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        c.compactMetadata = compact;
+        Policy policy = new Policy(c);
+        TraceGenerator gen = TraceGenerator.zipfian(3000, 0.9, 31);
+        for (int i = 0; i < 30000; i++) {
+            int id = gen.next();
+            String path = "/warehouse/tbl" + (id % 7) + "/dt=" + (id % 5) + "/part-" + id;
+            policy.cacheFileOpen(path);
+            policy.cacheFileRead(path, 1 + id % 13 + (i & 3));
+        }
+        policy.removeFile("/warehouse/tbl0/dt=0/part-0");
+        assertTrue(policy.getEvictCount() > 0 && policy.checkCache());
+        return policy;
+    }
+
+    @Test
+    public void testPrefixQueries() {
+        for (int k = 0; k < 2; k++) {
+            Policy policy = warehouse(k == 1);
+
+            // the index agrees with a scan of both buckets
+            String[] prefixes = {"/", "/warehouse", "/warehouse/tbl3", "/warehouse/tbl3/dt=3/", "/warehouse/tbl9", "/nowhere"};
+            for (String prefix : prefixes) {
+                long bytes = 0, files = 0;
+                String dir = prefix.endsWith("/") ? prefix : prefix + "/";
+                for (FileBucket b : new FileBucket[]{policy.onceAccess, policy.multiAccess}) {
+                    for (FileInfo f : b.snapshotFiles()) {
+                        if (f.getFilePath().startsWith(dir)) {
+                            bytes += f.getFileSize();
+                            files++;
+                        }
+                    }
+                }
+                PrefixIndex.Usage u = policy.usage(prefix);
+                assertTrue(prefix, u.bytes == bytes && u.files == files);
+            }
+            List<PrefixIndex.Usage> tables = policy.topPrefixes("/warehouse", 3);
+            assertTrue(tables.size() == 3);
+            for (int t = 0; t < 7; t++) {
+                long bytes = policy.usage("/warehouse/tbl" + t).bytes;
+                assertTrue(bytes <= tables.get(0).bytes);
+                assertTrue(tables.get(2).bytes >= bytes || tables.get(0).path.equals("/warehouse/tbl" + t)
+                        || tables.get(1).path.equals("/warehouse/tbl" + t));
+            }
+
+            // top files by access count, checked against a full sort
+            List<FileInfo> hot = policy.topFiles(10, false);
+            List<Integer> counts = new ArrayList<Integer>();
+            for (FileBucket b : new FileBucket[]{policy.onceAccess, policy.multiAccess}) {
+                for (FileInfo f : b.snapshotFiles()) counts.add(f.getAccessCount());
+            }
+            Collections.sort(counts, Collections.<Integer>reverseOrder());
+            assertTrue(hot.size() == 10);
+            for (int r = 0; r < 10; r++) assertTrue(hot.get(r).getAccessCount() == counts.get(r));
+            List<FileInfo> big = policy.topFiles(5, true);
+            for (int r = 1; r < 5; r++) assertTrue(big.get(r - 1).getFileSize() >= big.get(r).getFileSize());
+            policy.close();
+        }
+    }
+
+    @Test
+    public void testPrefixQueriesConcurrent() throws InterruptedException {
+        // queries run next to readers without holding them up or failing
+        for (int k = 0; k < 2; k++) {
+            final Policy policy = warehouse(k == 1);
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String path = "/warehouse/tbl" + (i % 7) + "/dt=9/part-" + i;
+                        policy.cacheFileOpen(path);
+                        policy.cacheFileRead(path, 5);
+                    }
+                }
+            });
+            reader.start();
+            while (reader.isAlive()) {
+                policy.topFiles(20, false);
+                policy.topPrefixes("/warehouse", 3);
+                assertTrue(policy.usage("/warehouse").bytes >= 0);
+            }
+            reader.join();
+            assertTrue(policy.checkCache());
+            policy.close();
+        }
+    }
+
+    @Test
+    public void testBucketSizeLong() {
+        // bucket sizes past 2 GiB are summed in a long
+        Configuration c = new Configuration(1L << 40, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        Policy policy = new Policy(c);
+        for (int i = 0; i < 4; i++) policy.cacheFileRead("/huge/" + i, 1L << 30);
+        assertTrue(policy.checkCache());
+        assertTrue(policy.usage("/huge").bytes == 4L << 30);
+        policy.close();
+    }
+
+    @Test
+    public void testSampledEviction() {
+        // sampling every file picks the exact LRU victim
+        FileBucket exact = new FileBucket(1 << 20, "onceAccess", "LRU");
+        FileBucket sampled = new FileBucket(1 << 20, "onceAccess", "SAMPLED-LRU", false, 1000);
+        exact.log = new LOG(null);
+        sampled.log = new LOG(null);
+        FileInfo[] a = new FileInfo[200];
+        FileInfo[] b = new FileInfo[200];
+        for (int i = 0; i < 200; i++) {
+            a[i] = FileInfo.of("/s/" + i, 1);
+            b[i] = FileInfo.of("/s/" + i, 1);
+            exact.addFile(a[i]);
+            sampled.addFile(b[i]);
+        }
+        for (int i = 0; i < 1000; i++) {
+            int id = (i * 37) % 200;
+            exact.accessFile(a[id]);
+            sampled.accessFile(b[id]);
+        }
+        for (int i = 0; i < 150; i++) {
+            assertEquals(exact.peekVictim().getFilePath(), sampled.peekVictim().getFilePath());
+            exact.evict(1);
+            sampled.evict(1);
+        }
+    }
+
+    @Test
+    public void testSampledEvictionHitRate() {
+        // five samples per victim come close to the exact order on replayed traces
+        TraceGenerator[] traces = {TraceGenerator.zipfian(20000, 0.9, 41),
+                TraceGenerator.scanHeavy(2000, 8000, 0.3, 41)};
+        for (int t = 0; t < traces.length; t++) {
+            int[] stream = new int[200000];
+            for (int i = 0; i < stream.length; i++) stream[i] = traces[t].next();
+            double[] rates = new double[2];
+            for (int k = 0; k < 2; k++) {
+                Configuration c = new Configuration(2000, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+                c.sampledEviction = k == 1;
+                Policy policy = new Policy(c);
+                for (int id : stream) {
+                    String path = TraceGenerator.path(id);
+                    policy.cacheFileOpen(path);
+                    policy.cacheFileRead(path, 1);
+                }
+                assertTrue(policy.checkCache());
+                rates[k] = policy.getHitRate();
+                policy.close();
+            }
+            System.out.println("trace " + t + " hit rate exact " + rates[0] + " sampled " + rates[1]);
+            assertTrue(Math.abs(rates[0] - rates[1]) < 0.03);
+        }
+    }
 }
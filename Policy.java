@@ -1,4 +1,21 @@
-import java.lang.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
 
 /**
  * This class is a eviction policy for file system
@@ -18,12 +35,56 @@ import java.lang.*;
  * else treat the three chunks equally, evict the part over preset percent,
  * and keep their ratio approach 1:2:1 after eviction if possible
  * No eviction will happen when cache space is enough
+ * <p>
+ * Policy is thread safe, open and read lock a stripe chosen by file path,
+ * so threads working on different files do not wait for each other;
+ * eviction runs under its own lock and skips files pinned by a reader
+ * <p>
+ * With bgThread, an EvictThread evicts from SOFT_FILL_RATE down to MIN_FILL_RATE
+ * in the background, the read path only evicts itself above HARD_FILL_RATE;
+ * close() stops the thread
+ * <p>
+ * With Configuration.evictBatch or evictBudgetMicros the read path evicts in
+ * small steps: each call pays off part of the bytes over SOFT_FILL_RATE and
+ * leaves the rest as debt, only HARD_FILL_RATE is enforced in full
+ * <p>
+ * How files move between the buckets is up to an EvictionPolicy, chosen by
+ * Configuration.evictionPolicy or passed in; listeners added with
+ * addEvictionListener see every evicted file. With Configuration.sampledEviction
+ * the buckets pick victims by sampling, see SampledQueue
+ * <p>
+ * Files can expire after a time to live or an idle timeout, the deadlines sit in
+ * a TimingWheel; expired files are dropped before any LRU/LFU victim and a
+ * lookup of an expired file is a miss
+ * <p>
+ * Counters, gauges and latencies are kept in CacheMetrics, getMetrics() returns it
+ * and Configuration.jmxName publishes it as an MBean
+ * <p>
+ * Reads pass an AdmissionController first, bytes it turns down are counted
+ * as a miss and served without changing the buckets
+ * <p>
+ * With Configuration.dataDir set, a DataStore under the buckets holds the bytes
+ * of cached files and cacheFileData serves them, fetching misses from
+ * Configuration.dataSource; evicted files give their space back
+ * <p>
+ * With Configuration.prefetch, a Prefetcher learns from the opens which file
+ * comes next and loads it ahead of time; prefetched files wait at the victim
+ * end of onceAccess until they are used
+ * <p>
+ * Concurrent cacheFileData calls of one file share a single fetch through
+ * SingleFlight; with Configuration.burstWindow, repeated opens of a file within
+ * the window are hits that neither promote it nor count another access
+ * <p>
+ * With snapshotPath set, the buckets are restored from the snapshot and its journal
+ * on start, snapshotted every snapshotInterval and once more on close()
  */
-public class Policy {
+public class Policy implements AutoCloseable {
 
     // if LOG = true, info is print to logPath
     private boolean keepLog = false;
     private LOG log;
+    // false for Configuration.log, which other Policies may share and its owner closes
+    private boolean ownsLog;
 
     // max cache size
     private long CACHE_SIZE;
@@ -42,19 +103,80 @@ public class Policy {
     protected FileBucket multiAccess;
     protected FileBucket onceAccess;
 
-    // static of this cache policy
-    private int hitCount;
-    private int missCount;
+    // placement of files in the buckets and their target ratio
+    private final EvictionPolicy evictionPolicy;
+    // told about evictions from both buckets, after evictionPolicy
+    private final CopyOnWriteArrayList<EvictionListener> evictionListeners = new CopyOnWriteArrayList<>();
+
+    // expiry deadlines, expired files go before any eviction
+    private final TimingWheel wheel;
+    private final long defaultTtl;
+    private final long defaultIdleTimeout;
+    // set once any file can expire, until then the open/read path skips expiry work
+    private volatile boolean expiring;
+    // files the wheel returned, used under evictLock
+    private final ArrayList<FileInfo> due = new ArrayList<>();
+
+    // decides which new bytes are cached
+    private final AdmissionController admission;
+
+    // bytes of the cached files and where misses come from, null without dataDir
+    private final DataStore data;
+    private final DataSource source;
+    // ms close() waits for a prefetch in flight before it closes the DataStore
+    private static final long PREFETCH_STOP_MS = 10000;
+    // guesses and loads the next opens, null without Configuration.prefetch
+    private final Prefetcher prefetcher;
+    // files loaded by prefetch and not opened or read since
+    private final Set<FileInfo> prefetched = ConcurrentHashMap.newKeySet();
+    // cacheFileData calls of a file arriving while it loads wait for that load
+    private final SingleFlight<DataStore.Slice> flights = new SingleFlight<>();
+    // an open this many ms after the last counted access is a hit but no new access, 0 for off
+    private final long burstWindow;
 
-    // current cacheFile, should not be evicted currently
-    private String currentFileName = null;
+    // counters and latencies besides hitCount and missCount
+    private final CacheMetrics metrics;
+
+    // static of this cache policy, one counter per stripe so a snapshot can read
+    // the counts of a stripe together with its files
+    private final LongAdder[] hitCount;
+    private final LongAdder[] missCount;
+
+    // ranged reads are rounded out to this many bytes, 0 keeps exact ranges
+    private final long rangeBlockSize;
+
+    // per-path locks of the open/read path, length is a power of two
+    private final ReentrantLock[] stripes;
+    // one eviction decision at a time
+    private final ReentrantLock evictLock = new ReentrantLock();
+    // files and ns one read path eviction may spend, unbounded when not budgeted
+    private final boolean budgeted;
+    private final int evictBatch;
+    private final long evictBudgetNanos;
     // eviction thread
     private final boolean bgThread;
     private final EvictThread evictThread;
 
+    // snapshot file, journals of changes since the current and the previous snapshot
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File prevJournalFile;
+    private volatile Journal journal;
+    private final ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object();
+    // set while restore() replays, opens and reads then skip the burst window and admission
+    private boolean replaying;
+
     public Policy(Configuration conf) {
+        this(conf, EvictionPolicy.forName(conf.evictionPolicy, conf));
+    }
+
+    public Policy(Configuration conf, EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
         this.keepLog = conf.keepLog;
-        this.log = new LOG(conf.log);
+        // share the configured log, a copy would start a second writer on the same file
+        this.log = conf.log != null ? conf.log : new LOG(null);
+        this.ownsLog = conf.log == null;
         this.CACHE_SIZE = conf.CACHE_SIZE;
         this.SINGLE_FACTOR = conf.SINGLE_FACTOR;
         this.MULTI_FACTOR = conf.MULTI_FACTOR;
@@ -62,22 +184,240 @@ public class Policy {
         this.HARD_FILL_RATE = conf.HARD_FILL_RATE;
         this.SOFT_FILL_RATE = conf.SOFT_FILL_RATE;
         this.bgThread = conf.bgThread;
-        long maxSingle = (long) (CACHE_SIZE * SINGLE_FACTOR);
-        long maxMulti = (long) (CACHE_SIZE * MULTI_FACTOR);
-        this.onceAccess = new FileBucket(maxSingle, "onceAccess", "LRU");
-        this.multiAccess = new FileBucket(maxMulti, "multiAccess", "LFU");
+        this.rangeBlockSize = conf.rangeBlockSize;
+        this.burstWindow = conf.burstWindow;
+        this.budgeted = conf.evictBatch > 0 || conf.evictBudgetMicros > 0;
+        this.evictBatch = conf.evictBatch > 0 ? conf.evictBatch : Integer.MAX_VALUE;
+        this.evictBudgetNanos = conf.evictBudgetMicros * 1000;
+        this.admission = AdmissionController.forConfig(conf);
+        this.metrics = new CacheMetrics(this, conf.SOFT_FILL_RATE, conf.HARD_FILL_RATE, conf.latencyMetrics);
+        this.defaultTtl = conf.defaultTtl;
+        this.defaultIdleTimeout = conf.defaultIdleTimeout;
+        this.expiring = defaultTtl > 0 || defaultIdleTimeout > 0;
+        this.wheel = new TimingWheel(conf.expiryTick, System.currentTimeMillis());
+        long maxSingle = (long) (CACHE_SIZE * evictionPolicy.singleFactor());
+        long maxMulti = CACHE_SIZE - maxSingle;
+        // sampled buckets approximate the order of the exact ones
+        String prefix = conf.sampledEviction ? "SAMPLED-" : "";
+        this.onceAccess = new FileBucket(maxSingle, "onceAccess", prefix + "LRU", conf.compactMetadata,
+                conf.evictionSamples);
+        this.multiAccess = new FileBucket(maxMulti, "multiAccess", prefix + evictionPolicy.multiOrder(),
+                conf.compactMetadata, conf.evictionSamples);
         this.onceAccess.log = log;
         this.multiAccess.log = log;
-        this.hitCount = 0;
-        this.missCount = 0;
+        evictionPolicy.attach(onceAccess, multiAccess);
+        EvictionListener dispatch = new EvictionListener() {
+            public void onEvict(FileBucket from, FileInfo victim) {
+                metrics.evictedBytes.add(victim.getFileSize());
+                if (isPrefetched(victim)) {
+                    metrics.prefetchWasted.increment();
+                }
+                Policy.this.evictionPolicy.onEvict(from, victim);
+                for (EvictionListener l : evictionListeners) {
+                    l.onEvict(from, victim);
+                }
+                // listeners may still ask for the deadline, the prefetch tag and the bytes
+                if (data != null) {
+                    data.onEvict(from, victim);
+                }
+                forget(victim);
+            }
+        };
+        this.onceAccess.listener = dispatch;
+        this.multiAccess.listener = dispatch;
+        if (conf.dataDir == null) {
+            this.data = null;
+            this.source = null;
+        } else {
+            this.data = new DataStore(new File(conf.dataDir), conf.dataSegmentSize, CACHE_SIZE);
+            this.source = conf.dataSource;
+        }
+        int nStripes = Integer.highestOneBit(Math.max(1, conf.lockStripes));
+        this.stripes = new ReentrantLock[nStripes];
+        this.hitCount = new LongAdder[nStripes];
+        this.missCount = new LongAdder[nStripes];
+        for (int i = 0; i < nStripes; i++) {
+            stripes[i] = new ReentrantLock();
+            hitCount[i] = new LongAdder();
+            missCount[i] = new LongAdder();
+        }
+        if (conf.snapshotPath == null) {
+            snapshotFile = null;
+            journalFile = null;
+            prevJournalFile = null;
+            snapshotter = null;
+        } else {
+            snapshotFile = new File(conf.snapshotPath);
+            journalFile = new File(conf.snapshotPath + ".journal");
+            prevJournalFile = new File(conf.snapshotPath + ".journal.prev");
+            long nextSeq = restore();
+            if (conf.journal) {
+                try {
+                    setJournal(new Journal(journalFile, stripes.length, nextSeq));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "cache-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        snapshot();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, conf.snapshotInterval, conf.snapshotInterval, TimeUnit.MILLISECONDS);
+            snapshotter.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flushJournal();
+                }
+            }, conf.journalFlushInterval, conf.journalFlushInterval, TimeUnit.MILLISECONDS);
+        }
+        // started once the restored state is in place, so it learns from new opens only
+        this.prefetcher = conf.prefetch ? new Prefetcher(this, conf.prefetchQueue, conf.prefetchTableSize) : null;
+        if (conf.jmxName != null) {
+            try {
+                metrics.register(conf.jmxName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
         if (!bgThread) {
             evictThread = null;
         } else {
-            evictThread = new EvictThread(this);
+            evictThread = new EvictThread(this, conf.evictInterval);
             evictThread.start();
         }
     }
 
+    // load the snapshot, then the journals written after it; a bad file leaves the cache cold
+    // returns the sequence number the journal goes on from
+    // runs before any other thread of this policy starts and with no journal set, so the
+    // replayed changes are applied as recorded and not journaled again
+    private long restore() {
+        long next = 0;
+        replaying = true;
+        try {
+            long[] cuts = new long[0];
+            if (snapshotFile.exists()) {
+                cuts = CacheSnapshot.load(this, snapshotFile);
+            }
+            for (long cut : cuts) {
+                next = Math.max(next, cut);
+            }
+            next = Journal.replay(prevJournalFile, this, next, cuts);
+            next = Journal.replay(journalFile, this, next, cuts);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            replaying = false;
+        }
+        return next;
+    }
+
+    private void setJournal(Journal j) {
+        this.journal = j;
+        this.onceAccess.journal = j;
+        this.multiAccess.journal = j;
+    }
+
+    /**
+     * push buffered journal records to disk, done every journalFlushInterval
+     */
+    public void flushJournal() {
+        Journal j = journal;
+        if (j != null) {
+            try {
+                j.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * write a snapshot now; the journal is rotated, then the files of each stripe are
+     * copied under that stripe alone, each bucket under its own lock. The journal position
+     * read with them is the cut of the stripe: its changes numbered before the cut are in
+     * the snapshot and replay skips them, the later ones are in the new journal.
+     * The file is written after the stripes are released
+     */
+    public void snapshot() throws IOException {
+        if (snapshotFile == null) {
+            return;
+        }
+        synchronized (snapshotLock) {
+            Journal j = journal;
+            if (j != null) {
+                j.rotate(prevJournalFile);
+            }
+            long[] cuts = new long[stripes.length];
+            long hits = 0;
+            long misses = 0;
+            CacheSnapshot.Files once = new CacheSnapshot.Files();
+            CacheSnapshot.Files multi = new CacheSnapshot.Files();
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i].lock();
+                try {
+                    cuts[i] = j != null ? j.nextSeq() : 0;
+                    hits += hitCount[i].sum();
+                    misses += missCount[i].sum();
+                    onceAccess.snapshotFiles(stripes.length, i, once);
+                    multiAccess.snapshotFiles(stripes.length, i, multi);
+                } finally {
+                    stripes[i].unlock();
+                }
+            }
+            CacheSnapshot.of(hits, misses, once, multi, cuts).writeTo(snapshotFile);
+            prevJournalFile.delete();
+        }
+    }
+
+    /**
+     * listener is called for every file evicted from now on, under the lock of its bucket,
+     * before the DataStore frees the bytes of the file
+     */
+    public void addEvictionListener(EvictionListener listener) {
+        evictionListeners.add(listener);
+    }
+
+    public boolean removeEvictionListener(EvictionListener listener) {
+        return evictionListeners.remove(listener);
+    }
+
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * immutable copy of the current metrics
+     */
+    public MetricsSnapshot metricsSnapshot() {
+        return metrics.snapshot();
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    /**
+     * share of the cache onceAccess is kept at, SINGLE_FACTOR unless an adaptive policy moved it
+     */
+    public float getSingleFactor() {
+        return evictionPolicy.singleFactor();
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
     public void setCacheSize(long size) {
         this.CACHE_SIZE = size;
     }
@@ -89,91 +429,954 @@ public class Policy {
         return totalSize > hardMax ? totalSize - softMax : 0;
     }
 
-    public synchronized void cacheFileOpen(String filePath) {
-        dbgUtility.dbg_print("cacheFileOpen " + filePath);
-        dbgUtility.dbg_requires(overflow() == 0, dbgUtility.curLine());
+    /**
+     * bytes over SOFT_FILL_RATE a budgeted read path still has to evict
+     */
+    public long evictDebt() {
+        long totalSize = onceAccess.getBucketSize() + multiAccess.getBucketSize();
+        long softMax = (long) (SOFT_FILL_RATE * CACHE_SIZE);
+        return totalSize > softMax ? totalSize - softMax : 0;
+    }
+
+    // bytes over HARD_FILL_RATE, evicted even when the budget is spent
+    private long hardOverflow() {
+        long totalSize = onceAccess.getBucketSize() + multiAccess.getBucketSize();
+        long hardMax = (long) (HARD_FILL_RATE * CACHE_SIZE);
+        return totalSize > hardMax ? totalSize - hardMax : 0;
+    }
+
+    /**
+     * bytes the background thread should free: once fill passes SOFT_FILL_RATE,
+     * everything above MIN_FILL_RATE
+     */
+    public long backgroundOverflow() {
+        long totalSize = onceAccess.getBucketSize() + multiAccess.getBucketSize();
+        long softMax = (long) (SOFT_FILL_RATE * CACHE_SIZE);
+        long minMax = (long) (MIN_FILL_RATE * CACHE_SIZE);
+        return totalSize > softMax ? totalSize - minMax : 0;
+    }
+
+    public void cacheFileOpen(String filePath) {
+        long start = metrics.timing ? System.nanoTime() : 0;
+        ReentrantLock lock = stripeFor(filePath);
+        lock.lock();
+        try {
+            openLocked(filePath);
+        } finally {
+            lock.unlock();
+        }
+        if (metrics.timing) {
+            metrics.open.record(System.nanoTime() - start);
+        }
+        if (prefetcher != null) {
+            prefetcher.onOpen(filePath);
+        }
+    }
+
+    public void cacheFileRead(String filePath, long size) {
+        if (dbgUtility.DEBUG) dbgUtility.dbg_print("cacheFileRead " + filePath + " " + size);
+        read(filePath, true, size, 0, 0);
+        if (prefetcher != null) {
+            prefetcher.onRead(filePath, size);
+        }
+    }
+
+    /**
+     * read [offset, offset + length) of filePath, only bytes not cached yet grow the cache
+     * ranges are rounded out to Configuration.rangeBlockSize when it is set
+     * returns the number of requested bytes that were already cached
+     */
+    public long cacheFileRead(String filePath, long offset, long length) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("negative range " + offset + "+" + length + " of " + filePath);
+        }
+        if (dbgUtility.DEBUG) dbgUtility.dbg_print("cacheFileRead " + filePath + " " + offset + "+" + length);
+        return read(filePath, false, 0, offset, length);
+    }
+
+    /**
+     * the bytes of filePath, counted like cacheFileOpen and cacheFileRead of the whole file
+     * a hit is a read-only slice of the DataStore, nothing is copied; a miss is fetched
+     * from the DataSource and stored if the file is admitted and fits a segment, else returned
+     * in a heap buffer
+     * <p>
+     * the Slice pins the bytes until it is closed, an eviction meanwhile does not reuse them
+     */
+    public DataStore.Slice cacheFileData(final String filePath) throws IOException {
+        if (data == null || source == null) {
+            throw new IllegalStateException("no dataDir or dataSource configured");
+        }
+        long start = metrics.timing ? System.nanoTime() : 0;
+        final boolean[] led = new boolean[1];
+        try {
+            while (true) {
+                DataStore.Slice slice = flights.run(filePath, new SingleFlight.Load<DataStore.Slice>() {
+                    public DataStore.Slice load() throws IOException {
+                        led[0] = true;
+                        return loadData(filePath);
+                    }
+                });
+                if (led[0]) {
+                    return slice;
+                }
+                // joined the load of another caller, served without a fetch of its own
+                DataStore.Slice mine = slice.share();
+                if (mine != null) {
+                    hitCount[stripeIndex(filePath)].increment();
+                    metrics.coalesced.increment();
+                    return mine;
+                }
+                // the loader closed its slice and the file was evicted before we pinned it
+            }
+        } finally {
+            if (metrics.timing) {
+                metrics.read.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // one cacheFileData of filePath, the only one running for it; the fetch runs without the stripe
+    private DataStore.Slice loadData(String filePath) throws IOException {
+        if (prefetcher != null) {
+            prefetcher.onOpen(filePath);
+        }
+        ReentrantLock lock = stripeFor(filePath);
+        DataStore.Slice buf;
+        lock.lock();
+        try {
+            openLocked(filePath);
+            buf = data.get(filePath);
+        } finally {
+            lock.unlock();
+        }
+        long size = buf != null ? buf.length() : source.length(filePath);
+        metrics.bytesRead.add(size);
+        boolean cached;
+        lock.lock();
+        try {
+            readLocked(filePath, true, size, 0, 0, null);
+            // only a file the buckets account at its full size may hold bytes in the store
+            cached = cachedSize(filePath) == size;
+        } finally {
+            lock.unlock();
+        }
+        if (buf != null) {
+            return buf;
+        }
+        if (cached) {
+            buf = data.load(filePath, size, source);
+            if (buf != null) {
+                // evicted or resized while we fetched, eviction already tried to free it
+                if (cachedSize(filePath) != size) {
+                    data.free(filePath);
+                }
+                return buf;
+            }
+            // no segment has room, do not count bytes we do not hold
+            removeFile(filePath);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(filePath + " is too large to read: " + size);
+        }
+        ByteBuffer copy = ByteBuffer.allocate((int) size);
+        source.read(filePath, 0, copy);
+        copy.flip();
+        return DataStore.Slice.of(copy);
+    }
+
+    public DataStore getDataStore() {
+        return data;
+    }
+
+    /**
+     * cacheFileData calls that joined the load of another caller, counted once they wait
+     */
+    public long getJoined() {
+        return flights.getJoined();
+    }
+
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * load filePath ahead of an open, counted as neither hit nor miss; size -1 asks
+     * the DataSource. The file goes to the victim end of onceAccess and is tagged
+     * until opened or read, so an unused prefetch is evicted before files that were
+     * asked for. false if filePath is cached already or its size is unknown
+     * <p>
+     * the file is reserved under its stripe, its length and bytes are fetched
+     * without it and checked again afterwards, like cacheFileData
+     */
+    public boolean prefetch(String filePath, long size) {
+        // a cached file needs no fetch at all; expired ones are dropped under the stripe below
+        if (!expiring && (onceAccess.contains(filePath) || multiAccess.contains(filePath))) {
+            return false;
+        }
+        if (source != null) {
+            try {
+                size = source.length(filePath);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        if (size < 0) {
+            return false;
+        }
         FileInfo curFile;
-        currentFileName = filePath;
-        if (onceAccess.contains(filePath)) {
-            // move curFile from onceAccess to multiAccess
-            curFile = onceAccess.getFile(filePath);
-            onceAccess.remove(curFile);
-            curFile.access();
-            multiAccess.addFile(curFile);
-            hitCount++;
-        } else if (multiAccess.contains(filePath)) {
+        ReentrantLock lock = stripeFor(filePath);
+        lock.lock();
+        try {
+            if (expiring) {
+                dropIfExpired(filePath);
+            }
+            if (onceAccess.contains(filePath) || multiAccess.contains(filePath)) {
+                return false;
+            }
+            curFile = onceAccess.newFile(filePath, size);
+            // the first real access counts as the first one
+            curFile.restore(0, System.currentTimeMillis());
+            prefetched.add(curFile);
+            curFile.pins = 1;
+            onceAccess.addFileFirst(curFile);
+            metrics.prefetches.increment();
+            if (expiring) {
+                startExpiry(curFile);
+            }
+            try {
+                evictOverflow();
+            } finally {
+                onceAccess.unpin(curFile);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (data == null || source == null) {
+            return true;
+        }
+        DataStore.Slice buf;
+        try {
+            buf = data.load(filePath, size, source);
+        } catch (IOException e) {
+            buf = null;
+        }
+        if (buf == null) {
+            unprefetch(curFile);
+            return false;
+        }
+        // nobody reads the bytes now, only the store holds them
+        buf.close();
+        // evicted, or read at another size, while we fetched
+        if (cachedSize(filePath) != size) {
+            data.free(filePath);
+        }
+        return true;
+    }
+
+    // drop a prefetched file whose bytes could not be stored, unless a reader took it meanwhile
+    private void unprefetch(FileInfo curFile) {
+        ReentrantLock lock = stripeFor(curFile.getFilePath());
+        lock.lock();
+        try {
+            if (isPrefetched(curFile) && onceAccess.remove(curFile) != null) {
+                forget(curFile);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * open every path in order, like cacheFileOpen on each, under one acquisition
+     * of the stripes involved
+     */
+    public void cacheFilesOpen(Collection<String> filePaths) {
+        ReentrantLock[] locks = lockStripes(filePaths);
+        try {
+            for (String filePath : filePaths) {
+                openLocked(filePath);
+            }
+        } finally {
+            unlockStripes(locks);
+        }
+        if (prefetcher != null) {
+            for (String filePath : filePaths) {
+                prefetcher.onOpen(filePath);
+            }
+        }
+    }
+
+    /**
+     * read filePaths[i] with sizes[i] in order, like cacheFileRead on each;
+     * all bucket updates happen under one acquisition of the stripes involved,
+     * then a single eviction frees the combined overflow, taking other files before
+     * any of the batch: a file of the batch is only evicted if the batch alone keeps
+     * the cache over HARD_FILL_RATE. The whole batch is one sample of the read latency
+     */
+    public void cacheFilesRead(List<String> filePaths, long[] sizes) {
+        if (filePaths.size() != sizes.length) {
+            throw new IllegalArgumentException(filePaths.size() + " paths but " + sizes.length + " sizes");
+        }
+        long bytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            bytes += sizes[i];
+        }
+        metrics.bytesRead.add(bytes);
+        long start = metrics.timing ? System.nanoTime() : 0;
+        Pins batch = new Pins();
+        ReentrantLock[] locks = lockStripes(filePaths);
+        try {
+            int i = 0;
+            for (String filePath : filePaths) {
+                readLocked(filePath, true, sizes[i], 0, 0, batch);
+                i++;
+            }
+            evictOverflow();
+            batch.release();
+            if (hardOverflow() > 0) {
+                // the batch alone does not fit, the rest comes out of it
+                evictOverflow();
+            }
+        } finally {
+            batch.release();
+            unlockStripes(locks);
+            if (metrics.timing) {
+                metrics.read.record(System.nanoTime() - start);
+            }
+        }
+        if (prefetcher != null) {
+            for (int i = 0; i < sizes.length; i++) {
+                prefetcher.onRead(filePaths.get(i), sizes[i]);
+            }
+        }
+    }
+
+    // lock the stripes of filePaths in index order, so batches never deadlock each other
+    private ReentrantLock[] lockStripes(Collection<String> filePaths) {
+        boolean[] used = new boolean[stripes.length];
+        int n = 0;
+        for (String filePath : filePaths) {
+            int i = stripeIndex(filePath);
+            if (!used[i]) {
+                used[i] = true;
+                n++;
+            }
+        }
+        ReentrantLock[] locks = new ReentrantLock[n];
+        n = 0;
+        try {
+            for (int i = 0; i < used.length; i++) {
+                if (used[i]) {
+                    stripes[i].lock();
+                    locks[n++] = stripes[i];
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            unlockStripes(locks);
+            throw e;
+        }
+        return locks;
+    }
+
+    private static void unlockStripes(ReentrantLock[] locks) {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            if (locks[i] != null) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    // whole sets the file to size, otherwise [offset, offset + length) is added
+    private long read(String filePath, boolean whole, long size, long offset, long length) {
+        long start = metrics.timing ? System.nanoTime() : 0;
+        metrics.bytesRead.add(whole ? size : length);
+        ReentrantLock lock = stripeFor(filePath);
+        lock.lock();
+        try {
+            return readLocked(filePath, whole, size, offset, length, null);
+        } finally {
+            lock.unlock();
+            if (metrics.timing) {
+                metrics.read.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    // caller holds the stripe of filePath; with batch null the overflow is evicted now,
+    // else eviction is left to the caller and the file stays pinned in batch until it is done.
+    // Journaled after the change, a read admission turns away changes nothing and is not
+    private long readLocked(String filePath, boolean whole, long size, long offset, long length,
+                            Pins batch) {
+        if (expiring) {
+            dropIfExpired(filePath);
+        }
+        // pin the file for this call so the eviction below keeps it
+        FileBucket bucket = onceAccess;
+        FileInfo curFile = onceAccess.pin(filePath);
+        if (curFile == null) {
+            bucket = multiAccess;
+            curFile = multiAccess.pin(filePath);
+        }
+        boolean created = curFile == null;
+        if (created) {
+            if (!replaying && !admission.admit(whole ? size : length)) {
+                // bypass, the read goes to the source and leaves the buckets alone
+                missCount[stripeIndex(filePath)].increment();
+                return 0;
+            }
+            // a miss, the new file is pinned before it becomes visible to eviction
+            bucket = missBucket(filePath);
+            curFile = bucket.newFile(filePath, 0);
+            curFile.pins = 1;
+            bucket.addFile(curFile);
+            missCount[stripeIndex(filePath)].increment();
+            if (expiring) {
+                startExpiry(curFile);
+            }
+        } else {
+            if (!prefetched.isEmpty() && prefetched.remove(curFile)) {
+                metrics.prefetchHits.increment();
+            }
+            if (expiring) {
+                renewIdle(curFile, System.currentTimeMillis());
+            }
+        }
+        try {
+            long cached = whole ? 0 : curFile.cachedBytes(offset, length);
+            // a cached file that grows is admitted again on the size it grows to, in either bucket
+            long grow = whole ? size - curFile.getFileSize() : length - cached;
+            Journal j = journal;
+            if (!created && !replaying && !admission.admit(grow, curFile.getFileSize() + grow)) {
+                if (curFile.getFileSize() == 0) {
+                    // the empty entry of an open, a rejected file is not cached at all
+                    bucket.remove(curFile);
+                    forget(curFile);
+                    if (j != null) {
+                        j.evict(filePath);
+                    }
+                }
+                return cached;
+            }
+            if (whole) {
+                bucket.renewFile(curFile, size);
+            } else {
+                bucket.renewRange(curFile, offset, length, rangeBlockSize);
+            }
+            if (j != null) {
+                if (whole) {
+                    j.read(filePath, size);
+                } else {
+                    j.range(filePath, offset, length);
+                }
+            }
+            if (dbgUtility.DEBUG) dbgUtility.dbg_print("cache cur size: " + this.curFillSize());
+            if (batch == null) {
+                evictOverflow();
+            }
+            return cached;
+        } finally {
+            if (batch == null) {
+                bucket.unpin(curFile);
+            } else {
+                batch.add(bucket, curFile);
+            }
+        }
+    }
+
+    /**
+     * files a batch keeps pinned until its eviction is done, with the bucket each is pinned in
+     */
+    private static final class Pins {
+        private final ArrayList<FileBucket> buckets = new ArrayList<>();
+        private final ArrayList<FileInfo> files = new ArrayList<>();
+
+        void add(FileBucket bucket, FileInfo file) {
+            buckets.add(bucket);
+            files.add(file);
+        }
+
+        // unpin everything once, later calls do nothing
+        void release() {
+            for (int i = 0; i < files.size(); i++) {
+                buckets.get(i).unpin(files.get(i));
+            }
+            buckets.clear();
+            files.clear();
+        }
+    }
+
+    // caller holds the stripe of filePath, so the file cannot change bucket under us;
+    // journaled after the change, an open the burst window swallows changes nothing and is not
+    private void openLocked(String filePath) {
+        if (dbgUtility.DEBUG) dbgUtility.dbg_print("cacheFileOpen " + filePath);
+        if (burstWindow > 0 && !replaying && inBurst(filePath)) {
+            hitCount[stripeIndex(filePath)].increment();
+            metrics.coalesced.increment();
+            return;
+        }
+        accessLocked(filePath);
+        Journal j = journal;
+        if (j != null) {
+            j.open(filePath);
+        }
+    }
+
+    // the counted access of an open, caller holds the stripe of filePath
+    private void accessLocked(String filePath) {
+        evictionPolicy.recordAccess(filePath);
+        if (expiring) {
+            dropIfExpired(filePath);
+        }
+        FileInfo curFile = onceAccess.getFile(filePath);
+        if (curFile != null && !prefetched.isEmpty() && prefetched.remove(curFile)) {
+            // the first open of a prefetched file, a hit but no promotion
+            if (onceAccess.accessFile(curFile)) {
+                metrics.prefetchHits.increment();
+                touched(curFile);
+                hitCount[stripeIndex(filePath)].increment();
+                return;
+            }
+        } else if (curFile != null) {
+            if (!evictionPolicy.promoteOnHit(curFile, multiAccess, cacheFull())) {
+                // not admitted, stays in onceAccess as most recently used
+                if (onceAccess.accessFile(curFile)) {
+                    touched(curFile);
+                    hitCount[stripeIndex(filePath)].increment();
+                    return;
+                }
+            } else if (onceAccess.remove(curFile) != null) {
+                // move curFile from onceAccess to multiAccess
+                curFile.access();
+                multiAccess.addFile(curFile);
+                metrics.promotions.increment();
+                touched(curFile);
+                hitCount[stripeIndex(filePath)].increment();
+                return;
+            }
+        }
+        curFile = multiAccess.getFile(filePath);
+        if (curFile != null && multiAccess.accessFile(curFile)) {
             // renew file info
+            touched(curFile);
+            hitCount[stripeIndex(filePath)].increment();
+            return;
+        }
+        FileBucket bucket = missBucket(filePath);
+        curFile = bucket.newFile(filePath, 0);
+        bucket.addFile(curFile);
+        missCount[stripeIndex(filePath)].increment();
+        if (expiring) {
+            startExpiry(curFile);
+        }
+    }
+
+    // caller holds the stripe of filePath; true if it is cached and its last counted
+    // access is less than burstWindow ago, the open then changes nothing
+    private boolean inBurst(String filePath) {
+        FileInfo curFile = onceAccess.getFile(filePath);
+        if (curFile == null) {
             curFile = multiAccess.getFile(filePath);
-            multiAccess.accessFile(curFile);
-            hitCount++;
-        } else {
-            curFile = new FileInfo(filePath);
-            onceAccess.addFile(curFile);
-            missCount++;
         }
-        currentFileName = null;
+        if (curFile == null || isPrefetched(curFile)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long expireAt = expiring ? wheel.expireAt(curFile) : 0;
+        return (expireAt == 0 || expireAt > now) && now - curFile.getLastAccessMillis() < burstWindow;
     }
 
-    public synchronized void cacheFileRead(String filePath, long size) {
-        dbgUtility.dbg_print("cacheFileRead " + filePath + " " + size);
-        currentFileName = filePath;
-        if (onceAccess.contains(filePath)) {
-            FileInfo curFile = onceAccess.getFile(filePath);
-            onceAccess.renewFile(curFile, size);
-        } else if (multiAccess.contains(filePath)) {
-            FileInfo curFile = multiAccess.getFile(filePath);
-            multiAccess.renewFile(curFile, size);
-        } else {
-            cacheFileOpen(filePath);
-            cacheFileRead(filePath, size);
+    // caller holds the stripe of filePath; a cached file past its deadline is dropped,
+    // so the lookup after this misses
+    private void dropIfExpired(String filePath) {
+        FileBucket bucket = onceAccess;
+        FileInfo curFile = onceAccess.getFile(filePath);
+        if (curFile == null) {
+            bucket = multiAccess;
+            curFile = multiAccess.getFile(filePath);
+        }
+        long expireAt = curFile == null ? 0 : wheel.expireAt(curFile);
+        if (expireAt == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (expireAt <= now && bucket.expire(curFile, expireAt, now)) {
+            expired(bucket, curFile);
+        }
+    }
+
+    // deadlines of a new file from the defaults
+    private void startExpiry(FileInfo file) {
+        if (defaultTtl == 0 && defaultIdleTimeout == 0) {
+            return;
+        }
+        long now = file.getLastAccessMillis();
+        TimingWheel.Timer timer = wheel.timerFor(file);
+        if (defaultTtl > 0) {
+            timer.ttlDeadline = now + defaultTtl;
+        }
+        if (defaultIdleTimeout > 0) {
+            timer.idleTimeout = defaultIdleTimeout;
+        }
+        renewExpiry(timer, now);
+    }
+
+    // an access moves the idle deadline of file
+    private void touched(FileInfo file) {
+        if (expiring) {
+            renewIdle(file, file.getLastAccessMillis());
+        }
+    }
+
+    private void renewIdle(FileInfo file, long now) {
+        TimingWheel.Timer timer = wheel.timer(file);
+        if (timer != null && timer.idleTimeout > 0) {
+            renewExpiry(timer, now);
+        }
+    }
+
+    private void renewExpiry(TimingWheel.Timer timer, long now) {
+        long at = timer.ttlDeadline;
+        if (timer.idleTimeout > 0) {
+            long idle = now + timer.idleTimeout;
+            at = at == 0 ? idle : Math.min(at, idle);
+        }
+        if (at != timer.expireAt) {
+            wheel.schedule(timer.file, at);
+        }
+    }
+
+    // file left bucket by expiry, listeners hear about it like an eviction
+    private void expired(FileBucket bucket, FileInfo file) {
+        for (EvictionListener l : evictionListeners) {
+            l.onEvict(bucket, file);
+        }
+        if (data != null) {
+            data.onEvict(bucket, file);
+        }
+        forget(file);
+    }
+
+    // file left the cache, drop its side table state
+    private void forget(FileInfo file) {
+        if (expiring) {
+            wheel.cancel(file);
+        }
+        if (!prefetched.isEmpty()) {
+            prefetched.remove(file);
+        }
+    }
+
+    /**
+     * expiry deadline of a cached file in ms, 0 for none
+     */
+    long expireAt(FileInfo file) {
+        return expiring ? wheel.expireAt(file) : 0;
+    }
+
+    /**
+     * true if file was loaded by prefetch and not opened or read since
+     */
+    boolean isPrefetched(FileInfo file) {
+        return !prefetched.isEmpty() && prefetched.contains(file);
+    }
+
+    /**
+     * give a cached file its own time to live and idle timeout in ms, 0 turns one off
+     * returns false if filePath is not cached
+     */
+    public boolean setExpiry(String filePath, long ttl, long idleTimeout) {
+        ReentrantLock lock = stripeFor(filePath);
+        lock.lock();
+        try {
+            FileInfo curFile = getCacheFile(filePath);
+            if (curFile == null) {
+                return false;
+            }
+            expiring = true;
+            long now = System.currentTimeMillis();
+            TimingWheel.Timer timer = wheel.timerFor(curFile);
+            timer.ttlDeadline = ttl > 0 ? now + ttl : 0;
+            timer.idleTimeout = Math.max(0, idleTimeout);
+            renewExpiry(timer, now);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * drop every file whose deadline passed, returns the bytes freed
+     * runs before each eviction and on every pass of the background thread
+     */
+    public long expire() {
+        if (!expiring) {
+            return 0;
+        }
+        evictLock.lock();
+        try {
+            return expireLocked();
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private long expireLocked() {
+        if (!expiring) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (wheel.advance(now, due) == 0) {
+            return 0;
+        }
+        long freed = 0;
+        for (FileInfo file : due) {
+            long size = file.getFileSize();
+            long expireAt = wheel.expireAt(file);
+            if (onceAccess.expire(file, expireAt, now)) {
+                expired(onceAccess, file);
+                freed += size;
+            } else if (multiAccess.expire(file, expireAt, now)) {
+                expired(multiAccess, file);
+                freed += size;
+            } else if (onceAccess.contains(file) || multiAccess.contains(file)) {
+                if (expireAt != 0) {
+                    // pinned by a reader or given a later deadline meanwhile, look again later
+                    wheel.schedule(file, expireAt);
+                }
+            } else {
+                // left the cache while its timer was renewed
+                wheel.cancel(file);
+            }
+        }
+        due.clear();
+        return freed;
+    }
+
+    public long getExpiredCount() {
+        return onceAccess.getExpiredCount() + multiAccess.getExpiredCount();
+    }
+
+    // bucket a file not cached yet goes to
+    private FileBucket missBucket(String filePath) {
+        return evictionPolicy.admitOnMiss(filePath, multiAccess, cacheFull()) ? multiAccess : onceAccess;
+    }
+
+    // past MIN_FILL_RATE the cache is in the band eviction keeps it in: the read path
+    // evicts from HARD_FILL_RATE down to SOFT_FILL_RATE, the background thread from
+    // SOFT_FILL_RATE down to MIN_FILL_RATE, so an admission now displaces a file later
+    private boolean cacheFull() {
+        return onceAccess.getBucketSize() + multiAccess.getBucketSize() >= (long) (MIN_FILL_RATE * CACHE_SIZE);
+    }
+
+    private ReentrantLock stripeFor(String filePath) {
+        return stripes[stripeIndex(filePath)];
+    }
+
+    private int stripeIndex(String filePath) {
+        return stripeOf(filePath, stripes.length);
+    }
+
+    // stripe of filePath among stripes, a power of two; snapshots and their cuts use it too
+    static int stripeOf(String filePath, int stripes) {
+        int h = filePath.hashCode();
+        return (h ^ (h >>> 16)) & (stripes - 1);
+    }
+
+    // evict whatever is over the hard limit, overflow is checked again under the lock
+    // the background thread is only signalled, it does the work down to MIN_FILL_RATE
+    private void evictOverflow() {
+        if (evictThread != null && backgroundOverflow() > 0) {
+            evictThread.wakeUp();
+        }
+        if (budgeted ? evictDebt() == 0 : overflow() == 0) {
+            return;
+        }
+        long start = metrics.timing ? System.nanoTime() : 0;
+        evictLock.lock();
+        try {
+            if (budgeted) {
+                long deadline = evictBudgetNanos > 0 ? System.nanoTime() + evictBudgetNanos : 0;
+                evictLocked(evictDebt(), evictBatch, deadline);
+                evictLocked(hardOverflow());
+            } else {
+                evictLocked(overflow());
+            }
+        } finally {
+            evictLock.unlock();
+        }
+        if (metrics.timing) {
+            metrics.evict.record(System.nanoTime() - start);
+        }
+    }
+
+    public void evict(long toFree) {
+        long start = metrics.timing ? System.nanoTime() : 0;
+        evictLock.lock();
+        try {
+            evictLocked(toFree);
+        } finally {
+            evictLock.unlock();
+        }
+        if (metrics.timing) {
+            metrics.evict.record(System.nanoTime() - start);
         }
-        dbgUtility.dbg_print("cache cur size: " + this.curFillSize());
-        evict(overflow());
-        currentFileName = null;
     }
 
-    public synchronized void evict(long toFree) {
-        dbgUtility.dbg_print("evict cache: " + toFree);
+    private void evictLocked(long toFree) {
+        evictLocked(toFree, Integer.MAX_VALUE, 0);
+    }
+
+    // free toFree bytes, or less once maxFiles files are gone or the deadline passed
+    private void evictLocked(long toFree, int maxFiles, long deadline) {
+        if (dbgUtility.DEBUG) dbgUtility.dbg_print("evict cache: " + toFree);
         if (toFree == 0) {
             return;
         }
+        // expired files go first, the LRU/LFU victims only make up the rest
+        long expired = expireLocked();
+        if (expired >= toFree) {
+            return;
+        }
+        toFree -= expired;
         long freed = 0;
         long once_size = onceAccess.getBucketSize();
         long multi_size = multiAccess.getBucketSize();
-        dbgUtility.dbg_requires(once_size + multi_size - toFree > 0, dbgUtility.curLine());
+        dbgUtility.dbg_requires(once_size + multi_size - toFree >= 0);
         long remain = once_size + multi_size - toFree;
+        float single = evictionPolicy.singleFactor();
         // evict due to the ratio of once/multi, keep ratio stable after eviction
         // evict from multiAccess
-        if (once_size < remain * SINGLE_FACTOR) {
-            freed += multiAccess.evict(toFree, currentFileName);
+        if (once_size < remain * single) {
+            freed += multiAccess.evict(toFree, maxFiles, deadline);
             // evict from onceAccess
-        } else if (multi_size < remain * MULTI_FACTOR) {
-            freed += onceAccess.evict(toFree, currentFileName);
+        } else if (multi_size < remain * (1 - single)) {
+            freed += onceAccess.evict(toFree, maxFiles, deadline);
         } else {
-            freed += onceAccess.evict(once_size - (long) (remain * SINGLE_FACTOR), currentFileName);
-            freed += multiAccess.evict(toFree - freed, currentFileName);
+            long before = onceAccess.getEvictCount();
+            freed += onceAccess.evict(once_size - (long) (remain * single), maxFiles, deadline);
+            int left = maxFiles == Integer.MAX_VALUE ? maxFiles
+                    : maxFiles - (int) (onceAccess.getEvictCount() - before);
+            if (left > 0 && (deadline == 0 || System.nanoTime() - deadline < 0)) {
+                freed += multiAccess.evict(toFree - freed, left, deadline);
+            }
+        }
+        dbgUtility.dbg_requires(freed >= toFree || maxFiles != Integer.MAX_VALUE || deadline != 0);
+    }
+
+    /**
+     * stop the background eviction thread, if any, and flush a log of its own;
+     * a Configuration.log is left running for the other Policies sharing it
+     */
+    public void close() {
+        if (evictThread != null) {
+            evictThread.shutdown();
+        }
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+                snapshot();
+                if (journal != null) {
+                    journal.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        metrics.unregister();
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            try {
+                // a prefetch still running would store into the closed DataStore
+                if (!prefetcher.awaitTermination(PREFETCH_STOP_MS)) {
+                    System.err.println("prefetch thread still running on close");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (data != null) {
+            data.close();
+        }
+        if (ownsLog) {
+            log.close();
         }
-        dbgUtility.dbg_requires(freed >= toFree, dbgUtility.curLine());
     }
 
     public void setLog(boolean setLog, String logPath) {
+        if (ownsLog) {
+            this.log.close();
+        }
         this.log = new LOG(setLog, logPath);
+        this.ownsLog = true;
         this.onceAccess.log = log;
-        this.onceAccess.log = log;
+        this.multiAccess.log = log;
+        evictionPolicy.attach(onceAccess, multiAccess);
+    }
+
+    /**
+     * bytes and files cached under the directory prefix, in time linear in its length
+     */
+    public PrefixIndex.Usage usage(String prefix) {
+        PrefixIndex.Usage once = onceAccess.usage(prefix);
+        PrefixIndex.Usage multi = multiAccess.usage(prefix);
+        return new PrefixIndex.Usage(prefix, once.bytes + multi.bytes, once.files + multi.files);
     }
 
+    /**
+     * the k directories right under prefix holding the most cached bytes, largest first
+     */
+    public List<PrefixIndex.Usage> topPrefixes(String prefix, int k) {
+        HashMap<String, PrefixIndex.Usage> merged = new HashMap<>();
+        for (FileBucket bucket : new FileBucket[]{onceAccess, multiAccess}) {
+            // merged before picking k, a directory may only be large in both buckets together
+            for (PrefixIndex.Usage u : bucket.index.children(prefix)) {
+                PrefixIndex.Usage prev = merged.get(u.path);
+                merged.put(u.path, prev == null ? u : new PrefixIndex.Usage(u.path, prev.bytes + u.bytes, prev.files + u.files));
+            }
+        }
+        return PrefixIndex.top(merged.values(), k, PrefixIndex.BY_BYTES);
+    }
+
+    /**
+     * copies of the k cached files with the most accesses, or the most bytes, largest first
+     * weakly consistent, readers and eviction are never held up for the whole scan
+     */
+    public List<FileInfo> topFiles(int k, boolean byBytes) {
+        Comparator<FileInfo> order = byBytes ? BY_BYTES : BY_ACCESSES;
+        List<FileInfo> both = new ArrayList<>(onceAccess.top(k, order));
+        both.addAll(multiAccess.top(k, order));
+        return PrefixIndex.top(both, k, order);
+    }
+
+    private static final Comparator<FileInfo> BY_BYTES = new Comparator<FileInfo>() {
+        public int compare(FileInfo a, FileInfo b) {
+            return Long.compare(a.getFileSize(), b.getFileSize());
+        }
+    };
+
+    private static final Comparator<FileInfo> BY_ACCESSES = new Comparator<FileInfo>() {
+        public int compare(FileInfo a, FileInfo b) {
+            return Integer.compare(a.getAccessCount(), b.getAccessCount());
+        }
+    };
+
     public boolean checkBucket(FileBucket bucket) {
-        int totalSize = 0;
+        long totalSize = 0;
         int cnt = 0;
         for (FileInfo file : bucket.files) {
-            System.out.println(file.getFilePath());
+            if (dbgUtility.DEBUG) dbgUtility.dbg_print(file.getFilePath());
             cnt++;
             totalSize += file.getFileSize();
         }
         if (totalSize != bucket.getBucketSize()) return false;
         if (cnt != bucket.files.size()) return false;
-        dbgUtility.dbg_requires(totalSize == bucket.getBucketSize(), dbgUtility.curLine());
-        dbgUtility.dbg_requires(cnt == bucket.files.size(), dbgUtility.curLine());
+        PrefixIndex.Usage all = bucket.usage("/");
+        if (all.bytes != totalSize || all.files != cnt) return false;
+        dbgUtility.dbg_requires(totalSize == bucket.getBucketSize());
+        dbgUtility.dbg_requires(cnt == bucket.files.size());
         return true;
     }
 
@@ -183,7 +1386,7 @@ public class Policy {
         if (HARD_FILL_RATE < 0 || SOFT_FILL_RATE > 1) return false;
         if (!checkBucket(onceAccess)) return false;
         if (!checkBucket(multiAccess)) return false;
-        dbgUtility.dbg_requires(SINGLE_FACTOR + MULTI_FACTOR == 1.0f, dbgUtility.curLine());
+        dbgUtility.dbg_requires(SINGLE_FACTOR + MULTI_FACTOR == 1.0f);
         return true;
     }
 
@@ -216,12 +1419,123 @@ public class Policy {
         return onceAccess.getBucketSize() + multiAccess.getBucketSize();
     }
 
+    /**
+     * drop filePath from the cache without counting an eviction, false if it was not cached
+     */
+    public boolean removeFile(String filePath) {
+        return take(filePath) != null;
+    }
+
+    /**
+     * remove filePath without counting an eviction and return what was cached of it,
+     * null if it is not cached
+     */
+    public FileInfo take(String filePath) {
+        ReentrantLock lock = stripeFor(filePath);
+        lock.lock();
+        try {
+            // no reader holds a pin on filePath while we own its stripe
+            FileInfo curFile = onceAccess.getFile(filePath);
+            if (curFile == null || onceAccess.remove(curFile) == null) {
+                curFile = multiAccess.getFile(filePath);
+                if (curFile == null || multiAccess.remove(curFile) == null) {
+                    return null;
+                }
+            }
+            forget(curFile);
+            Journal j = journal;
+            if (j != null) {
+                j.evict(filePath);
+            }
+            if (data != null) {
+                data.free(filePath);
+            }
+            return curFile;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * take over a file cached by another node, counted as neither hit nor miss
+     * multi puts it in multiAccess; false if filePath is already cached here
+     */
+    public boolean adopt(String filePath, long size, int accessCount, long lastAccessTime, boolean multi) {
+        ReentrantLock lock = stripeFor(filePath);
+        lock.lock();
+        try {
+            if (onceAccess.contains(filePath) || multiAccess.contains(filePath)) {
+                return false;
+            }
+            FileBucket bucket = multi ? multiAccess : onceAccess;
+            FileInfo curFile = bucket.newFile(filePath, size);
+            curFile.restore(accessCount, lastAccessTime);
+            curFile.pins = 1;
+            bucket.addFile(curFile);
+            if (expiring) {
+                startExpiry(curFile);
+            }
+            try {
+                evictOverflow();
+            } finally {
+                bucket.unpin(curFile);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return sum(hitCount);
+    }
+
+    public long getMissCount() {
+        return sum(missCount);
+    }
+
+    private static long sum(LongAdder[] counts) {
+        long sum = 0;
+        for (LongAdder count : counts) {
+            sum += count.sum();
+        }
+        return sum;
+    }
+
+    // a file loaded from a snapshot, its deadlines start over from its last access
+    void restoreFile(FileBucket bucket, FileInfo file) {
+        bucket.addFile(file);
+        if (expiring) {
+            startExpiry(file);
+        }
+    }
+
+    // counters saved in a snapshot
+    void restoreCounts(long hits, long misses) {
+        hitCount[0].add(hits);
+        missCount[0].add(misses);
+    }
+
+    /**
+     * size currently cached for filePath, -1 if the file is not in the cache
+     */
+    public long cachedSize(String filePath) {
+        FileInfo curFile = getCacheFile(filePath);
+        return curFile == null ? -1 : curFile.getFileSize();
+    }
+
+    public long getEvictCount() {
+        return onceAccess.getEvictCount() + multiAccess.getEvictCount();
+    }
+
     public double getHitRate() {
-        return this.hitCount / (double) (this.hitCount + this.missCount);
+        long hits = getHitCount();
+        return hits / (double) (hits + getMissCount());
     }
 
     public double getMissRate() {
-        return this.missCount / (double) (this.hitCount + this.missCount);
+        long misses = getMissCount();
+        return misses / (double) (getHitCount() + misses);
     }
 
     public long cacheSize() {
@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Prefetcher learns from the stream of opens which file comes next and has
+ * Policy.prefetch load it into onceAccess before it is asked for
+ * <p>
+ * two guesses per open:
+ * sequential: dir/part-00007 opened right after dir/part-00006 guesses dir/part-00008,
+ * the width of the number is kept;
+ * markov: for each path id the successor seen most often after it, a one slot
+ * majority vote (a repeat votes up, another successor votes down and takes the
+ * slot at 0), trusted from MIN_VOTES on
+ * <p>
+ * sizes come from the DataSource of the Policy when it has one, else from the
+ * last read of the path or of its directory.
+ * <p>
+ * onOpen and onRead only hand the path to one daemon thread through a bounded
+ * ring and allocate nothing; that thread learns from the events in order and
+ * runs the guesses. Producers claim a slot with a CAS on tail and publish it with
+ * the slot's sequence number (Vyukov's bounded queue, single consumer); an event
+ * finding the ring full is dropped. The tables below belong to the prefetch thread
+ */
+public class Prefetcher {
+
+    private static final int MIN_VOTES = 2;
+    // size of an open in the ring, a read carries the size read
+    private static final long OPEN = Long.MIN_VALUE;
+    // ns the prefetch thread sleeps at most when the ring is empty
+    private static final long IDLE_NANOS = 10000000L;
+
+    private final Policy policy;
+    private final int maxPaths;
+
+    // the ring: slot i holds event seq - 1 once its sequence number is seq
+    private final AtomicLongArray slotSeqs;
+    private final String[] slotPaths;
+    private final long[] slotSizes;
+    private final int mask;
+    // next event to claim, next event to run; head is written by the prefetch thread only
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    // set while the prefetch thread parks on an empty ring
+    private volatile boolean idle;
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    // path <-> id, ids index the arrays below
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private final ArrayList<String> paths = new ArrayList<>();
+    // likely successor id, -1 for none, and its votes
+    private int[] next = new int[16];
+    private int[] votes = new int[16];
+    // size last read, -1 if never read
+    private long[] sizes = new long[16];
+    // id of the path opened last, -1 for none
+    private int prev = -1;
+    // per directory: number in the name of the file opened last and size read last
+    private final HashMap<String, Long> lastNumber = new HashMap<>();
+    private final HashMap<String, Long> dirSize = new HashMap<>();
+
+    /**
+     * queueSize events may wait for the prefetch thread, rounded up to a power of two
+     */
+    public Prefetcher(Policy policy, int queueSize, int maxPaths) {
+        this.policy = policy;
+        this.maxPaths = maxPaths;
+        int slots = Integer.highestOneBit(Math.max(2, queueSize) - 1) << 1;
+        this.slotSeqs = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            slotSeqs.set(i, i);
+        }
+        this.slotPaths = new String[slots];
+        this.slotSizes = new long[slots];
+        this.mask = slots - 1;
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "cache-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * learn from an open of path and guess what comes next, on the prefetch thread
+     */
+    public void onOpen(String path) {
+        offer(path, OPEN);
+    }
+
+    /**
+     * remember the size read for path, used for guesses without a DataSource
+     */
+    public void onRead(String path, long size) {
+        offer(path, size);
+    }
+
+    /**
+     * wait until every event handed over so far and its guesses ran, false on timeout
+     */
+    public boolean awaitQuiet(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (head != tail.get()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(100000);
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * wait for the prefetch thread to finish the prefetch it runs after shutdown(),
+     * false on timeout
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        thread.join(timeoutMs);
+        return !thread.isAlive();
+    }
+
+    private void offer(String path, long size) {
+        for (;;) {
+            long t = tail.get();
+            int i = (int) t & mask;
+            long seq = slotSeqs.get(i);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    slotPaths[i] = path;
+                    slotSizes[i] = size;
+                    slotSeqs.set(i, t + 1);
+                    if (idle) {
+                        LockSupport.unpark(thread);
+                    }
+                    return;
+                }
+            } else if (seq < t) {
+                // full, the prefetch thread is behind
+                return;
+            }
+        }
+    }
+
+    // the prefetch thread: take events in order, head moves on once an event is done
+    private void drain() {
+        while (running) {
+            long h = head;
+            int i = (int) h & mask;
+            if (slotSeqs.get(i) != h + 1) {
+                idle = true;
+                if (slotSeqs.get(i) != h + 1 && running) {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            String path = slotPaths[i];
+            long size = slotSizes[i];
+            slotPaths[i] = null;
+            slotSeqs.set(i, h + mask + 1);
+            try {
+                if (size == OPEN) {
+                    opened(path);
+                } else {
+                    read(path, size);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            head = h + 1;
+        }
+    }
+
+    private void opened(String path) {
+        String markov = null;
+        long markovSize = -1;
+        int id = idOf(path);
+        if (prev >= 0 && prev != id) {
+            vote(prev, id);
+        }
+        prev = id;
+        if (next[id] >= 0 && votes[id] >= MIN_VOTES) {
+            markov = paths.get(next[id]);
+            markovSize = sizes[next[id]];
+            if (markovSize < 0) {
+                markovSize = dirSize(markov);
+            }
+        }
+        String seq = sequentialGuess(path);
+        if (seq != null) {
+            policy.prefetch(seq, knownSize(seq));
+        }
+        if (markov != null && !markov.equals(seq)) {
+            policy.prefetch(markov, markovSize);
+        }
+    }
+
+    private void read(String path, long size) {
+        Integer id = ids.get(path);
+        if (id != null) {
+            sizes[id] = size;
+        }
+        int slash = path.lastIndexOf('/');
+        dirSize.put(slash < 0 ? "" : path.substring(0, slash), size);
+    }
+
+    private int idOf(String path) {
+        Integer id = ids.get(path);
+        if (id != null) {
+            return id;
+        }
+        if (paths.size() >= maxPaths) {
+            // start over rather than keep successors of a workload long gone
+            ids.clear();
+            paths.clear();
+            lastNumber.clear();
+            dirSize.clear();
+            prev = -1;
+        }
+        int n = paths.size();
+        if (n == next.length) {
+            int cap = n * 2;
+            next = Arrays.copyOf(next, cap);
+            votes = Arrays.copyOf(votes, cap);
+            sizes = Arrays.copyOf(sizes, cap);
+        }
+        next[n] = -1;
+        votes[n] = 0;
+        sizes[n] = -1;
+        ids.put(path, n);
+        paths.add(path);
+        return n;
+    }
+
+    private void vote(int from, int to) {
+        if (next[from] == to) {
+            votes[from]++;
+        } else if (votes[from] > 0) {
+            votes[from]--;
+        } else {
+            next[from] = to;
+            votes[from] = 1;
+        }
+    }
+
+    // path + 1 if its directory was last opened at path - 1, else null
+    private String sequentialGuess(String path) {
+        int slash = path.lastIndexOf('/');
+        String dir = slash < 0 ? "" : path.substring(0, slash);
+        int end = path.length();
+        int start = end;
+        while (start > slash + 1 && Character.isDigit(path.charAt(start - 1))) {
+            start--;
+        }
+        if (start == end || end - start > 18) {
+            lastNumber.remove(dir);
+            return null;
+        }
+        long number = Long.parseLong(path.substring(start, end));
+        Long last = lastNumber.put(dir, number);
+        if (last == null || last != number - 1) {
+            return null;
+        }
+        String digits = Long.toString(number + 1);
+        StringBuilder guess = new StringBuilder(path.length() + 1).append(path, 0, start);
+        for (int i = digits.length(); i < end - start; i++) {
+            guess.append('0');
+        }
+        return guess.append(digits).toString();
+    }
+
+    private long knownSize(String path) {
+        Integer id = ids.get(path);
+        if (id != null && sizes[id] >= 0) {
+            return sizes[id];
+        }
+        return dirSize(path);
+    }
+
+    private long dirSize(String path) {
+        int slash = path.lastIndexOf('/');
+        Long size = dirSize.get(slash < 0 ? "" : path.substring(0, slash));
+        return size == null ? -1 : size;
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PrefixIndex keeps the bytes and number of files cached under every directory
+ * of one FileBucket; /a/b/f counts in /, /a and /a/b
+ * <p>
+ * nodes are path components, a cached file points at the node of its directory
+ * so a size change or removal walks up parent links without a lookup.
+ * The bucket updates the index under its own lock; readers take no lock,
+ * children are concurrent maps and counters volatile, so a query sees every
+ * node as it was at some point during concurrent updates
+ */
+public class PrefixIndex {
+
+    /**
+     * bytes and files cached under a directory
+     */
+    public static final class Usage {
+        public final String path;
+        public final long bytes;
+        public final long files;
+
+        public Usage(String path, long bytes, long files) {
+            this.path = path;
+            this.bytes = bytes;
+            this.files = files;
+        }
+
+        @Override
+        public String toString() {
+            return path + " " + bytes + " bytes in " + files + " files";
+        }
+    }
+
+    static final class Node {
+        final String name;
+        final Node parent;
+        final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>(4);
+        // written under the bucket lock only
+        volatile long bytes;
+        volatile long files;
+
+        Node(String name, Node parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+    }
+
+    static final Comparator<Usage> BY_BYTES = new Comparator<Usage>() {
+        public int compare(Usage a, Usage b) {
+            return Long.compare(a.bytes, b.bytes);
+        }
+    };
+
+    private final Node root = new Node("", null);
+
+    /**
+     * count file in its directory and every directory above, caller holds the bucket lock
+     */
+    void add(FileInfo file) {
+        String path = file.getFilePath();
+        long bytes = file.getFileSize();
+        Node node = root;
+        node.bytes += bytes;
+        node.files++;
+        int start = 0;
+        int slash;
+        while ((slash = path.indexOf('/', start)) >= 0) {
+            if (slash > start) {
+                String name = path.substring(start, slash);
+                Node child = node.children.get(name);
+                if (child == null) {
+                    child = new Node(name, node);
+                    node.children.put(name, child);
+                }
+                node = child;
+                node.bytes += bytes;
+                node.files++;
+            }
+            start = slash + 1;
+        }
+        file.setDir(node);
+    }
+
+    /**
+     * file grew or shrank by delta bytes, caller holds the bucket lock
+     */
+    void resize(FileInfo file, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        for (Node node = file.dir(); node != null; node = node.parent) {
+            node.bytes += delta;
+        }
+    }
+
+    /**
+     * file left the bucket, directories left empty are dropped; caller holds the bucket lock
+     */
+    void remove(FileInfo file) {
+        long bytes = file.getFileSize();
+        Node node = file.dir();
+        file.setDir(null);
+        for (; node != null; node = node.parent) {
+            node.bytes -= bytes;
+            node.files--;
+            if (node.files == 0 && node.parent != null) {
+                node.parent.children.remove(node.name, node);
+            }
+        }
+    }
+
+    /**
+     * bytes and files cached under the directory prefix, in time linear in its length
+     */
+    public Usage usage(String prefix) {
+        Node node = find(prefix);
+        return node == null ? new Usage(prefix, 0, 0) : new Usage(prefix, node.bytes, node.files);
+    }
+
+    /**
+     * the k directories right under prefix holding the most bytes, largest first
+     */
+    public List<Usage> top(String prefix, int k) {
+        return top(children(prefix), k, BY_BYTES);
+    }
+
+    /**
+     * usage of every directory right under prefix
+     */
+    public List<Usage> children(String prefix) {
+        Node node = find(prefix);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        String base = prefix.endsWith("/") ? prefix : prefix + "/";
+        List<Usage> children = new ArrayList<>();
+        for (Node child : node.children.values()) {
+            children.add(new Usage(base + child.name, child.bytes, child.files));
+        }
+        return children;
+    }
+
+    /**
+     * the k largest of items by order, largest first, with a heap of at most k items
+     */
+    static <T> List<T> top(Iterable<T> items, int k, Comparator<T> order) {
+        if (k <= 0) {
+            return Collections.emptyList();
+        }
+        PriorityQueue<T> heap = new PriorityQueue<>(Math.min(k, 1024), order);
+        for (T item : items) {
+            offer(heap, item, k, order);
+        }
+        return drain(heap);
+    }
+
+    // keep the k largest seen so far, the smallest of them on top
+    static <T> void offer(PriorityQueue<T> heap, T item, int k, Comparator<T> order) {
+        if (heap.size() < k) {
+            heap.add(item);
+        } else if (order.compare(item, heap.peek()) > 0) {
+            heap.poll();
+            heap.add(item);
+        }
+    }
+
+    static <T> List<T> drain(PriorityQueue<T> heap) {
+        ArrayList<T> list = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            list.add(heap.poll());
+        }
+        Collections.reverse(list);
+        return list;
+    }
+
+    private Node find(String prefix) {
+        Node node = root;
+        int start = 0;
+        int len = prefix.length();
+        while (node != null && start < len) {
+            int slash = prefix.indexOf('/', start);
+            int end = slash < 0 ? len : slash;
+            if (end > start) {
+                node = node.children.get(prefix.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+}
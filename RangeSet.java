@@ -0,0 +1,120 @@
+/**
+ * RangeSet is the set of byte ranges of one file held in the cache
+ * ranges are kept sorted and disjoint, overlapping or touching ranges are merged
+ * offsets are 64 bit, so ranges past 2GB of a large ORC/Parquet file are fine
+ */
+public class RangeSet {
+
+    // [starts[i], ends[i]) for i < count, sorted by start
+    private long[] starts = new long[2];
+    private long[] ends = new long[2];
+    private int count;
+    // sum of all range lengths
+    private long total;
+
+    /**
+     * add [start, end), returns the number of bytes that were not covered before
+     */
+    public long add(long start, long end) {
+        if (end <= start) {
+            return 0;
+        }
+        // first range that ends at or after start, it may touch the new one
+        int first = lowerBound(start);
+        int last = first;
+        long mergedStart = start;
+        long mergedEnd = end;
+        long covered = 0;
+        while (last < count && starts[last] <= end) {
+            covered += Math.min(ends[last], end) - Math.max(starts[last], start);
+            mergedStart = Math.min(mergedStart, starts[last]);
+            mergedEnd = Math.max(mergedEnd, ends[last]);
+            total -= ends[last] - starts[last];
+            last++;
+        }
+        int removed = last - first;
+        if (removed == 0) {
+            ensureCapacity(count + 1);
+            System.arraycopy(starts, first, starts, first + 1, count - first);
+            System.arraycopy(ends, first, ends, first + 1, count - first);
+            count++;
+        } else if (removed > 1) {
+            System.arraycopy(starts, last, starts, first + 1, count - last);
+            System.arraycopy(ends, last, ends, first + 1, count - last);
+            count -= removed - 1;
+        }
+        starts[first] = mergedStart;
+        ends[first] = mergedEnd;
+        total += mergedEnd - mergedStart;
+        return (end - start) - Math.max(0, covered);
+    }
+
+    /**
+     * bytes of [start, end) already in this set
+     */
+    public long covered(long start, long end) {
+        long covered = 0;
+        for (int i = lowerBound(start); i < count && starts[i] < end; i++) {
+            covered += Math.max(0, Math.min(ends[i], end) - Math.max(starts[i], start));
+        }
+        return covered;
+    }
+
+    public long totalLength() {
+        return total;
+    }
+
+    public int rangeCount() {
+        return count;
+    }
+
+    public long startOf(int i) {
+        return starts[i];
+    }
+
+    public long endOf(int i) {
+        return ends[i];
+    }
+
+    public RangeSet copy() {
+        RangeSet copy = new RangeSet();
+        copy.ensureCapacity(count);
+        System.arraycopy(starts, 0, copy.starts, 0, count);
+        System.arraycopy(ends, 0, copy.ends, 0, count);
+        copy.count = count;
+        copy.total = total;
+        return copy;
+    }
+
+    public void clear() {
+        count = 0;
+        total = 0;
+    }
+
+    // index of the first range with end >= start
+    private int lowerBound(long start) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n > starts.length) {
+            int len = Math.max(n, starts.length << 1);
+            long[] s = new long[len];
+            long[] e = new long[len];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            starts = s;
+            ends = e;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SampledQueue keeps files in a flat array in no particular order and picks
+ * victims by sampling, like Redis: each pick looks at SAMPLES random files,
+ * keeps the best candidates in a small eviction pool across picks and takes the
+ * best one of the pool. Adding, removing and accessing a file is constant time,
+ * nothing is reordered
+ * <p>
+ * LRU scores a file by the ticks since it was last added or accessed, LFU by its
+ * access count halved every DECAY_TICKS ticks since its last access, then by age;
+ * a tick is one add to this queue
+ * <p>
+ * each file keeps its array slot in heapIndex, a file is in one queue at a time;
+ * the tick and count state of a file sits in arrays next to files at the same slot
+ */
+public class SampledQueue extends FileQueue {
+
+    // files looked at per pick, and candidates remembered between picks
+    public static final int SAMPLES = 5;
+    private static final int POOL = 16;
+    // ticks after which an LFU count is halved
+    private static final long DECAY_TICKS = 1 << 16;
+    // LFU counts saturate here
+    private static final int MAX_FREQ = 255;
+
+    private final boolean lfu;
+    private final int samples;
+    private FileInfo[] files = new FileInfo[16];
+    // by slot: tick of the last access here, decayed access count, access count seen
+    private long[] stamps = new long[16];
+    private int[] freqs = new int[16];
+    private int[] seens = new int[16];
+    private int count;
+    // the file unlinked last and its state, an access or resize re-adds it right away
+    private FileInfo left;
+    private long leftStamp;
+    private int leftFreq;
+    private int leftSeen;
+    // eviction pool, null slots are free
+    private final FileInfo[] pool = new FileInfo[POOL];
+    private long clock;
+    private long seed;
+
+    public SampledQueue(boolean lfu) {
+        this(lfu, SAMPLES, 0x9E3779B97F4A7C15L);
+    }
+
+    public SampledQueue(boolean lfu, int samples, long seed) {
+        this.lfu = lfu;
+        this.samples = Math.max(1, samples);
+        this.seed = seed == 0 ? 1 : seed;
+    }
+
+    @Override
+    public boolean offer(FileInfo file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        if (contains(file)) {
+            return false;
+        }
+        if (count == files.length) {
+            files = Arrays.copyOf(files, count * 2);
+            stamps = Arrays.copyOf(stamps, count * 2);
+            freqs = Arrays.copyOf(freqs, count * 2);
+            seens = Arrays.copyOf(seens, count * 2);
+        }
+        clock++;
+        int i = count;
+        int accesses = file.getAccessCount();
+        if (file != left) {
+            // new to this queue
+            freqs[i] = Math.min(MAX_FREQ, accesses);
+            seens[i] = accesses;
+            stamps[i] = clock;
+        } else {
+            stamps[i] = leftStamp;
+            freqs[i] = leftFreq;
+            seens[i] = leftSeen;
+            if (!lfu) {
+                stamps[i] = clock;
+            } else if (accesses != leftSeen) {
+                // accessed since it was last here, decay up to now before counting
+                int freq = decayed(leftFreq, leftStamp) + Math.max(1, accesses - leftSeen);
+                freqs[i] = Math.min(MAX_FREQ, freq);
+                seens[i] = accesses;
+                stamps[i] = clock;
+            }
+        }
+        left = null;
+        files[i] = file;
+        file.heapIndex = i;
+        count++;
+        return true;
+    }
+
+    @Override
+    public FileInfo poll() {
+        FileInfo victim = pick(false);
+        if (victim != null) {
+            unlink(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public FileInfo pollUnpinned() {
+        FileInfo victim = pick(true);
+        if (victim != null) {
+            unlink(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public FileInfo peek() {
+        return pick(false);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!contains(o)) {
+            return false;
+        }
+        unlink((FileInfo) o);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof FileInfo)) {
+            return false;
+        }
+        int i = ((FileInfo) o).heapIndex;
+        return i >= 0 && i < count && files[i] == o;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        while (count > 0) {
+            unlink(files[count - 1]);
+        }
+        left = null;
+        Arrays.fill(pool, null);
+    }
+
+    /**
+     * files in array order, not in eviction order
+     */
+    @Override
+    public Iterator<FileInfo> iterator() {
+        return new Iterator<FileInfo>() {
+            private int i;
+
+            public boolean hasNext() {
+                return i < count;
+            }
+
+            public FileInfo next() {
+                if (i >= count) {
+                    throw new NoSuchElementException();
+                }
+                return files[i++];
+            }
+        };
+    }
+
+    // fill the pool from a fresh sample and return its best candidate, left in place
+    private FileInfo pick(boolean unpinned) {
+        if (count == 0) {
+            return null;
+        }
+        if (samples >= count) {
+            // as cheap to look at every file, and exact
+            for (int i = 0; i < count; i++) {
+                consider(files[i], unpinned);
+            }
+        } else {
+            for (int s = 0; s < samples; s++) {
+                consider(files[nextInt(count)], unpinned);
+            }
+        }
+        FileInfo best = best(unpinned);
+        if (best == null && unpinned) {
+            // every sampled file was pinned, look at all of them
+            for (int i = 0; i < count; i++) {
+                consider(files[i], true);
+            }
+            best = best(true);
+        }
+        return best;
+    }
+
+    // put file in the pool if there is room or it beats the weakest candidate
+    private void consider(FileInfo file, boolean unpinned) {
+        if (unpinned && file.pins > 0) {
+            return;
+        }
+        int free = -1;
+        int weakest = -1;
+        long weakestScore = Long.MAX_VALUE;
+        for (int i = 0; i < POOL; i++) {
+            FileInfo p = pool[i];
+            if (p == file) {
+                return;
+            }
+            if (p == null || !contains(p) || (unpinned && p.pins > 0)) {
+                pool[i] = null;
+                if (free < 0) {
+                    free = i;
+                }
+            } else {
+                long score = score(p);
+                if (score < weakestScore) {
+                    weakestScore = score;
+                    weakest = i;
+                }
+            }
+        }
+        if (free >= 0) {
+            pool[free] = file;
+        } else if (score(file) > weakestScore) {
+            pool[weakest] = file;
+        }
+    }
+
+    private FileInfo best(boolean unpinned) {
+        FileInfo best = null;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < POOL; i++) {
+            FileInfo p = pool[i];
+            if (p == null) {
+                continue;
+            }
+            if (!contains(p)) {
+                pool[i] = null;
+                continue;
+            }
+            if (unpinned && p.pins > 0) {
+                continue;
+            }
+            long score = score(p);
+            if (best == null || score > bestScore) {
+                best = p;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // higher is a better victim, file is in this queue
+    private long score(FileInfo file) {
+        int i = file.heapIndex;
+        long age = clock - stamps[i];
+        if (!lfu) {
+            return age;
+        }
+        return ((long) (MAX_FREQ - decayed(freqs[i], stamps[i])) << 40) | Math.min(age, (1L << 40) - 1);
+    }
+
+    private int decayed(int freq, long stamp) {
+        long halvings = (clock - stamp) / DECAY_TICKS;
+        return halvings >= 31 ? 0 : freq >>> halvings;
+    }
+
+    private void unlink(FileInfo file) {
+        int i = file.heapIndex;
+        left = file;
+        leftStamp = stamps[i];
+        leftFreq = freqs[i];
+        leftSeen = seens[i];
+        FileInfo last = files[--count];
+        files[count] = null;
+        if (i != count) {
+            files[i] = last;
+            stamps[i] = stamps[count];
+            freqs[i] = freqs[count];
+            seens[i] = seens[count];
+            last.heapIndex = i;
+        }
+        file.heapIndex = -1;
+    }
+
+    // xorshift, the queue is used under the bucket lock
+    private int nextInt(int bound) {
+        long x = seed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed = x;
+        return (int) ((x >>> 1) % bound);
+    }
+}
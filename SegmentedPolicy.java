@@ -0,0 +1,35 @@
+/**
+ * SegmentedPolicy is the original two-bucket scheme
+ * a file enters onceAccess, moves to the LFU multiAccess bucket on its second
+ * access, and eviction keeps the buckets near SINGLE_FACTOR : MULTI_FACTOR
+ */
+public class SegmentedPolicy implements EvictionPolicy {
+
+    private final float singleFactor;
+
+    public SegmentedPolicy(float singleFactor) {
+        this.singleFactor = singleFactor;
+    }
+
+    public String multiOrder() {
+        return "LFU";
+    }
+
+    public float singleFactor() {
+        return singleFactor;
+    }
+
+    public void recordAccess(String path) {
+    }
+
+    public boolean promoteOnHit(FileInfo candidate, FileBucket multi, boolean cacheFull) {
+        return true;
+    }
+
+    public boolean admitOnMiss(String path, FileBucket multi, boolean cacheFull) {
+        return false;
+    }
+
+    public void onEvict(FileBucket from, FileInfo victim) {
+    }
+}
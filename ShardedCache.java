@@ -0,0 +1,117 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ShardedCache spreads files over the Policies of several nodes
+ * each path has one owner picked by a ConsistentHashRing, so a hot split is
+ * cached once in the cluster instead of on every worker
+ * <p>
+ * ownerOf and groupByOwner let a scheduler send a split to the node caching it;
+ * addNode and removeNode move the files whose owner changed, their access
+ * counts and bucket come along
+ */
+public class ShardedCache {
+
+    private final ConsistentHashRing ring;
+    private final CacheTransport transport;
+
+    public ShardedCache(CacheTransport transport, int virtualNodes) {
+        this.transport = transport;
+        this.ring = new ConsistentHashRing(virtualNodes);
+    }
+
+    /**
+     * node that caches path, null without nodes
+     */
+    public String ownerOf(String path) {
+        return ring.ownerOf(path);
+    }
+
+    /**
+     * paths grouped by owning node, for schedulers placing splits
+     */
+    public Map<String, List<String>> groupByOwner(List<String> paths) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String path : paths) {
+            String owner = ring.ownerOf(path);
+            List<String> group = groups.get(owner);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(owner, group);
+            }
+            group.add(path);
+        }
+        return groups;
+    }
+
+    public List<String> nodes() {
+        return ring.nodes();
+    }
+
+    public void cacheFileOpen(String path) {
+        transport.open(owner(path), path);
+    }
+
+    public void cacheFileRead(String path, long size) {
+        transport.read(owner(path), path, size);
+    }
+
+    public long cachedSize(String path) {
+        return transport.cachedSize(owner(path), path);
+    }
+
+    /**
+     * add node to the ring and move over the files it now owns
+     * returns the number of files moved
+     */
+    public synchronized int addNode(String node) {
+        List<String> others = ring.nodes();
+        if (!ring.addNode(node)) {
+            return 0;
+        }
+        int moved = 0;
+        for (String other : others) {
+            for (CacheTransport.Entry entry : transport.entries(other)) {
+                if (node.equals(ring.ownerOf(entry.path))) {
+                    moved += move(other, node, entry);
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * take node off the ring, its files go to their new owners
+     * returns the number of files moved
+     */
+    public synchronized int removeNode(String node) {
+        if (!ring.removeNode(node)) {
+            return 0;
+        }
+        if (ring.nodes().isEmpty()) {
+            return 0;
+        }
+        int moved = 0;
+        for (CacheTransport.Entry entry : transport.entries(node)) {
+            moved += move(node, ring.ownerOf(entry.path), entry);
+        }
+        return moved;
+    }
+
+    private int move(String from, String to, CacheTransport.Entry entry) {
+        if (!transport.remove(from, entry.path)) {
+            return 0;
+        }
+        return transport.adopt(to, entry) ? 1 : 0;
+    }
+
+    private String owner(String path) {
+        String owner = ring.ownerOf(path);
+        if (owner == null) {
+            throw new IllegalStateException("no cache nodes");
+        }
+        return owner;
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SingleFlight runs one load per key at a time: a caller arriving while a load
+ * of its key is in flight waits for that load and gets its result or exception
+ * <p>
+ * the first caller runs the load in its own thread, the table only holds keys
+ * being loaded right now
+ */
+public class SingleFlight<V> {
+
+    public interface Load<V> {
+        V load() throws IOException;
+    }
+
+    private final ConcurrentHashMap<String, CompletableFuture<V>> inflight = new ConcurrentHashMap<>();
+    // callers that waited for another caller's load
+    private final LongAdder joined = new LongAdder();
+
+    /**
+     * the result of load, or of the load of key already in flight
+     */
+    public V run(String key, Load<V> load) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> theirs = inflight.putIfAbsent(key, mine);
+        if (theirs != null) {
+            joined.increment();
+            return await(theirs);
+        }
+        try {
+            V value = load.load();
+            mine.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, mine);
+        }
+    }
+
+    public boolean inFlight(String key) {
+        return inflight.containsKey(key);
+    }
+
+    /**
+     * callers that joined a load of another caller, counted before they wait for it
+     */
+    public long getJoined() {
+        return joined.sum();
+    }
+
+    private static <V> V await(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a load in flight");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TieredCache stacks Policies from the fastest tier to the slowest,
+ * memory first, then local SSD; each tier has its own Configuration
+ * <p>
+ * a file evicted from tier k is demoted into tier k + 1 instead of dropped:
+ * the eviction listener of tier k queues it for a daemon thread, which adopts
+ * it into tier k + 1 with its access count unless a faster tier has it again.
+ * Expired and unused prefetched files are not demoted, demotions that do not fit
+ * the queue are dropped. A hit in a lower tier promotes the file back to tier 0
+ * <p>
+ * tiers with a DataStore carry the bytes along: a demotion pins the stored bytes
+ * before the evicting tier frees them and the demotion thread copies them down,
+ * a promotion copies them up out of the lower tier, so a file moving between tiers
+ * is not fetched again. The extent of a queued demotion is reused once it ran or was dropped
+ * <p>
+ * each tier counts its own hits, the hit rate of tier k is its share of all opens;
+ * counts are weakly consistent while files move between tiers
+ */
+public class TieredCache {
+
+    private final Policy[] tiers;
+    // opens that found the file in each tier, and opens that found it nowhere
+    private final LongAdder[] hits;
+    private final LongAdder misses = new LongAdder();
+    // files moved up after a lower tier hit, moved down on eviction, and demotions dropped
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+    private final LongAdder droppedDemotions = new LongAdder();
+    private final ThreadPoolExecutor demoter;
+
+    public TieredCache(Policy... tiers) {
+        this(1024, tiers);
+    }
+
+    /**
+     * tiers fastest first, at most queueSize demotions wait for the demotion thread
+     */
+    public TieredCache(int queueSize, Policy... tiers) {
+        if (tiers.length == 0) {
+            throw new IllegalArgumentException("no tiers");
+        }
+        this.tiers = tiers.clone();
+        this.hits = new LongAdder[tiers.length];
+        for (int i = 0; i < tiers.length; i++) {
+            hits[i] = new LongAdder();
+        }
+        this.demoter = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "cache-demote");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        droppedDemotions.increment();
+                        ((Demotion) r).drop();
+                    }
+                });
+        for (int i = 0; i + 1 < tiers.length; i++) {
+            final int below = i + 1;
+            final Policy tier = tiers[i];
+            tier.addEvictionListener(new EvictionListener() {
+                public void onEvict(FileBucket from, FileInfo victim) {
+                    long expireAt = tier.expireAt(victim);
+                    if (tier.isPrefetched(victim) || (expireAt != 0 && expireAt <= System.currentTimeMillis())) {
+                        return;
+                    }
+                    // called under the bucket lock before the store frees the bytes: copy the counters
+                    // and pin the bytes, the demotion thread copies them down
+                    DataStore store = tier.getDataStore();
+                    DataStore.Slice bytes = store != null && tiers[below].getDataStore() != null
+                            ? store.get(victim.getFilePath()) : null;
+                    demoter.execute(new Demotion(below, victim.getFilePath(), victim.getFileSize(),
+                            victim.getAccessCount(), victim.getLastAccessMillis(), bytes));
+                }
+            });
+        }
+    }
+
+    /**
+     * open filePath in the fastest tier holding it, promoting it to tier 0;
+     * a miss in every tier is a miss of tier 0
+     */
+    public void cacheFileOpen(String filePath) {
+        for (int i = 0; i < tiers.length; i++) {
+            if (tiers[i].cachedSize(filePath) < 0) {
+                continue;
+            }
+            if (i == 0) {
+                hits[0].increment();
+                tiers[0].cacheFileOpen(filePath);
+                return;
+            }
+            if (promote(i, filePath) != null) {
+                return;
+            }
+        }
+        misses.increment();
+        tiers[0].cacheFileOpen(filePath);
+    }
+
+    /**
+     * the bytes of filePath from the fastest tier holding them, promoting the file
+     * to tier 0 with its bytes; like Policy.cacheFileData of tier 0 otherwise,
+     * which needs a DataStore and a DataSource
+     */
+    public DataStore.Slice cacheFileData(String filePath) throws IOException {
+        for (int i = 0; i < tiers.length; i++) {
+            if (tiers[i].cachedSize(filePath) < 0) {
+                continue;
+            }
+            if (i == 0) {
+                hits[0].increment();
+                return tiers[0].cacheFileData(filePath);
+            }
+            DataStore.Slice[] bytes = promote(i, filePath);
+            if (bytes == null) {
+                continue;
+            }
+            // without bytes in the lower tier, tier 0 fetches them
+            return bytes[0] != null ? bytes[0] : tiers[0].cacheFileData(filePath);
+        }
+        misses.increment();
+        return tiers[0].cacheFileData(filePath);
+    }
+
+    /**
+     * read goes to tier 0, where an open has put the file
+     */
+    public void cacheFileRead(String filePath, long size) {
+        tiers[0].cacheFileRead(filePath, size);
+    }
+
+    /**
+     * index of the fastest tier holding filePath, -1 if none
+     */
+    public int tierOf(String filePath) {
+        for (int i = 0; i < tiers.length; i++) {
+            if (tiers[i].cachedSize(filePath) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public Policy getTier(int tier) {
+        return tiers[tier];
+    }
+
+    public int tierCount() {
+        return tiers.length;
+    }
+
+    public long getHits(int tier) {
+        return hits[tier].sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getOpens() {
+        long opens = misses.sum();
+        for (LongAdder h : hits) {
+            opens += h.sum();
+        }
+        return opens;
+    }
+
+    /**
+     * share of all opens served by tier
+     */
+    public double getHitRate(int tier) {
+        long opens = getOpens();
+        return opens == 0 ? 0 : hits[tier].sum() / (double) opens;
+    }
+
+    /**
+     * share of all opens served by any tier
+     */
+    public double getHitRate() {
+        long opens = getOpens();
+        return opens == 0 ? 0 : (opens - misses.sum()) / (double) opens;
+    }
+
+    public long getPromotions() {
+        return promotions.sum();
+    }
+
+    public long getDemotions() {
+        return demotions.sum();
+    }
+
+    public long getDroppedDemotions() {
+        return droppedDemotions.sum();
+    }
+
+    /**
+     * wait until every queued demotion ran, false on timeout
+     */
+    public boolean awaitDemotions(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (demoter.getCompletedTaskCount() < demoter.getTaskCount()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(100000);
+        }
+        return true;
+    }
+
+    /**
+     * stop demoting and close every tier
+     */
+    public void close() {
+        for (Runnable r : demoter.shutdownNow()) {
+            ((Demotion) r).drop();
+        }
+        for (Policy tier : tiers) {
+            tier.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("hitRate=").append(getHitRate());
+        for (int i = 0; i < tiers.length; i++) {
+            sb.append(" tier").append(i).append('=').append(getHitRate(i));
+        }
+        return sb.append(" promotions=").append(getPromotions()).append(" demotions=").append(getDemotions())
+                .append(" dropped=").append(getDroppedDemotions()).toString();
+    }
+
+    // move filePath from tier to tier 0, null if tier no longer holds it; else the bytes
+    // it held in its DataStore as stored in tier 0 or still pinned in tier, the single element
+    // is null if none
+    private DataStore.Slice[] promote(int tier, String filePath) {
+        // pinned, take frees the extent but it is not reused until we close the slice
+        DataStore store = tiers[tier].getDataStore();
+        DataStore.Slice bytes = store != null && tiers[0].getDataStore() != null ? store.get(filePath) : null;
+        FileInfo file = tiers[tier].take(filePath);
+        if (file == null) {
+            if (bytes != null) {
+                bytes.close();
+            }
+            return null;
+        }
+        hits[tier].increment();
+        promotions.increment();
+        // a hit anywhere is a second access, the file goes to multiAccess
+        tiers[0].adopt(filePath, file.getFileSize(), file.getAccessCount() + 1,
+                System.currentTimeMillis(), true);
+        if (bytes != null && bytes.length() != file.getFileSize()) {
+            // resized between the pin and the take
+            bytes.close();
+            bytes = null;
+        }
+        if (bytes == null) {
+            return new DataStore.Slice[1];
+        }
+        DataStore.Slice stored = null;
+        try {
+            stored = store(tiers[0], filePath, bytes.bytes());
+        } catch (IOException e) {
+            // tier 0 fetches the bytes on the next cacheFileData
+        }
+        if (stored == null) {
+            // the caller reads the pinned bytes of the lower tier
+            return new DataStore.Slice[] {bytes};
+        }
+        bytes.close();
+        return new DataStore.Slice[] {stored};
+    }
+
+    // put bytes of filePath into the store of tier and pin them, null if the tier has no room
+    // or no longer holds the file at their size
+    private static DataStore.Slice store(Policy tier, String filePath, ByteBuffer bytes) throws IOException {
+        DataStore store = tier.getDataStore();
+        if (store == null) {
+            return null;
+        }
+        DataStore.Slice stored = store.put(filePath, bytes);
+        if (stored != null && tier.cachedSize(filePath) != bytes.remaining()) {
+            // evicted or resized while we copied, eviction already tried to free it
+            store.free(filePath);
+            stored.close();
+            return null;
+        }
+        return stored;
+    }
+
+    // adopt a victim of tier - 1 into tier with its pinned bytes, unless a faster tier has it again
+    private final class Demotion implements Runnable {
+        private final int tier;
+        private final String filePath;
+        private final long size;
+        private final int accessCount;
+        private final long lastAccessTime;
+        private final DataStore.Slice bytes;
+
+        Demotion(int tier, String filePath, long size, int accessCount, long lastAccessTime,
+                 DataStore.Slice bytes) {
+            this.tier = tier;
+            this.filePath = filePath;
+            this.size = size;
+            this.accessCount = accessCount;
+            this.lastAccessTime = lastAccessTime;
+            this.bytes = bytes;
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < tier; i++) {
+                    if (tiers[i].cachedSize(filePath) >= 0) {
+                        return;
+                    }
+                }
+                if (tiers[tier].adopt(filePath, size, accessCount, lastAccessTime, accessCount > 1)) {
+                    demotions.increment();
+                    if (bytes != null) {
+                        try {
+                            DataStore.Slice stored = store(tiers[tier], filePath, bytes.bytes());
+                            if (stored != null) {
+                                stored.close();
+                            }
+                        } catch (IOException e) {
+                            // the file stays without bytes, a later cacheFileData fetches them
+                        }
+                    }
+                }
+            } finally {
+                drop();
+            }
+        }
+
+        // let the evicting tier reuse the extent
+        void drop() {
+            if (bytes != null) {
+                bytes.close();
+            }
+        }
+    }
+}
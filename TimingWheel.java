@@ -0,0 +1,207 @@
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TimingWheel keeps files by expiry deadline, hierarchical hashed wheels
+ * four levels of 64 slots, a slot of level L spans 64^L ticks; a file sits in
+ * the lowest level its deadline fits and moves down when its slot comes up,
+ * so schedule, cancel and expiring a file are O(1)
+ * <p>
+ * the expiry state of a file is a Timer in a side table of the wheel, files that
+ * never expire carry none; slots are intrusive lists through Timer.prev/next,
+ * Timer.slot is -1 while a timer is not scheduled
+ */
+public class TimingWheel {
+
+    /**
+     * expiry state of one file
+     */
+    static final class Timer {
+        final FileInfo file;
+        // expiry deadline in ms, 0 for none; read by the expiring thread without the stripe lock
+        volatile long expireAt;
+        // deadline set by the ttl and idle timeout in ms, 0 for none; guarded by the stripe of the path
+        long ttlDeadline;
+        long idleTimeout;
+        // links inside a slot, slot is -1 when not scheduled; guarded by the wheel
+        Timer prev;
+        Timer next;
+        int slot = -1;
+
+        Timer(FileInfo file) {
+            this.file = file;
+        }
+    }
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    // deadlines further away than this many ticks wait in the last level and cascade again
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    private final long tickMillis;
+    private final Timer[] heads = new Timer[LEVELS * SLOTS];
+    // timers by file, files compare by identity
+    private final ConcurrentHashMap<FileInfo, Timer> timers = new ConcurrentHashMap<>();
+    // last processed tick
+    private long current;
+    private int count;
+
+    public TimingWheel(long tickMillis, long startMillis) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.current = startMillis / this.tickMillis;
+    }
+
+    /**
+     * expiry state of file, null if it has none
+     */
+    Timer timer(FileInfo file) {
+        return timers.get(file);
+    }
+
+    /**
+     * expiry state of file, created if it has none
+     */
+    Timer timerFor(FileInfo file) {
+        Timer timer = timers.get(file);
+        if (timer == null) {
+            Timer created = new Timer(file);
+            timer = timers.putIfAbsent(file, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * expiry deadline of file in ms, 0 for none
+     */
+    public long expireAt(FileInfo file) {
+        Timer timer = timers.get(file);
+        return timer == null ? 0 : timer.expireAt;
+    }
+
+    /**
+     * (re)schedule file to expire at expireAt ms, 0 unschedules
+     */
+    public synchronized void schedule(FileInfo file, long expireAt) {
+        Timer timer = timerFor(file);
+        if (timer.slot >= 0) {
+            unlink(timer);
+        }
+        timer.expireAt = expireAt;
+        if (expireAt != 0) {
+            link(timer, current + 1);
+        }
+    }
+
+    /**
+     * drop the expiry state of file, it left the cache
+     */
+    public synchronized void cancel(FileInfo file) {
+        Timer timer = timers.remove(file);
+        if (timer != null && timer.slot >= 0) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * move the wheel to now, files whose deadline passed are unlinked and added to expired
+     * returns the number added
+     */
+    public synchronized int advance(long now, List<FileInfo> expired) {
+        long target = now / tickMillis;
+        if (count == 0) {
+            current = Math.max(current, target);
+            return 0;
+        }
+        int n = 0;
+        while (current < target) {
+            current++;
+            // bring the higher level slots starting at this tick down first
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((current & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level * SLOTS + (int) ((current >>> (BITS * level)) & MASK));
+                }
+            }
+            int slot = (int) (current & MASK);
+            Timer timer = heads[slot];
+            heads[slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer.slot = -1;
+                count--;
+                if (timer.expireAt <= now) {
+                    expired.add(timer.file);
+                    n++;
+                } else {
+                    link(timer, current + 1);
+                }
+                timer = next;
+            }
+            if (count == 0) {
+                current = target;
+            }
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private void cascade(int slot) {
+        Timer timer = heads[slot];
+        heads[slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            timer.slot = -1;
+            count--;
+            // level 0 of this tick is drained right after the cascade
+            link(timer, current);
+            timer = next;
+        }
+    }
+
+    // earliest is the first tick still to be drained
+    private void link(Timer timer, long earliest) {
+        // the tick by which the deadline has passed
+        long due = Math.max(earliest, (timer.expireAt + tickMillis - 1) / tickMillis);
+        long delta = Math.min(due - current, SPAN - 1);
+        due = current + delta;
+        int level = 0;
+        while (delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((due >>> (BITS * level)) & MASK);
+        Timer head = heads[slot];
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        heads[slot] = timer;
+        timer.slot = slot;
+        count++;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            heads[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = -1;
+        count--;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * TinyLfuPolicy is W-TinyLFU on top of the two buckets
+ * onceAccess is a small LRU window (windowFactor of the cache), multiAccess
+ * the main LRU region; a count-min sketch of opens is the admission filter
+ * <p>
+ * a file hit in the window enters the main region only if there is room or
+ * it was seen more often than the main region's next victim; a miss on a path
+ * with history goes straight to the main region under the same rule, so
+ * one-off scans stay in the window and cannot push out the hot set
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+    private final float windowFactor;
+    private final CountMinSketch sketch;
+
+    public TinyLfuPolicy(float windowFactor, int sketchSize, int sampleSize) {
+        this.windowFactor = windowFactor;
+        this.sketch = new CountMinSketch(sketchSize, sampleSize);
+    }
+
+    public String multiOrder() {
+        return "LRU";
+    }
+
+    public float singleFactor() {
+        return windowFactor;
+    }
+
+    public void recordAccess(String path) {
+        sketch.increment(path);
+    }
+
+    public boolean promoteOnHit(FileInfo candidate, FileBucket multi, boolean cacheFull) {
+        return admit(candidate.getFilePath(), multi, cacheFull);
+    }
+
+    public boolean admitOnMiss(String path, FileBucket multi, boolean cacheFull) {
+        return sketch.frequency(path) > 1 && admit(path, multi, cacheFull);
+    }
+
+    public void onEvict(FileBucket from, FileInfo victim) {
+    }
+
+    public int frequency(String path) {
+        return sketch.frequency(path);
+    }
+
+    // while the cache has room everything is admitted, later path must beat the main region's victim
+    private boolean admit(String path, FileBucket multi, boolean cacheFull) {
+        if (!cacheFull) {
+            return true;
+        }
+        FileInfo victim = multi.peekVictim();
+        return victim == null || sketch.frequency(path) > sketch.frequency(victim.getFilePath());
+    }
+}
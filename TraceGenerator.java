@@ -0,0 +1,181 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * TraceGenerator produces synthetic file access sequences for benchmarks and tests
+ * zipfian: a few hot files take most accesses, theta controls the skew
+ * scanHeavy: zipfian hot set interleaved with sequential scans over cold files
+ * that are read once, like a Hive table scan next to interactive queries
+ * twice: every file is read a second time a while later, like an ETL step
+ * reading back what the previous step wrote
+ * phased: several generators taking turns, for workloads that shift
+ */
+public abstract class TraceGenerator {
+
+    protected final Random random;
+
+    protected TraceGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * id of the next accessed file
+     */
+    public abstract int next();
+
+    /**
+     * path of file id, files are spread over tables of 1000 splits
+     */
+    public static String path(int id) {
+        return "/warehouse/tbl_" + (id / 1000) + "/part-" + (id % 1000);
+    }
+
+    public static TraceGenerator zipfian(int files, double theta, long seed) {
+        return new Zipfian(files, theta, seed);
+    }
+
+    /**
+     * scanFraction of the accesses walk sequentially over scanFiles cold files,
+     * the rest are zipfian over hotFiles; cold ids start after the hot ones
+     */
+    public static TraceGenerator scanHeavy(int hotFiles, int scanFiles, double scanFraction, long seed) {
+        return new ScanHeavy(hotFiles, scanFiles, scanFraction, seed);
+    }
+
+    /**
+     * new files from firstId on, each read again once distance new files were read after it
+     */
+    public static TraceGenerator twice(int distance, int firstId) {
+        return new Twice(distance, firstId);
+    }
+
+    /**
+     * phaseLength accesses from each generator in turn, round robin
+     */
+    public static TraceGenerator phased(int phaseLength, TraceGenerator... gens) {
+        return new Phased(phaseLength, gens);
+    }
+
+    /**
+     * write events open+read pairs in the TraceReplay format, every file has size fileSize
+     */
+    public void writeTrace(File out, int events, long fileSize) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(out), 1 << 16)) {
+            for (int i = 0; i < events; i++) {
+                String path = path(next());
+                writer.write(path);
+                writer.write(",O\n");
+                writer.write(path);
+                writer.write(",R,");
+                writer.write(Long.toString(fileSize));
+                writer.write('\n');
+            }
+        }
+    }
+
+    static class Zipfian extends TraceGenerator {
+        // cumulative probability of ranks 0..files-1
+        private final double[] cdf;
+
+        Zipfian(int files, double theta, long seed) {
+            super(seed);
+            cdf = new double[files];
+            double sum = 0;
+            for (int i = 0; i < files; i++) {
+                sum += 1 / Math.pow(i + 1, theta);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < files; i++) {
+                cdf[i] /= sum;
+            }
+        }
+
+        public int next() {
+            double u = random.nextDouble();
+            int lo = 0;
+            int hi = cdf.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    static class ScanHeavy extends TraceGenerator {
+        private final Zipfian hot;
+        private final int hotFiles;
+        private final int scanFiles;
+        private final double scanFraction;
+        private int scanPos;
+
+        ScanHeavy(int hotFiles, int scanFiles, double scanFraction, long seed) {
+            super(seed);
+            this.hot = new Zipfian(hotFiles, 0.99, seed + 1);
+            this.hotFiles = hotFiles;
+            this.scanFiles = scanFiles;
+            this.scanFraction = scanFraction;
+        }
+
+        public int next() {
+            if (random.nextDouble() < scanFraction) {
+                int id = hotFiles + scanPos;
+                scanPos = (scanPos + 1) % scanFiles;
+                return id;
+            }
+            return hot.next();
+        }
+    }
+
+    static class Twice extends TraceGenerator {
+        // ids read once, waiting for their second read
+        private final int[] pending;
+        private final int distance;
+        private int head;
+        private int count;
+        private int nextId;
+
+        Twice(int distance, int firstId) {
+            super(0);
+            this.pending = new int[Math.max(1, distance)];
+            this.distance = Math.max(1, distance);
+            this.nextId = firstId;
+        }
+
+        public int next() {
+            if (count == distance) {
+                int id = pending[head];
+                head = (head + 1) % distance;
+                count--;
+                return id;
+            }
+            pending[(head + count) % distance] = nextId;
+            count++;
+            return nextId++;
+        }
+    }
+
+    static class Phased extends TraceGenerator {
+        private final TraceGenerator[] gens;
+        private final int phaseLength;
+        private long events;
+
+        Phased(int phaseLength, TraceGenerator[] gens) {
+            super(0);
+            this.gens = gens;
+            this.phaseLength = phaseLength;
+        }
+
+        public int next() {
+            int phase = (int) (events++ / phaseLength % gens.length);
+            return gens[phase].next();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TraceReplay streams an access trace through Policy and reports its statistics
+ * trace lines are "path,O" for an open and "path,R,size" for a read
+ * <p>
+ * the trace is memory mapped and parsed in place, a path is only decoded
+ * the first time it is seen, later lines reuse the same String
+ * <p>
+ * usage: java TraceReplay trace out.csv [-size 100,1000] [-single 0.25,0.5]
+ *                         [-min 0.1] [-soft 0.8] [-hard 0.9]
+ * every (size, single) pair is replayed and written as one csv row
+ */
+public class TraceReplay {
+
+    public static final String CSV_HEADER = "cache_size,single_factor,multi_factor,opens,reads,hit_rate,"
+            + "byte_hit_rate,evictions,ops_per_sec,p50_ns,p99_ns,p999_ns,max_ns";
+
+    // largest piece of the trace mapped at once
+    private static final long CHUNK = 1L << 30;
+
+    private final File trace;
+    // decoded paths, open addressing on the hash of the path bytes
+    private String[] paths = new String[1 << 16];
+    private int pathCount;
+
+    /**
+     * statistics of one replay
+     */
+    public static class Result {
+        public final long cacheSize;
+        public final float singleFactor;
+        public long opens;
+        public long reads;
+        public double hitRate;
+        public long bytesRead;
+        public long bytesHit;
+        public long evictions;
+        public double opsPerSec;
+        public final LatencyHistogram latency = new LatencyHistogram();
+
+        Result(long cacheSize, float singleFactor) {
+            this.cacheSize = cacheSize;
+            this.singleFactor = singleFactor;
+        }
+
+        public double byteHitRate() {
+            return bytesRead == 0 ? 0 : bytesHit / (double) bytesRead;
+        }
+
+        public String toCsv() {
+            return cacheSize + "," + singleFactor + "," + (1 - singleFactor) + "," + opens + "," + reads + ","
+                    + hitRate + "," + byteHitRate() + "," + evictions + "," + (long) opsPerSec + ","
+                    + latency.percentile(50) + "," + latency.percentile(99) + ","
+                    + latency.percentile(99.9) + "," + latency.max();
+        }
+    }
+
+    public TraceReplay(File trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * replay the whole trace against policy
+     * a read counts min(cached size, read size) as hit bytes
+     */
+    public Result replay(Policy policy, float singleFactor) throws IOException {
+        Result result = new Result(policy.cacheSize(), singleFactor);
+        long start = System.nanoTime();
+        try (RandomAccessFile raf = new RandomAccessFile(trace, "r");
+             FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            long pos = 0;
+            while (pos < length) {
+                long mapped = Math.min(CHUNK, length - pos);
+                MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapped);
+                int consumed = replayChunk(buf, (int) mapped, pos + mapped == length, policy, result);
+                if (consumed == 0) {
+                    throw new IOException("trace line longer than " + CHUNK + " bytes at " + pos);
+                }
+                pos += consumed;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        result.opsPerSec = (result.opens + result.reads) / (elapsed / 1e9);
+        result.hitRate = policy.getHitRate();
+        result.evictions = policy.getEvictCount();
+        return result;
+    }
+
+    // replay complete lines of buf, returns the number of bytes consumed
+    private int replayChunk(MappedByteBuffer buf, int limit, boolean last, Policy policy, Result result) {
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !last) {
+                break;
+            }
+            replayLine(buf, lineStart, lineEnd, policy, result);
+            lineStart = lineEnd + 1;
+        }
+        return Math.min(lineStart, limit);
+    }
+
+    private void replayLine(MappedByteBuffer buf, int from, int to, Policy policy, Result result) {
+        if (to > from && buf.get(to - 1) == '\r') {
+            to--;
+        }
+        int comma = from;
+        int hash = 0;
+        while (comma < to && buf.get(comma) != ',') {
+            hash = 31 * hash + buf.get(comma);
+            comma++;
+        }
+        if (comma + 1 >= to) {
+            return;
+        }
+        String path = path(buf, from, comma, hash);
+        byte type = buf.get(comma + 1);
+        long begin;
+        if (type == 'O') {
+            begin = System.nanoTime();
+            policy.cacheFileOpen(path);
+            result.latency.record(System.nanoTime() - begin);
+            result.opens++;
+        } else if (type == 'R') {
+            long size = 0;
+            for (int i = comma + 3; i < to; i++) {
+                byte b = buf.get(i);
+                if (b >= '0' && b <= '9') {
+                    size = size * 10 + (b - '0');
+                }
+            }
+            long cached = policy.cachedSize(path);
+            begin = System.nanoTime();
+            policy.cacheFileRead(path, size);
+            result.latency.record(System.nanoTime() - begin);
+            result.reads++;
+            result.bytesRead += size;
+            if (cached > 0) {
+                result.bytesHit += Math.min(cached, size);
+            }
+        } else {
+            System.err.println("Unknown type");
+        }
+    }
+
+    // the String for the path bytes in [from, to), decoded once per distinct path
+    private String path(MappedByteBuffer buf, int from, int to, int hash) {
+        int mask = paths.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String cur;
+        while ((cur = paths[slot]) != null) {
+            if (sameBytes(cur, buf, from, to)) {
+                return cur;
+            }
+            slot = (slot + 1) & mask;
+        }
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buf.get(i);
+        }
+        // one char per byte, so cached paths compare against the raw bytes
+        String path = new String(bytes, StandardCharsets.ISO_8859_1);
+        paths[slot] = path;
+        if (++pathCount > paths.length >>> 1) {
+            growPaths();
+        }
+        return path;
+    }
+
+    private static boolean sameBytes(String path, MappedByteBuffer buf, int from, int to) {
+        if (path.length() != to - from) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (path.charAt(i - from) != (buf.get(i) & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growPaths() {
+        String[] old = paths;
+        paths = new String[old.length << 1];
+        int mask = paths.length - 1;
+        for (String path : old) {
+            if (path == null) continue;
+            int hash = 0;
+            for (int i = 0; i < path.length(); i++) {
+                hash = 31 * hash + (byte) path.charAt(i);
+            }
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (paths[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            paths[slot] = path;
+        }
+    }
+
+    /**
+     * replay the trace once for every cache size and single factor, a fresh Policy each time
+     */
+    public List<Result> sweep(long[] sizes, float[] singleFactors, float minFill, float softFill, float hardFill)
+            throws IOException {
+        List<Result> results = new ArrayList<>();
+        for (long size : sizes) {
+            for (float single : singleFactors) {
+                Configuration conf = new Configuration(size, false, null, single, 1 - single,
+                        minFill, softFill, hardFill, false);
+                try (Policy policy = new Policy(conf)) {
+                    results.add(replay(policy, single));
+                }
+            }
+        }
+        return results;
+    }
+
+    public static void writeCsv(List<Result> results, File out) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+            writer.println(CSV_HEADER);
+            for (Result result : results) {
+                writer.println(result.toCsv());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: java TraceReplay trace out.csv [-size 100,1000] [-single 0.25,0.5]"
+                    + " [-min 0.1] [-soft 0.8] [-hard 0.9]");
+            System.exit(1);
+        }
+        long[] sizes = {100};
+        float[] singles = {0.25f};
+        float minFill = 0.1f, softFill = 0.8f, hardFill = 0.9f;
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            String[] values = args[i + 1].split(",");
+            if (args[i].equals("-size")) {
+                sizes = new long[values.length];
+                for (int j = 0; j < values.length; j++) sizes[j] = Long.parseLong(values[j]);
+            } else if (args[i].equals("-single")) {
+                singles = new float[values.length];
+                for (int j = 0; j < values.length; j++) singles[j] = Float.parseFloat(values[j]);
+            } else if (args[i].equals("-min")) {
+                minFill = Float.parseFloat(values[0]);
+            } else if (args[i].equals("-soft")) {
+                softFill = Float.parseFloat(values[0]);
+            } else if (args[i].equals("-hard")) {
+                hardFill = Float.parseFloat(values[0]);
+            } else {
+                System.err.println("unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        TraceReplay replay = new TraceReplay(new File(args[0]));
+        List<Result> results = replay.sweep(sizes, singles, minFill, softFill, hardFill);
+        writeCsv(results, new File(args[1]));
+        System.out.println(CSV_HEADER);
+        for (Result result : results) {
+            System.out.println(result.toCsv());
+        }
+    }
+}
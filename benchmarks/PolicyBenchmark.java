@@ -0,0 +1,307 @@
+import bench.Scenarios;
+
+import java.util.Random;
+
+/**
+ * PolicyBenchmark holds the scenarios bench.PolicyBench measures with JMH
+ * setup of a scenario runs before every timed run, run returns the operations done
+ * <p>
+ * the scenarios live in the default package to reach the cache, JMH only takes
+ * benchmarks in a named package, so bench.Scenarios loads this class by name
+ */
+public class PolicyBenchmark implements Scenarios {
+
+    /**
+     * one benchmark, setup runs before every timed run, run returns the operations done
+     */
+    abstract static class Scenario implements Scenarios.Target {
+        final String name;
+        final int entries;
+        final int threads;
+        Policy policy;
+
+        Scenario(String name, int entries, int threads) {
+            this.name = name;
+            this.entries = entries;
+            this.threads = threads;
+        }
+
+        public abstract void setup();
+
+        public abstract long run() throws InterruptedException;
+
+        public double hitRate() {
+            return policy == null ? Double.NaN : policy.getHitRate();
+        }
+    }
+
+    /**
+     * the scenario called name, trace and contention scenarios run events operations
+     * per thread
+     */
+    public Scenarios.Target create(String name, int entries, int threads, int events) {
+        if (name.equals("cacheFileOpen_hit")) return openHit(entries);
+        if (name.equals("cacheFileOpen_miss")) return openMiss(entries);
+        if (name.equals("cacheFileRead_resize")) return readResize(entries);
+        if (name.equals("promote_once_to_multi")) return promote(entries);
+        if (name.equals("evict")) return evict(entries);
+        if (name.equals("contention_zipfian")) return contention(entries, threads, events);
+        if (name.equals("contention_disjoint")) return disjoint(entries / threads, threads, events);
+        if (name.equals("trace_zipfian")) {
+            return trace(name, entries, TraceGenerator.zipfian(entries, 0.99, 7), events);
+        }
+        if (name.equals("trace_scan_heavy")) {
+            return trace(name, entries, TraceGenerator.scanHeavy(entries / 5, entries - entries / 5, 0.3, 7), events);
+        }
+        if (name.equals("trace_zipfian_sampled")) {
+            return trace(name, entries, TraceGenerator.zipfian(entries, 0.99, 7), events, true);
+        }
+        if (name.equals("trace_scan_heavy_sampled")) {
+            return trace(name, entries,
+                    TraceGenerator.scanHeavy(entries / 5, entries - entries / 5, 0.3, 7), events, true);
+        }
+        throw new IllegalArgumentException("no such scenario: " + name);
+    }
+
+    static Policy newPolicy(long cacheSize) {
+        return newPolicy(cacheSize, false);
+    }
+
+    static Policy newPolicy(long cacheSize, boolean sampled) {
+        Configuration conf = new Configuration(cacheSize, false, null, 0.25f, 0.75f, 0.1f, 0.8f, 0.9f, false);
+        conf.sampledEviction = sampled;
+        return new Policy(conf);
+    }
+
+    static String[] paths(int n, int offset) {
+        String[] paths = new String[n];
+        for (int i = 0; i < n; i++) {
+            paths[i] = TraceGenerator.path(offset + i);
+        }
+        return paths;
+    }
+
+    // shuffled indexes, so hits do not walk the buckets in insertion order
+    static int[] order(int n, long seed) {
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Random random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        return order;
+    }
+
+    // every path read once (onceAccess) and, if promote, opened again (multiAccess)
+    static Policy populated(String[] paths, boolean promote) {
+        Policy policy = newPolicy(paths.length * 100L);
+        for (String path : paths) {
+            policy.cacheFileRead(path, 1);
+            if (promote) {
+                policy.cacheFileOpen(path);
+            }
+        }
+        return policy;
+    }
+
+    static Scenario openHit(final int n) {
+        return new Scenario("cacheFileOpen_hit", n, 1) {
+            final String[] paths = paths(n, 0);
+            final int[] order = order(n, 1);
+
+            public void setup() {
+                if (policy == null) policy = populated(paths, true);
+            }
+
+            public long run() {
+                for (int i : order) policy.cacheFileOpen(paths[i]);
+                return n;
+            }
+        };
+    }
+
+    static Scenario openMiss(final int n) {
+        return new Scenario("cacheFileOpen_miss", n, 1) {
+            final String[] paths = paths(n, 0);
+
+            public void setup() {
+                policy = newPolicy(n * 100L);
+            }
+
+            public long run() {
+                for (String path : paths) policy.cacheFileOpen(path);
+                return n;
+            }
+        };
+    }
+
+    static Scenario readResize(final int n) {
+        return new Scenario("cacheFileRead_resize", n, 1) {
+            final String[] paths = paths(n, 0);
+            final int[] order = order(n, 2);
+            long size = 1;
+
+            public void setup() {
+                if (policy == null) policy = populated(paths, true);
+                size = size == 1 ? 2 : 1;
+            }
+
+            public long run() {
+                for (int i : order) policy.cacheFileRead(paths[i], size);
+                return n;
+            }
+        };
+    }
+
+    static Scenario promote(final int n) {
+        return new Scenario("promote_once_to_multi", n, 1) {
+            final String[] paths = paths(n, 0);
+            final int[] order = order(n, 3);
+
+            public void setup() {
+                policy = populated(paths, false);
+            }
+
+            public long run() {
+                for (int i : order) policy.cacheFileOpen(paths[i]);
+                return n;
+            }
+        };
+    }
+
+    static Scenario evict(final int n) {
+        return new Scenario("evict", n, 1) {
+            final String[] paths = paths(n, 0);
+
+            public void setup() {
+                policy = newPolicy(n * 100L);
+                for (int i = 0; i < n; i++) {
+                    policy.cacheFileRead(paths[i], 1);
+                    if ((i & 1) == 0) policy.cacheFileOpen(paths[i]);
+                }
+            }
+
+            // ask for all but one entry, ns per evicted file
+            public long run() {
+                long before = policy.getEvictCount();
+                policy.evict(n - 1);
+                return Math.max(1, policy.getEvictCount() - before);
+            }
+
+            public double hitRate() {
+                return Double.NaN;
+            }
+        };
+    }
+
+    /**
+     * threads share one Policy, each replays its own zipfian stream of open+read
+     */
+    static Scenario contention(final int files, final int threads, final int opsPerThread) {
+        return new Scenario("contention_zipfian", files, threads) {
+            final String[] paths = paths(files, 0);
+            final int[][] streams = new int[threads][opsPerThread];
+
+            {
+                for (int t = 0; t < threads; t++) {
+                    TraceGenerator gen = TraceGenerator.zipfian(files, 0.99, 100 + t);
+                    for (int i = 0; i < opsPerThread; i++) streams[t][i] = gen.next();
+                }
+            }
+
+            public void setup() {
+                policy = newPolicy(files / 2);
+            }
+
+            public long run() throws InterruptedException {
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    final int[] stream = streams[t];
+                    workers[t] = new Thread(new Runnable() {
+                        public void run() {
+                            for (int id : stream) {
+                                policy.cacheFileOpen(paths[id]);
+                                policy.cacheFileRead(paths[id], 1);
+                            }
+                        }
+                    });
+                }
+                for (Thread w : workers) w.start();
+                for (Thread w : workers) w.join();
+                return 2L * threads * opsPerThread;
+            }
+        };
+    }
+
+    /**
+     * threads share one Policy but each opens and reads its own files, so they only
+     * meet on the stripes their paths hash to and on eviction
+     */
+    static Scenario disjoint(final int filesPerThread, final int threads, final int opsPerThread) {
+        return new Scenario("contention_disjoint", filesPerThread * threads, threads) {
+            final String[][] paths = new String[threads][];
+
+            {
+                for (int t = 0; t < threads; t++) paths[t] = paths(filesPerThread, t * filesPerThread);
+            }
+
+            public void setup() {
+                policy = newPolicy(filesPerThread * threads * 100L);
+            }
+
+            public long run() throws InterruptedException {
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    final String[] mine = paths[t];
+                    workers[t] = new Thread(new Runnable() {
+                        public void run() {
+                            for (int i = 0; i < opsPerThread; i++) {
+                                String path = mine[i % mine.length];
+                                policy.cacheFileOpen(path);
+                                policy.cacheFileRead(path, 100 + i % 7);
+                            }
+                        }
+                    });
+                }
+                for (Thread w : workers) w.start();
+                for (Thread w : workers) w.join();
+                return 2L * threads * opsPerThread;
+            }
+        };
+    }
+
+    /**
+     * single thread replay of a synthetic stream, cache holds a tenth of the files
+     */
+    static Scenario trace(String name, final int files, final TraceGenerator gen, final int events) {
+        return trace(name, files, gen, events, false);
+    }
+
+    // sampled runs the same trace on SampledQueue buckets, to compare hit rates with the exact order
+    static Scenario trace(String name, final int files, final TraceGenerator gen, final int events,
+                          final boolean sampled) {
+        return new Scenario(name, files, 1) {
+            final String[] paths = paths(files, 0);
+            final int[] stream = new int[events];
+
+            {
+                for (int i = 0; i < events; i++) stream[i] = gen.next();
+            }
+
+            public void setup() {
+                policy = newPolicy(files / 10, sampled);
+            }
+
+            public long run() {
+                for (int id : stream) {
+                    policy.cacheFileOpen(paths[id]);
+                    policy.cacheFileRead(paths[id], 1);
+                }
+                return 2L * events;
+            }
+        };
+    }
+}
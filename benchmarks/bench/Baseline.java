@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collection;
+
+/**
+ * Baseline runs the single thread benchmarks of PolicyBench and writes them as csv,
+ * the numbers tuning work is compared against
+ * <p>
+ * usage: java -cp target/benchmarks.jar bench.Baseline [results.csv]
+ * contention rows are left out, they only mean something with a core per thread;
+ * run them by hand with java -jar target/benchmarks.jar PolicyBench.contention
+ */
+public class Baseline {
+
+    public static final String CSV_HEADER = "benchmark,entries,threads,ns_per_op,stddev_ns,ops_per_sec,hit_rate";
+
+    public static void main(String[] args) throws Exception {
+        String out = args.length > 0 ? args[0] : "bench_baseline.csv";
+        Options options = new OptionsBuilder()
+                .include(PolicyBench.class.getName() + ".(buckets|traces)$")
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        write(out, results);
+    }
+
+    static void write(String out, Collection<RunResult> results) throws IOException {
+        Scenarios scenarios = Scenarios.Loader.load();
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out))) {
+            writer.println(CSV_HEADER);
+            for (RunResult result : results) {
+                BenchmarkParams params = result.getParams();
+                String name = params.getParam("scenario");
+                int entries = Integer.parseInt(params.getParam("entries"));
+                Result ops = result.getSecondaryResults().get("ops");
+                double perSec = ops.getScore();
+                double nsPerOp = 1e9 / perSec;
+                // d(1e9 / x) = 1e9 / x^2 dx
+                double stddev = 1e9 * ops.getStatistics().getStandardDeviation() / (perSec * perSec);
+                writer.println(name + "," + entries + ",1,"
+                        + String.format("%.1f,%.1f,%d,%.4f", nsPerOp, stddev, (long) perSec,
+                        hitRate(scenarios, name, entries)));
+            }
+        }
+    }
+
+    // the hit rate is not timed, one setup and run outside JMH gives it
+    private static double hitRate(Scenarios scenarios, String name, int entries) {
+        Scenarios.Target target = scenarios.create(name, entries, 1, PolicyBench.EVENTS);
+        target.setup();
+        try {
+            target.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Double.NaN;
+        }
+        return target.hitRate();
+    }
+}
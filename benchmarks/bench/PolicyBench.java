@@ -0,0 +1,129 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PolicyBench measures Policy and FileBucket operations
+ * an invocation runs a whole scenario of PolicyBenchmark, the scenario setup runs
+ * before every invocation and is not timed; the ops counter is the throughput of
+ * single cache operations, 1e9 / ops is ns per operation
+ * <p>
+ * buckets: open hit and miss, read with resize, promotion and evict at 1k, 100k, 1M entries
+ * traces: single thread zipfian and scan-heavy replays, exact and sampled eviction
+ * contention: threads sharing one Policy, only meaningful with as many cores
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PolicyBench {
+
+    // operations per trace or contention run and thread
+    static final int EVENTS = 200000;
+
+    /**
+     * cache operations done in an iteration, reported per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Ops {
+        public long ops;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            ops = 0;
+        }
+    }
+
+    /**
+     * a scenario built once per trial and set up again before every invocation
+     */
+    public abstract static class Run {
+        Scenarios.Target target;
+
+        abstract Scenarios.Target create(Scenarios scenarios);
+
+        @Setup(Level.Trial)
+        public void create() {
+            target = create(Scenarios.Loader.load());
+        }
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            target.setup();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Buckets extends Run {
+        @Param({"cacheFileOpen_hit", "cacheFileOpen_miss", "cacheFileRead_resize", "promote_once_to_multi", "evict"})
+        public String scenario;
+        @Param({"1000", "100000", "1000000"})
+        public int entries;
+
+        Scenarios.Target create(Scenarios scenarios) {
+            return scenarios.create(scenario, entries, 1, 0);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Traces extends Run {
+        @Param({"trace_zipfian", "trace_scan_heavy", "trace_zipfian_sampled", "trace_scan_heavy_sampled"})
+        public String scenario;
+        @Param({"100000"})
+        public int entries;
+
+        Scenarios.Target create(Scenarios scenarios) {
+            return scenarios.create(scenario, entries, 1, EVENTS);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Contention extends Run {
+        @Param({"contention_zipfian", "contention_disjoint"})
+        public String scenario;
+        @Param({"1", "2", "4"})
+        public int threads;
+
+        Scenarios.Target create(Scenarios scenarios) {
+            return scenarios.create(scenario, scenario.equals("contention_disjoint") ? 500 * threads : 100000,
+                    threads, EVENTS);
+        }
+    }
+
+    @Benchmark
+    public long buckets(Buckets run, Ops ops) throws InterruptedException {
+        return count(run, ops);
+    }
+
+    @Benchmark
+    public long traces(Traces run, Ops ops) throws InterruptedException {
+        return count(run, ops);
+    }
+
+    @Benchmark
+    public long contention(Contention run, Ops ops) throws InterruptedException {
+        return count(run, ops);
+    }
+
+    private static long count(Run run, Ops ops) throws InterruptedException {
+        long done = run.target.run();
+        ops.ops += done;
+        return done;
+    }
+}
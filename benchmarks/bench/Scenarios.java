@@ -0,0 +1,37 @@
+package bench;
+
+/**
+ * Scenarios builds the benchmarked workloads, the default package PolicyBenchmark
+ * implements it next to the cache it drives
+ */
+public interface Scenarios {
+
+    /**
+     * one workload, setup is not timed, run returns the operations done
+     */
+    interface Target {
+        void setup();
+
+        long run() throws InterruptedException;
+
+        double hitRate();
+    }
+
+    Target create(String name, int entries, int threads, int events);
+
+    /**
+     * the default package implementation, a named package cannot import it
+     */
+    final class Loader {
+        private Loader() {
+        }
+
+        public static Scenarios load() {
+            try {
+                return (Scenarios) Class.forName("PolicyBenchmark").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("PolicyBenchmark not on the classpath", e);
+            }
+        }
+    }
+}
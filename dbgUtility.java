@@ -1,14 +1,30 @@
 /**
  * contains class method for debug
+ * <p>
+ * diagnostics are off unless the JVM runs with -Dcache.debug=true,
+ * callers guard string building with DEBUG so the hot path allocates nothing;
+ * dbg_requires checks nothing and prints nothing without it
  */
 public class dbgUtility {
 
+    // constant after class init, the JIT folds the guarded branches away
+    public static final boolean DEBUG = Boolean.getBoolean("cache.debug");
+
     public static void dbg_requires(boolean input, int line) {
-        if (!input) {
+        if (DEBUG && !input) {
             System.out.printf("err %d\n", line);
         }
     }
 
+    /**
+     * like dbg_requires(boolean, int), the caller's line is only looked up when the check fails
+     */
+    public static void dbg_requires(boolean input) {
+        if (DEBUG && !input) {
+            System.out.printf("err %d\n", Thread.currentThread().getStackTrace()[2].getLineNumber());
+        }
+    }
+
     public static void dbg_print(String str) {
         System.out.println(str);
     }